@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH JSON result file with the committed baseline and fails if any benchmark got
+ * slower than the tolerance allows. A change within the error margins of the two runs is not
+ * counted, so noisy benchmarks such as single shot ones don't fail the check on their own.
+ * Changes are printed as percentages, positive meaning slower. Scores from different JDKs are
+ * not comparable, so a run on another JDK than the baseline is flagged.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.google.businessmessages.kitchensink.benchmarks.BaselineCheck \
+ *     baseline.json target/results.json 0.10
+ * </pre>
+ */
+public final class BaselineCheck {
+
+  private static final String PACKAGE_PREFIX = BaselineCheck.class.getPackage().getName() + ".";
+
+  private BaselineCheck() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: BaselineCheck <baseline.json> <results.json> [tolerance]");
+      System.exit(2);
+    }
+
+    Map<String, Score> baseline = read(args[0]);
+    Map<String, Score> results = read(args[1]);
+    double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+    int regressions = 0;
+    for (Map.Entry<String, Score> result : results.entrySet()) {
+      Score before = baseline.get(result.getKey());
+      Score after = result.getValue();
+
+      if (before != null && !before.jdkVersion.equals(after.jdkVersion)) {
+        System.out.printf(Locale.ROOT, "WARNING    %s ran on JDK %s, the baseline on JDK %s%n",
+            shortName(result.getKey()), after.jdkVersion, before.jdkVersion);
+      }
+
+      if (before == null) {
+        System.out.printf(Locale.ROOT, "NEW        %-60s %12.3f %s%n",
+            shortName(result.getKey()), after.value, after.unit);
+        continue;
+      }
+
+      // Positive when the benchmark got slower, whichever way its mode counts
+      double change = after.lowerIsBetter
+          ? (after.value - before.value) / before.value
+          : (before.value - after.value) / before.value;
+
+      boolean significant =
+          Math.abs(after.value - before.value) > before.error + after.error;
+
+      String verdict = "OK";
+      if (significant && change > tolerance) {
+        verdict = "REGRESSION";
+        regressions++;
+      } else if (significant && change < -tolerance) {
+        verdict = "IMPROVED";
+      }
+
+      System.out.printf(Locale.ROOT, "%-10s %-60s %12.3f -> %12.3f %s (%+.1f%%)%n",
+          verdict, shortName(result.getKey()), before.value, after.value, after.unit,
+          change * 100);
+    }
+
+    for (String name : baseline.keySet()) {
+      if (!results.containsKey(name)) {
+        System.out.printf(Locale.ROOT, "MISSING    %s%n", shortName(name));
+      }
+    }
+
+    if (regressions > 0) {
+      System.out.printf(Locale.ROOT, "%d benchmarks regressed by more than %.0f%%%n",
+          regressions, tolerance * 100);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Reads the primary score of every benchmark in a JMH JSON result file.
+   *
+   * @param path The file.
+   * @return The scores, keyed by benchmark name and parameters.
+   */
+  private static Map<String, Score> read(String path) throws IOException {
+    Map<String, Score> scores = new TreeMap<>();
+
+    try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+      JsonArray runs = new JsonParser().parse(reader).getAsJsonArray();
+
+      for (JsonElement element : runs) {
+        JsonObject run = element.getAsJsonObject();
+        JsonObject metric = run.getAsJsonObject("primaryMetric");
+
+        StringBuilder name = new StringBuilder(run.get("benchmark").getAsString());
+        if (run.has("params")) {
+          Map<String, String> params = new TreeMap<>();
+          for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+            params.put(param.getKey(), param.getValue().getAsString());
+          }
+          name.append(params);
+        }
+
+        // The error is NaN when there were too few measurements to compute it
+        double error = metric.get("scoreError").getAsDouble();
+
+        scores.put(name.toString(), new Score(
+            metric.get("score").getAsDouble(),
+            Double.isNaN(error) ? 0 : error,
+            metric.get("scoreUnit").getAsString(),
+            !"thrpt".equals(run.get("mode").getAsString()),
+            run.has("jdkVersion") ? run.get("jdkVersion").getAsString() : "unknown"));
+      }
+    }
+
+    return scores;
+  }
+
+  private static String shortName(String name) {
+    return name.startsWith(PACKAGE_PREFIX) ? name.substring(PACKAGE_PREFIX.length()) : name;
+  }
+
+  private static final class Score {
+    private final double value;
+    private final double error;
+    private final String unit;
+    private final boolean lowerIsBetter;
+    private final String jdkVersion;
+
+    Score(double value, double error, String unit, boolean lowerIsBetter, String jdkVersion) {
+      this.value = value;
+      this.error = error;
+      this.unit = unit;
+      this.lowerIsBetter = lowerIsBetter;
+      this.jdkVersion = jdkVersion;
+    }
+  }
+}
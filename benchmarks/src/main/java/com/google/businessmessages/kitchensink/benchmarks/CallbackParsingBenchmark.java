@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.businessmessages.kitchensink.callback.CallbackEvent;
+import com.google.businessmessages.kitchensink.callback.CallbackEventReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of webhook payloads as {@code AgentCallback} does it, straight from the request
+ * stream, for each kind of webhook the platform sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CallbackParsingBenchmark {
+
+  @Param({"message", "postback", "receipts", "typing", "survey"})
+  public String webhook;
+
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    payload = payload(webhook).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public CallbackEvent parse() throws IOException {
+    return CallbackEventReader.read(new ByteArrayInputStream(payload));
+  }
+
+  /**
+   * Builds a webhook as sent by the platform, including the fields the bot skips.
+   */
+  static String payload(String webhook) {
+    String envelope = "{\"agent\":\"brands/1234/agents/5678\","
+        + "\"conversationId\":\"6f1e1b4a-5d2c-4f0e-9a4b-3c2d1e0f9a8b\","
+        + "\"customAgentId\":\"kitchen-sink\","
+        + "\"context\":{\"entryPoint\":\"PLACESHEET\",\"placeId\":\"ChIJN1t_tDeuEmsRUsoyG83frY4\","
+        + "\"userInfo\":{\"displayName\":\"Test User\",\"userDeviceLocale\":\"en-US\"}},"
+        + "\"sendTime\":\"2020-11-03T18:09:57.623427Z\",";
+
+    switch (webhook) {
+      case "message":
+        return envelope
+            + "\"message\":{\"messageId\":\"1a2b3c4d-0000-4000-8000-000000000001\","
+            + "\"name\":\"conversations/6f1e1b4a/messages/1a2b3c4d\","
+            + "\"text\":\"carousel\",\"createTime\":\"2020-11-03T18:09:57.563Z\"}}";
+      case "postback":
+        return envelope + "\"requestId\":\"1a2b3c4d-0000-4000-8000-000000000002\","
+            + "\"suggestionResponse\":{\"message\":\"conversations/6f1e1b4a/messages/9f8e\","
+            + "\"postbackData\":\"help\",\"createTime\":\"2020-11-03T18:09:57.563Z\","
+            + "\"text\":\"Help\",\"suggestionType\":\"REPLY\"}}";
+      case "receipts":
+        return envelope + "\"requestId\":\"1a2b3c4d-0000-4000-8000-000000000003\","
+            + "\"receipts\":{\"receipts\":["
+            + "{\"message\":\"1a2b3c4d-0000-4000-8000-0000000000a1\","
+            + "\"receiptType\":\"DELIVERED\"},"
+            + "{\"message\":\"1a2b3c4d-0000-4000-8000-0000000000a2\","
+            + "\"receiptType\":\"READ\"}],"
+            + "\"createTime\":\"2020-11-03T18:09:58.001Z\"}}";
+      case "typing":
+        return envelope + "\"requestId\":\"1a2b3c4d-0000-4000-8000-000000000004\","
+            + "\"userStatus\":{\"isTyping\":true,\"createTime\":\"2020-11-03T18:09:57.563Z\"}}";
+      case "survey":
+        return envelope
+            + "\"surveyResponse\":{\"survey\":\"conversations/6f1e1b4a/surveys/3c2d\","
+            + "\"rating\":\"VERY_SATISFIED\",\"createTime\":\"2020-11-03T18:09:57.563Z\","
+            + "\"surveyTriggerSource\":\"BOT\","
+            + "\"surveyQuestionId\":\"GOOGLE_DEFINED_ASSOCIATE_SATISFACTION\","
+            + "\"questionResponseText\":\"Yes\",\"questionResponsePostbackData\":\"yes\","
+            + "\"questionType\":\"GOOGLE_STANDARD_QUESTION\",\"questionIndex\":1,"
+            + "\"totalQuestionCount\":1}}";
+      default:
+        throw new IllegalArgumentException("Unknown webhook " + webhook);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import com.google.businessmessages.kitchensink.Representatives;
+import com.google.businessmessages.kitchensink.ResponseTemplates;
+import com.google.businessmessages.kitchensink.TextProducer;
+import com.google.businessmessages.kitchensink.TextSegmenter;
+import com.google.businessmessages.kitchensink.commands.CommandContext;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Command context that builds the same messages as the bot but keeps them instead of sending
+ * them, so command handlers can be measured without any network calls.
+ */
+final class CapturingContext implements CommandContext {
+
+  // Same default as kitchensink.text.maxChunkChars
+  private static final int MAX_CHUNK_CHARS = 1000;
+
+  private final BusinessMessagesRepresentative representative;
+
+  private final List<BusinessMessagesMessage> messages = new ArrayList<>();
+
+  private int surveys;
+
+  /**
+   * @param representative The representative the responses are sent as.
+   */
+  CapturingContext(BusinessMessagesRepresentative representative) {
+    this.representative = representative;
+  }
+
+  /**
+   * Returns the messages sent since the last call and starts a new list.
+   *
+   * @return The messages, in the order they were sent.
+   */
+  List<BusinessMessagesMessage> takeMessages() {
+    List<BusinessMessagesMessage> sent = new ArrayList<>(messages);
+    messages.clear();
+
+    return sent;
+  }
+
+  /**
+   * Returns the last message sent and forgets the others, without copying.
+   *
+   * @return The last message, or null if none was sent.
+   */
+  BusinessMessagesMessage takeLastMessage() {
+    BusinessMessagesMessage last = messages.isEmpty() ? null : messages.get(messages.size() - 1);
+    messages.clear();
+
+    return last;
+  }
+
+  /**
+   * @return The number of surveys sent.
+   */
+  int getSurveys() {
+    return surveys;
+  }
+
+  @Override
+  public BusinessMessagesRepresentative getRepresentative() {
+    return Representatives.copyOf(representative);
+  }
+
+  @Override
+  public boolean isLiveAgent() {
+    return representative.getRepresentativeType().equals(RepresentativeType.HUMAN.toString());
+  }
+
+  @Override
+  public List<BusinessMessagesSuggestion> getDefaultMenu() {
+    return ResponseTemplates.defaultMenu(isLiveAgent());
+  }
+
+  @Override
+  public void sendResponse(String text, String conversationId) {
+    messages.add(createTextMessage(text, true));
+  }
+
+  @Override
+  public void sendRichResponse(String text, String conversationId) {
+    messages.add(createTextMessage(text, true).setContainsRichText(true));
+  }
+
+  @Override
+  public void sendLongText(String text, String conversationId) {
+    List<String> chunks = TextSegmenter.split(text, MAX_CHUNK_CHARS);
+    for (int i = 0; i < chunks.size(); i++) {
+      messages.add(createTextMessage(chunks.get(i), i == chunks.size() - 1));
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> sendResponse(BusinessMessagesMessage message,
+      String conversationId) {
+    messages.add(message);
+
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public List<CompletableFuture<Void>> sendResponses(List<BusinessMessagesMessage> batch,
+      String conversationId) {
+    messages.addAll(batch);
+
+    return Collections.nCopies(batch.size(), CompletableFuture.completedFuture(null));
+  }
+
+  @Override
+  public void streamResponse(TextProducer producer, String conversationId) {
+    TextSegmenter segmenter = new TextSegmenter(MAX_CHUNK_CHARS,
+        (chunk, last) -> messages.add(createTextMessage(chunk, last)));
+
+    try {
+      producer.produce(segmenter::append);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      segmenter.finish();
+    }
+  }
+
+  @Override
+  public void sendSurvey(String conversationId) {
+    surveys++;
+  }
+
+  @Override
+  public void startTyping(String conversationId, long expectedMillis) {
+  }
+
+  /**
+   * Creates a text message the way {@code KitchenSinkBot} does.
+   */
+  private BusinessMessagesMessage createTextMessage(String text, boolean withMenu) {
+    BusinessMessagesMessage message = new BusinessMessagesMessage()
+        .setMessageId(UUID.randomUUID().toString())
+        .setText(text)
+        .setRepresentative(getRepresentative())
+        .setFallback(text);
+
+    if (withMenu) {
+      message.setSuggestions(getDefaultMenu());
+    }
+
+    return message;
+  }
+}
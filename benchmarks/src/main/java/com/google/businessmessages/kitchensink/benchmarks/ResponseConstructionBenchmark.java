@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.businessmessages.kitchensink.CommandDispatcher;
+import com.google.businessmessages.kitchensink.Representatives;
+import com.google.businessmessages.kitchensink.commands.CommandHandler;
+import com.google.businessmessages.kitchensink.commands.CommandRegistry;
+import com.google.businessmessages.kitchensink.commands.LazyCommand;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of each kind of response by the built-in command handlers, as the bot or as a
+ * live agent: rich cards, carousels, suggestion chips, actions and plain or rich text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ResponseConstructionBenchmark {
+
+  private static final String CONVERSATION_ID = "benchmark";
+
+  @Param({"card", "carousel", "chips", "link", "dial", "help", "bold", "long text"})
+  public String command;
+
+  @Param({"false", "true"})
+  public boolean liveAgent;
+
+  private CommandHandler handler;
+
+  private CapturingContext context;
+
+  @Setup
+  public void setUp() {
+    CommandDispatcher<LazyCommand> router =
+        CommandRegistry.load(getClass().getClassLoader(), null);
+
+    handler = router.dispatch(command).getHandler();
+    context = new CapturingContext(Representatives.forType(
+        liveAgent ? RepresentativeType.HUMAN : RepresentativeType.BOT));
+  }
+
+  @Benchmark
+  public BusinessMessagesMessage build() {
+    handler.handle(context, command, command, CONVERSATION_ID);
+
+    return context.takeLastMessage();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.businessmessages.kitchensink.KitchenSinkBot;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command dispatch in {@link KitchenSinkBot#routeMessage}: normalizing a message and finding its
+ * handler in the bot's router. Covers plain commands, pattern commands and the echo fallback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dkitchensink.journal.enabled=false")
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+  @Param({"card", "Carousel ", "help me please", "who are you", "csat survey",
+      "hello there, is anyone around?"})
+  public String message;
+
+  private List<String> messages;
+
+  @Setup
+  public void setUp() {
+    messages = Collections.singletonList(message);
+  }
+
+  @Benchmark
+  public List<String> dispatch() {
+    return KitchenSinkBot.dryRunRouting(messages);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.businessmessages.kitchensink.Representatives;
+import com.google.businessmessages.kitchensink.commands.CommandRegistry;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON encoding of outbound messages with the {@link JacksonFactory} the API client uses, and
+ * decoding them back, for each kind of response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+  @Param({"card", "carousel", "chips", "help"})
+  public String command;
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+  private BusinessMessagesMessage message;
+
+  private String json;
+
+  @Setup
+  public void setUp() throws IOException {
+    CapturingContext context =
+        new CapturingContext(Representatives.forType(RepresentativeType.BOT));
+    CommandRegistry.load(getClass().getClassLoader(), null)
+        .dispatch(command)
+        .getHandler()
+        .handle(context, command, command, "benchmark");
+
+    message = context.takeLastMessage();
+    json = jsonFactory.toString(message);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return jsonFactory.toByteArray(message);
+  }
+
+  @Benchmark
+  public BusinessMessagesMessage deserialize() throws IOException {
+    return jsonFactory.fromString(json, BusinessMessagesMessage.class);
+  }
+}
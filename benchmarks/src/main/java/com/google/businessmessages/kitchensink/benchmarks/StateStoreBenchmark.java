@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.benchmarks;
+
+import com.google.businessmessages.kitchensink.state.StateStore;
+import com.google.businessmessages.kitchensink.state.StateStores;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calls on a {@link StateStore} backend. Only the in-process backend runs by default; a memcached
+ * server is measured with {@code -p backend=xmemcached -jvmArgsAppend
+ * -Dkitchensink.state.memcached.servers=host:11211}. App Engine memcache is only reachable on App
+ * Engine and is not covered.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StateStoreBenchmark {
+
+  private static final int KEYS = 1024;
+
+  private static final int BATCH_SIZE = 16;
+
+  private static final int TTL_SECONDS = 600;
+
+  @Param({"memory"})
+  public String backend;
+
+  private StateStore store;
+
+  private String[] keys;
+
+  private List<String> batch;
+
+  private int next;
+
+  private long added;
+
+  @Setup
+  public void setUp() {
+    store = StateStores.create(backend);
+
+    keys = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = "benchmark:" + i;
+      store.put(keys[i], "HUMAN", TTL_SECONDS);
+    }
+
+    batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(keys[i * (KEYS / BATCH_SIZE)]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    store.close();
+  }
+
+  @Benchmark
+  public String getHit() {
+    next = (next + 1) & (KEYS - 1);
+
+    return store.get(keys[next]);
+  }
+
+  @Benchmark
+  public String getMiss() {
+    return store.get("benchmark:missing");
+  }
+
+  @Benchmark
+  public Map<String, String> getAll() {
+    return store.getAll(batch);
+  }
+
+  @Benchmark
+  public void put() {
+    next = (next + 1) & (KEYS - 1);
+
+    store.put(keys[next], "BOT", TTL_SECONDS);
+  }
+
+  @Benchmark
+  public boolean putIfAbsentNew() {
+    return store.putIfAbsent("benchmark:added:" + added++, "1", TTL_SECONDS);
+  }
+
+  @Benchmark
+  public boolean putIfAbsentExisting() {
+    next = (next + 1) & (KEYS - 1);
+
+    return store.putIfAbsent(keys[next], "1", TTL_SECONDS);
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.Businessmessages;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+// [END import_libraries]
+
+/**
+ * Process-wide holder for the Business Messages API client. The HTTP transport, OAuth2 credentials
+ * and the API object are created once per JVM and shared by every {@link KitchenSinkBot}, so an
+ * inbound webhook no longer pays for a truststore load and a token fetch.
+ *
+ * <p>The access token is refreshed ahead of its expiry by a background thread, so sends don't stall
+ * on a token fetch. Where there is no thread that can call the App Engine APIs (see
+ * {@link BotThreads}) the token is refreshed by the caller of {@link #getApi()} instead.
+ *
+ * <p>The transport is picked with {@code kitchensink.http.transport}: "netHttp" uses
+ * {@code HttpURLConnection}, "apache" uses Apache HttpClient with a sized, keep-alive connection
+ * pool whose usage is exported as metrics.
+ */
+public final class BmApiClient {
+  private static final Logger logger = Logger.getLogger(BmApiClient.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  // Refresh the access token once it is this close to expiring
+  private static final long TOKEN_REFRESH_WINDOW_SECONDS = 300;
+
+  // How often idle and expired pooled connections are closed
+  private static final long EVICTION_INTERVAL_SECONDS = 30;
+
+  // How often the refresher checks the expiry of the access token
+  private static final long TOKEN_CHECK_INTERVAL_SECONDS = 60;
+
+  private static volatile BmApiClient instance;
+
+  // Shared transport, thread-safe and reused for every request
+  private final HttpTransport httpTransport;
+
+  // Object to maintain OAuth2 credentials to call the BM API, null if turned off
+  private final GoogleCredential credential;
+
+  // The BM API object, safe to share between threads
+  private final Businessmessages businessmessages;
+
+  // Closes idle pooled connections, null for transports without a pool
+  private final ScheduledExecutorService evictor;
+
+  // Refreshes the access token ahead of its expiry, null if the callers of getApi() do
+  private final ScheduledExecutorService refresher;
+
+  // Guards against several threads refreshing the token at the same time
+  private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+  private BmApiClient(HttpTransport httpTransport, GoogleCredential credential) {
+    this.httpTransport = httpTransport;
+    this.credential = credential;
+    this.evictor = httpTransport instanceof ApacheHttpTransport
+        ? startPoolMaintenance((ApacheHttpTransport) httpTransport)
+        : null;
+    this.refresher = credential != null && BotThreads.workersCanCallApis()
+        ? startTokenRefresher()
+        : null;
+
+    // create instance of the BM API
+    this.businessmessages = new Businessmessages
+        .Builder(httpTransport, JacksonFactory.getDefaultInstance(), credential)
+        .setApplicationName("BM Kitchen Sink")
+        .setRootUrl(BotConfig.getString("kitchensink.bm.apiUrl", BotConstants.BM_API_URL))
+        .build();
+  }
+
+  /**
+   * Returns the shared client, creating it on first use.
+   *
+   * @return The process-wide client.
+   */
+  public static BmApiClient getInstance() {
+    BmApiClient client = instance;
+    if (client == null) {
+      synchronized (BmApiClient.class) {
+        client = instance;
+        if (client == null) {
+          client = create();
+          instance = client;
+        }
+      }
+    }
+
+    return client;
+  }
+
+  /**
+   * Releases the shared transport. The next call to {@link #getInstance()} creates a new client.
+   */
+  public static void shutdown() {
+    synchronized (BmApiClient.class) {
+      if (instance != null) {
+        if (instance.evictor != null) {
+          instance.evictor.shutdownNow();
+        }
+        if (instance.refresher != null) {
+          instance.refresher.shutdownNow();
+        }
+
+        try {
+          instance.httpTransport.shutdown();
+        } catch (Exception e) {
+          logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+        }
+        instance = null;
+      }
+    }
+  }
+
+  /**
+   * Gets the BM API object. Without a background refresher the access token is refreshed first if
+   * it is about to expire.
+   *
+   * @return The shared BM API object.
+   */
+  public Businessmessages getApi() {
+    if (refresher == null) {
+      refreshIfExpiring();
+    }
+
+    return businessmessages;
+  }
+
+  /**
+   * Checks the access token every {@code TOKEN_CHECK_INTERVAL_SECONDS}, starting right away, and
+   * refreshes it once it is close to expiring.
+   */
+  private ScheduledExecutorService startTokenRefresher() {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        BotThreads.newFactory("bm-token-refresher"));
+
+    scheduler.scheduleWithFixedDelay(this::refreshIfExpiring, 0, TOKEN_CHECK_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+
+    return scheduler;
+  }
+
+  /**
+   * Refreshes the access token if there is none yet or it is about to expire. Only one caller
+   * performs the refresh, the others keep using the still valid token. A failed refresh is tried
+   * again on the next check, and the credential also refreshes itself on a 401 response.
+   */
+  private void refreshIfExpiring() {
+    if (credential == null) {
+      return;
+    }
+
+    Long expiresInSeconds = credential.getExpiresInSeconds();
+    if (expiresInSeconds != null && expiresInSeconds > TOKEN_REFRESH_WINDOW_SECONDS) {
+      return;
+    }
+
+    if (refreshing.compareAndSet(false, true)) {
+      try {
+        credential.refreshToken();
+      } catch (Exception e) {
+        logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+      } finally {
+        refreshing.set(false);
+      }
+    }
+  }
+
+  private static BmApiClient create() {
+    logger.info("Initializing shared Business Messages client.");
+
+    try {
+      return new BmApiClient(createTransport(), initCredentials());
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to create the Business Messages client", e);
+    }
+  }
+
+  /**
+   * Creates the HTTP transport selected by {@code kitchensink.http.transport}.
+   */
+  private static HttpTransport createTransport() throws Exception {
+    String transport = BotConfig.getString("kitchensink.http.transport", "netHttp");
+
+    if (!"apache".equals(transport)) {
+      return GoogleNetHttpTransport.newTrustedTransport();
+    }
+
+    ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+        .trustCertificates(GoogleUtils.getCertificateTrustStore());
+
+    // Every call goes to the same host, so the route limit is the one that matters
+    int maxConnections = BotConfig.getInt("kitchensink.http.maxConnections", 128);
+    HttpParams params = builder.getHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+    ConnManagerParams.setTimeout(params,
+        BotConfig.getLong("kitchensink.http.poolTimeoutMillis", 10000));
+    HttpConnectionParams.setConnectionTimeout(params,
+        BotConfig.getInt("kitchensink.http.connectTimeoutMillis", 10000));
+    HttpConnectionParams.setSoTimeout(params,
+        BotConfig.getInt("kitchensink.http.readTimeoutMillis", 20000));
+    HttpConnectionParams.setTcpNoDelay(params, true);
+
+    logger.info("Using a pooled Apache HTTP transport with " + maxConnections + " connections.");
+
+    Metrics.registerGauge("bm_http_pool_max_connections", () -> maxConnections);
+
+    return builder.build();
+  }
+
+  /**
+   * Exports the pool size and periodically closes connections that have been idle for longer
+   * than {@code kitchensink.http.idleTimeoutSeconds}, so reused keep-alive connections are ones
+   * the server has not already dropped.
+   */
+  private static ScheduledExecutorService startPoolMaintenance(ApacheHttpTransport transport) {
+    ClientConnectionManager connectionManager = transport.getHttpClient().getConnectionManager();
+
+    if (connectionManager instanceof ThreadSafeClientConnManager) {
+      ThreadSafeClientConnManager pool = (ThreadSafeClientConnManager) connectionManager;
+      Metrics.registerGauge("bm_http_pool_connections", pool::getConnectionsInPool);
+    }
+
+    long idleTimeoutSeconds = BotConfig.getLong("kitchensink.http.idleTimeoutSeconds", 60);
+
+    ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "bm-http-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    evictor.scheduleWithFixedDelay(() -> {
+      try {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+      }
+    }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+    return evictor;
+  }
+
+  /**
+   * Initializes credentials used by the Business Messages API. The access token is fetched on
+   * first use, or by the refresher.
+   *
+   * @return The scoped credentials, or null if they are turned off.
+   * @throws IOException If no credentials could be found, so the client isn't created and the
+   *     next call tries again.
+   */
+  private static GoogleCredential initCredentials() throws IOException {
+    // Off when calling a local emulator, which needs no token
+    if (!BotConfig.getBoolean("kitchensink.bm.useCredentials", true)) {
+      logger.info("Calling the Business Messages API without credentials.");
+
+      return null;
+    }
+
+    logger.info("Initializing credentials for Business Messages.");
+
+    return GoogleCredential.getApplicationDefault()
+        .createScoped(Arrays.asList("https://www.googleapis.com/auth/businessmessages"));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+/**
+ * Runtime settings for the bot. Values are read from system properties, which App Engine sets from
+ * the system-properties section of appengine-web.xml, and fall back to the given defaults.
+ */
+public final class BotConfig {
+
+  private BotConfig() {
+  }
+
+  /**
+   * Reads a string setting.
+   *
+   * @param name The system property name.
+   * @param defaultValue The value used when the property is not set.
+   * @return The configured value.
+   */
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Reads a integer setting.
+   *
+   * @param name The system property name.
+   * @param defaultValue The value used when the property is not set.
+   * @return The configured value.
+   */
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  /**
+   * Reads a long setting.
+   *
+   * @param name The system property name.
+   * @param defaultValue The value used when the property is not set.
+   * @return The configured value.
+   */
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * Reads a boolean setting.
+   *
+   * @param name The system property name.
+   * @param defaultValue The value used when the property is not set.
+   * @return The configured value.
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+// [END import_libraries]
+
+/**
+ * Creates the long-lived worker threads of the bot. On App Engine Standard a thread can only call
+ * the App Engine APIs (memcache, URL Fetch, app identity) if it was created through
+ * {@link ThreadManager}, and only background threads outlive the request that started them.
+ * Background threads are available on manual and basic scaling instances; on automatically scaled
+ * instances work that calls the APIs has to stay on the request thread. Off App Engine the workers
+ * are plain daemon threads.
+ */
+public final class BotThreads {
+
+  private BotThreads() {
+  }
+
+  /**
+   * Checks whether the bot runs on App Engine Standard.
+   *
+   * @return True on App Engine and its local development server.
+   */
+  public static boolean isAppEngine() {
+    return SystemProperty.environment.value() != null;
+  }
+
+  /**
+   * Checks whether worker threads can call the App Engine APIs. On App Engine this has to be asked
+   * from a request thread.
+   *
+   * @return True off App Engine, or on App Engine when background threads can be started.
+   */
+  public static boolean workersCanCallApis() {
+    if (!isAppEngine()) {
+      return true;
+    }
+
+    try {
+      return ThreadManager.backgroundThreadFactory() != null;
+    } catch (NullPointerException e) {
+      // Not asked from a request thread
+      return false;
+    }
+  }
+
+  /**
+   * Creates a factory for worker threads, named with a prefix and a sequence number. On App Engine
+   * it has to be called from a request thread where {@link #workersCanCallApis()} holds.
+   *
+   * @param namePrefix The prefix of the thread names.
+   * @return Background threads on App Engine, daemon threads elsewhere.
+   */
+  public static ThreadFactory newFactory(String namePrefix) {
+    ThreadFactory background = null;
+    if (isAppEngine()) {
+      background = ThreadManager.backgroundThreadFactory();
+      if (background == null) {
+        throw new IllegalStateException("Background threads are not available on this instance");
+      }
+    }
+
+    ThreadFactory threads = background;
+    AtomicInteger count = new AtomicInteger();
+
+    return runnable -> {
+      Thread thread;
+      if (threads != null) {
+        thread = threads.newThread(runnable);
+      } else {
+        thread = new Thread(runnable);
+        thread.setDaemon(true);
+      }
+      thread.setName(namePrefix + "-" + count.incrementAndGet());
+
+      return thread;
+    };
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps a normalized message to the handler of the command it matches. Commands are given in the
+ * same regular expression form used by {@link BotConstants}. Plain commands are looked up in a hash
+ * table, the remaining patterns are compiled once into a single alternation so a message is
+ * matched in one pass. Plain commands take precedence over patterns; patterns are tried in the
+ * order they were registered.
+ *
+ * @param <H> The handler type.
+ */
+public final class CommandDispatcher<H> {
+
+  // Characters that make a command a regular expression rather than a plain string
+  private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}";
+
+  private final Map<String, H> exactCommands;
+
+  // All pattern commands as named groups c0..cN, or null if there are none
+  private final Pattern combinedPattern;
+
+  private final List<H> patternHandlers;
+
+  private final H fallback;
+
+  private CommandDispatcher(Builder<H> builder) {
+    this.exactCommands = Collections.unmodifiableMap(new HashMap<>(builder.exactCommands));
+    this.patternHandlers = Collections.unmodifiableList(new ArrayList<>(builder.patternHandlers));
+    this.fallback = builder.fallback;
+
+    if (builder.patterns.isEmpty()) {
+      this.combinedPattern = null;
+    } else {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < builder.patterns.size(); i++) {
+        if (i > 0) {
+          regex.append('|');
+        }
+        regex.append("(?<c").append(i).append('>').append(builder.patterns.get(i)).append(')');
+      }
+
+      this.combinedPattern = Pattern.compile(regex.toString());
+    }
+  }
+
+  /**
+   * Creates a builder for a dispatcher.
+   *
+   * @param <H> The handler type.
+   * @return A new builder.
+   */
+  public static <H> Builder<H> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Finds the handler for a message.
+   *
+   * @param normalizedMessage The lower cased and trimmed message.
+   * @return The handler of the first matching command, or the fallback handler.
+   */
+  public H dispatch(String normalizedMessage) {
+    H handler = exactCommands.get(normalizedMessage);
+    if (handler != null) {
+      return handler;
+    }
+
+    if (combinedPattern != null) {
+      Matcher matcher = combinedPattern.matcher(normalizedMessage);
+
+      if (matcher.matches()) {
+        for (int i = 0; i < patternHandlers.size(); i++) {
+          if (matcher.start("c" + i) >= 0) {
+            return patternHandlers.get(i);
+          }
+        }
+      }
+    }
+
+    return fallback;
+  }
+
+  /**
+   * Builder for {@link CommandDispatcher}.
+   *
+   * @param <H> The handler type.
+   */
+  public static final class Builder<H> {
+    private final Map<String, H> exactCommands = new HashMap<>();
+    private final List<String> patterns = new ArrayList<>();
+    private final List<H> patternHandlers = new ArrayList<>();
+    private H fallback;
+
+    private Builder() {
+    }
+
+    /**
+     * Registers a command.
+     *
+     * @param command The command, either a plain string or a regular expression that has to match
+     *     the whole message.
+     * @param handler The handler to run for the command.
+     * @return This builder.
+     */
+    public Builder<H> command(String command, H handler) {
+      if (isPlain(command)) {
+        exactCommands.putIfAbsent(command, handler);
+      } else {
+        patterns.add(command);
+        patternHandlers.add(handler);
+      }
+
+      return this;
+    }
+
+    /**
+     * Sets the handler used when no command matches.
+     *
+     * @param handler The fallback handler.
+     * @return This builder.
+     */
+    public Builder<H> fallback(H handler) {
+      this.fallback = handler;
+
+      return this;
+    }
+
+    /**
+     * Compiles the registered commands.
+     *
+     * @return The dispatcher.
+     */
+    public CommandDispatcher<H> build() {
+      return new CommandDispatcher<>(this);
+    }
+
+    private static boolean isPlain(String command) {
+      for (int i = 0; i < command.length(); i++) {
+        if (REGEX_CHARACTERS.indexOf(command.charAt(i)) >= 0) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
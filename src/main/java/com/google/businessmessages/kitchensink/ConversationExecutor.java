@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Runs webhook work off the servlet thread with one mailbox per conversation. A conversation's
+ * tasks run one at a time in the order they were submitted, while different conversations run in
+ * parallel on a shared pool of workers. A mailbox only holds a worker while it has work and gives
+ * it up after a batch of tasks, so a slow conversation never holds up the others beyond the
+ * workers it occupies. Each mailbox is bounded; once it is full new work for the conversation is
+ * rejected so the caller can push back on the sender. Mailboxes left idle are evicted.
+ *
+ * <p>On a JDK with virtual threads the workers can be virtual threads, one per busy mailbox, so
+ * conversations waiting on I/O take up no platform thread. On App Engine the workers are background
+ * threads so the work can call the App Engine APIs, see {@link BotThreads}.
+ */
+public final class ConversationExecutor {
+  private static final Logger logger = Logger.getLogger(ConversationExecutor.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  // Tasks a mailbox runs before it lets other conversations have its worker
+  private static final int BATCH_SIZE = 16;
+
+  private static ConversationExecutor shared;
+
+  private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+  private final ExecutorService workers;
+
+  private final ScheduledExecutorService evictor;
+
+  private final int mailboxCapacity;
+
+  private final long idleNanos;
+
+  // Tasks waiting across all mailboxes
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private volatile boolean shutdown;
+
+  /**
+   * Creates the executor and starts its workers. On App Engine it has to be created from a request
+   * thread where {@link BotThreads#workersCanCallApis()} holds.
+   *
+   * @param workerCount The number of platform worker threads, unused with virtual threads.
+   * @param mailboxCapacity The maximum number of queued tasks per conversation.
+   * @param idleMillis How long a mailbox is kept after its last task.
+   * @param virtualThreads Whether to run mailboxes on virtual threads if the JDK has them.
+   * @throws IllegalStateException If the workers can't be started.
+   */
+  public ConversationExecutor(int workerCount, int mailboxCapacity, long idleMillis,
+      boolean virtualThreads) {
+    this.mailboxCapacity = mailboxCapacity;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+
+    ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor() : null;
+    this.workers = virtual != null ? virtual : newWorkerPool(workerCount);
+
+    this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "conversation-mailbox-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long evictEveryMillis = Math.max(1000, idleMillis / 2);
+    evictor.scheduleWithFixedDelay(this::evictIdle, evictEveryMillis, evictEveryMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates an executor configured by the "kitchensink.ingestion.*" properties.
+   *
+   * @return A new executor.
+   */
+  public static ConversationExecutor create() {
+    return new ConversationExecutor(
+        BotConfig.getInt("kitchensink.ingestion.workers", 16),
+        BotConfig.getInt("kitchensink.ingestion.mailboxCapacity", 256),
+        BotConfig.getLong("kitchensink.ingestion.mailboxIdleMillis", 60000),
+        BotConfig.getBoolean("kitchensink.ingestion.virtualThreads", false));
+  }
+
+  /**
+   * Gets the executor shared by every way callback events are received, creating it on first use.
+   * Events of a conversation that are pushed and pulled at the same time, for instance while
+   * moving from push to pull, go through the same mailbox and so stay in order.
+   *
+   * @return The shared executor, or null if its workers couldn't call the App Engine APIs the work
+   *     needs, or couldn't be started, in which case the work has to run on the request thread.
+   */
+  public static synchronized ConversationExecutor getShared() {
+    if (shared != null) {
+      return shared;
+    }
+
+    if (!BotThreads.workersCanCallApis()) {
+      logger.warning("Background threads are not available, callback events have to be "
+          + "processed on the request thread.");
+
+      return null;
+    }
+
+    try {
+      shared = create();
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Unable to start the conversation workers, callback events have "
+          + "to be processed on the request thread.", e);
+
+      return null;
+    }
+
+    Metrics.registerGauge("callback_queue_depth", shared::getQueueDepth);
+    Metrics.registerGauge("callback_mailboxes", shared::getMailboxCount);
+
+    return shared;
+  }
+
+  /**
+   * Shuts the shared executor down. A later call to {@link #getShared()} creates a new one.
+   */
+  public static synchronized void shutdownShared() {
+    if (shared != null) {
+      shared.shutdown();
+      shared = null;
+    }
+  }
+
+  /**
+   * Queues work for a conversation.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param task The work to run.
+   * @return False if the mailbox of the conversation is full, or the executor is shut down, and
+   *     the work was rejected.
+   */
+  public boolean submit(String conversationId, Runnable task) {
+    while (!shutdown) {
+      Mailbox mailbox = mailboxes.computeIfAbsent(conversationId, Mailbox::new);
+
+      synchronized (mailbox) {
+        // Evicted after it was looked up, go round for a new one
+        if (mailbox.retired) {
+          continue;
+        }
+
+        if (mailbox.tasks.size() >= mailboxCapacity) {
+          break;
+        }
+
+        mailbox.tasks.add(task);
+        queued.incrementAndGet();
+        Metrics.increment("callback_enqueued_total");
+
+        if (!mailbox.scheduled) {
+          mailbox.scheduled = true;
+          schedule(mailbox);
+        }
+      }
+
+      return true;
+    }
+
+    Metrics.increment("callback_rejected_total");
+
+    return false;
+  }
+
+  /**
+   * Gets the number of tasks waiting across all conversations.
+   *
+   * @return The queued task count.
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * Gets the number of conversations that have a mailbox.
+   *
+   * @return The mailbox count.
+   */
+  public int getMailboxCount() {
+    return mailboxes.size();
+  }
+
+  /**
+   * Stops accepting work and waits briefly for queued work to finish.
+   */
+  public void shutdown() {
+    shutdown = true;
+    evictor.shutdownNow();
+    workers.shutdown();
+
+    try {
+      workers.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void schedule(Mailbox mailbox) {
+    try {
+      workers.execute(mailbox);
+    } catch (RejectedExecutionException e) {
+      // Only after shutdown, the remaining work of the conversation is dropped
+      logger.warning("Dropping queued work for " + mailbox.conversationId + " on shutdown");
+    }
+  }
+
+  private void evictIdle() {
+    long now = System.nanoTime();
+
+    for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+      Mailbox mailbox = entry.getValue();
+
+      synchronized (mailbox) {
+        if (mailbox.scheduled || now - mailbox.lastActive < idleNanos) {
+          continue;
+        }
+
+        mailbox.retired = true;
+      }
+
+      mailboxes.remove(entry.getKey(), mailbox);
+      Metrics.increment("callback_mailboxes_evicted_total");
+    }
+  }
+
+  private static ExecutorService newWorkerPool(int workerCount) {
+    // The queue holds at most one entry per conversation with work
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(workerCount, workerCount, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        BotThreads.newFactory("conversation-worker"));
+
+    // Start them now, so an instance that can't start them fails here and not on a webhook
+    pool.prestartAllCoreThreads();
+
+    return pool;
+  }
+
+  /**
+   * Creates a virtual thread per task executor through reflection, so the bot still builds and
+   * runs on Java 8.
+   *
+   * @return The executor, or null if the JDK has no virtual threads.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      ExecutorService executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+      logger.info("Running conversation mailboxes on virtual threads.");
+
+      return executor;
+    } catch (ReflectiveOperationException e) {
+      logger.info("Virtual threads are not available, using platform worker threads.");
+
+      return null;
+    }
+  }
+
+  /**
+   * The queued tasks of one conversation. While it has work the mailbox is scheduled on a worker,
+   * never on more than one at a time.
+   */
+  private final class Mailbox implements Runnable {
+    private final String conversationId;
+
+    // Guarded by this mailbox
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean scheduled;
+    private boolean retired;
+    private long lastActive = System.nanoTime();
+
+    Mailbox(String conversationId) {
+      this.conversationId = conversationId;
+    }
+
+    @Override
+    public void run() {
+      boolean drained = false;
+      try {
+        for (int i = 0; i < BATCH_SIZE || shutdown; i++) {
+          Runnable task;
+          synchronized (this) {
+            task = tasks.poll();
+            if (task == null) {
+              scheduled = false;
+              lastActive = System.nanoTime();
+              drained = true;
+              return;
+            }
+          }
+
+          queued.decrementAndGet();
+          runTask(task);
+        }
+      } finally {
+        // Let the conversations waiting for a worker go first, then carry on. This also runs when
+        // an Error escapes a task, which would otherwise leave the mailbox marked as scheduled
+        // with nothing ever running it again
+        if (!drained) {
+          schedule(this);
+        }
+      }
+    }
+
+    private void runTask(Runnable task) {
+      try {
+        task.run();
+      } catch (Throwable e) {
+        Metrics.increment("callback_failed_total");
+        logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+      } finally {
+        Metrics.increment("callback_processed_total");
+      }
+    }
+  }
+}
@@ -14,68 +14,95 @@
 package com.google.businessmessages.kitchensink;
 
 // [START import_libraries]
-import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
-import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.businessmessages.v1.Businessmessages;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesCarouselCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesContentInfo;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesDialAction;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesEvent;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesLiveAgentRequest;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesMedia;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesOpenUrlAction;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedAction;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedReply;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSurvey;
-import com.google.cloud.translate.Translate;
-import com.google.cloud.translate.TranslateOptions;
-import com.google.cloud.translate.Translation;
-import com.google.communications.businessmessages.v1.CardWidth;
+import com.google.businessmessages.kitchensink.commands.CommandContext;
+import com.google.businessmessages.kitchensink.commands.CommandProvider;
+import com.google.businessmessages.kitchensink.commands.CommandRegistry;
+import com.google.businessmessages.kitchensink.commands.LazyCommand;
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
 import com.google.communications.businessmessages.v1.EventType;
-import com.google.communications.businessmessages.v1.MediaHeight;
 import com.google.communications.businessmessages.v1.RepresentativeType;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 // [END import_libraries]
 
 /**
  * Main bot logic. Most messages are passed through the routing function to map the user's response
- * to business logic to generate a message in return.
+ * to business logic to generate a message in return. The commands themselves come from the
+ * {@link CommandProvider}s on the class path; the bot is the context they respond through.
  */
-public class KitchenSinkBot {
+public class KitchenSinkBot implements CommandContext {
   private static final Logger logger = Logger.getLogger(KitchenSinkBot.class.getName());
 
   private static final String EXCEPTION_WAS_THROWN = "exception";
 
-  // Object to maintain OAuth2 credentials to call the BM API
-  private GoogleCredential credential;
+  // Expected time to produce the reply to a live agent transfer, until one has been timed
+  private static final long TRANSFER_REPLY_MILLIS =
+      BotConfig.getLong("kitchensink.typing.transferReplyMillis", 1000);
 
-  // Reference to the BM api builder
-  private Businessmessages.Builder builder;
+  // Longer replies are split over several messages
+  private static final int MAX_CHUNK_CHARS =
+      BotConfig.getInt("kitchensink.text.maxChunkChars", 1000);
 
-  // The current representative
-  private BusinessMessagesRepresentative representative;
+  // Echo received message
+  private static final LazyCommand ECHO = new LazyCommand("echo",
+      () -> (context, message, normalizedMessage, conversationId) ->
+          context.sendLongText(message, conversationId));
+
+  // Maps the supported commands to their handlers, collected once from the installed providers
+  private static final CommandDispatcher<LazyCommand> ROUTER =
+      CommandRegistry.load(KitchenSinkBot.class.getClassLoader(), ECHO);
+
+  // One bot per representative type, reused for every message
+  private static final KitchenSinkBot BOT =
+      new KitchenSinkBot(Representatives.forType(RepresentativeType.BOT));
+  private static final KitchenSinkBot HUMAN =
+      new KitchenSinkBot(Representatives.forType(RepresentativeType.HUMAN));
+
+  // Sends the outbound calls in order for each conversation
+  private final MessageSender sender = MessageSender.getInstance();
+
+  // The representative the responses are sent as, copied into each response
+  private final BusinessMessagesRepresentative representative;
 
   public KitchenSinkBot(BusinessMessagesRepresentative representative) {
-    this.representative = representative;
+    this.representative = Representatives.copyOf(representative);
+  }
+
+  /**
+   * Gets the shared bot for a representative type.
+   *
+   * @param representativeType The type of the representative the responses are sent as.
+   * @return The bot.
+   */
+  public static KitchenSinkBot forType(RepresentativeType representativeType) {
+    return representativeType == RepresentativeType.HUMAN ? HUMAN : BOT;
+  }
+
+  /**
+   * Runs messages through command matching and creates their handlers, without responding, so
+   * the routing code is loaded and compiled before the first real message.
+   *
+   * @param messages Sample messages.
+   * @return The names of the matched commands.
+   */
+  public static List<String> dryRunRouting(List<String> messages) {
+    List<String> names = new ArrayList<>(messages.size());
+    for (String message : messages) {
+      LazyCommand command = ROUTER.dispatch(message.toLowerCase().trim());
+      command.getHandler();
+      names.add(command.getName());
+    }
 
-    initBmApi();
+    return names;
   }
 
   /**
@@ -88,40 +115,18 @@ public class KitchenSinkBot {
   public void routeMessage(String message, String conversationId) {
     String normalizedMessage = message.toLowerCase().trim();
 
-    if (normalizedMessage.equals(BotConstants.CMD_LOREM_IPSUM)) {
-      sendResponse(BotConstants.RSP_LOREM_IPSUM, conversationId);
-    } else if (normalizedMessage.equals(BotConstants.CMD_MEDIUM_TEXT)) {
-      sendResponse(BotConstants.RSP_MEDIUM_TEXT, conversationId);
-    } else if (normalizedMessage.equals(BotConstants.CMD_LONG_TEXT)) {
-      sendResponse(BotConstants.RSP_LONG_TEXT, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_SPEAK)) {
-      attemptTranslation(normalizedMessage, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_LINK)) {
-      sendLinkAction(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_DIAL)) {
-      sendDialAction(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_CARD)) {
-      sendRichCard(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_CAROURSEL)) {
-      sendCarouselRichCard(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_WHO)) {
-      sendResponse(BotConstants.RSP_WHO_TEXT, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_CSAT_TRIGGER)) {
-      showCSAT(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_HELP)) {
-      sendResponse(BotConstants.RSP_HELP_TEXT, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_LIVE_AGENT)) {
-      sendLiveAgentAction(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_CHIPS)) {
-      sendChipExamples(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_BOLD)) {
-      sendRichResponse("**" + BotConstants.RSP_LOREM_IPSUM + "**", conversationId);
-    } else if (normalizedMessage.matches(BotConstants.CMD_ITALICS)) {
-      sendRichResponse("*" + BotConstants.RSP_LOREM_IPSUM + "*", conversationId);
-    }  else if (normalizedMessage.matches(BotConstants.CMD_HYPERLINK)) {
-      sendRichResponse(BotConstants.RSP_HYPERLINK_TEXT, conversationId);
-    } else { // Echo received message
-      sendResponse(message, conversationId);
+    LazyCommand command = ROUTER.dispatch(normalizedMessage);
+
+    // Tag the stages run while handling the message with the command
+    StageTimer.setCommand(command.getName());
+    long start = StageTimer.start();
+    try {
+      command.getHandler().handle(this, message, normalizedMessage, conversationId);
+    } finally {
+      // Don't leave an indicator on for a reply the handler gave up on
+      sender.finishTyping(conversationId);
+      StageTimer.record("route", start);
+      StageTimer.setCommand(null);
     }
   }
 
@@ -132,10 +137,12 @@ public class KitchenSinkBot {
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
   public void transferToLiveAgent(String conversationId) {
-    transferToAnAgent(conversationId, new BusinessMessagesRepresentative()
-        .setRepresentativeType(RepresentativeType.HUMAN.toString())
-        .setDisplayName(BotConstants.LIVE_AGENT_NAME)
-        .setAvatarImage(BotConstants.LIVE_AGENT_AVATAR));
+    sender.startTyping(api(), conversationId, "transfer", TRANSFER_REPLY_MILLIS);
+    try {
+      transferToAnAgent(conversationId, Representatives.forType(RepresentativeType.HUMAN));
+    } finally {
+      sender.finishTyping(conversationId);
+    }
   }
 
   /**
@@ -144,33 +151,16 @@ public class KitchenSinkBot {
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
   public void transferToBot(String conversationId) {
-    try {
-      BusinessMessagesEvent event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.REPRESENTATIVE_LEFT.toString())
-              .setRepresentative(
-                  new BusinessMessagesRepresentative()
-                      .setRepresentativeType(RepresentativeType.HUMAN.toString())
-                      .setDisplayName(BotConstants.LIVE_AGENT_NAME)
-                      .setAvatarImage(BotConstants.LIVE_AGENT_AVATAR));
-
-      Businessmessages.Conversations.Events.Create request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
+    BusinessMessagesEvent event =
+        new BusinessMessagesEvent()
+            .setEventType(EventType.REPRESENTATIVE_LEFT.toString())
+            .setRepresentative(Representatives.forType(RepresentativeType.HUMAN));
 
-      request.setEventId(UUID.randomUUID().toString());
+    sender.sendEvent(api(), conversationId, event);
 
-      request.execute();
+    transferToAnAgent(conversationId, Representatives.forType(RepresentativeType.BOT));
 
-      transferToAnAgent(conversationId, new BusinessMessagesRepresentative()
-          .setRepresentativeType(RepresentativeType.BOT.toString())
-          .setDisplayName(BotConstants.BOT_AGENT_NAME)
-          .setAvatarImage(BotConstants.BOT_AGENT_AVATAR));
-
-      sendResponse(BotConstants.RSP_BOT_TRANSFER, conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+    sendResponse(BotConstants.RSP_BOT_TRANSFER, conversationId);
   }
 
   /**
@@ -181,544 +171,203 @@ public class KitchenSinkBot {
    */
   private void transferToAnAgent(String conversationId,
       BusinessMessagesRepresentative representative) {
-    try {
-      BusinessMessagesEvent event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.REPRESENTATIVE_JOINED.toString())
-              .setRepresentative(representative);
-
-      Businessmessages.Conversations.Events.Create request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
+    BusinessMessagesEvent event =
+        new BusinessMessagesEvent()
+            .setEventType(EventType.REPRESENTATIVE_JOINED.toString())
+            .setRepresentative(representative);
 
-      request.setEventId(UUID.randomUUID().toString());
+    sender.sendEvent(api(), conversationId, event);
 
-      request.execute();
-
-      sendResponse(BotConstants.RSP_LIVE_AGENT_TRANSFER, conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+    sendResponse(BotConstants.RSP_LIVE_AGENT_TRANSFER, conversationId);
   }
 
-  /**
-   * Sends the user a CSAT survey.
-   *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
-   */
-  private void showCSAT(String conversationId) {
-    try {
-      Businessmessages.Conversations.Surveys.Create request
-          = builder.build().conversations().surveys()
-          .create("conversations/" + conversationId,
-              new BusinessMessagesSurvey());
-
-      request.setSurveyId(UUID.randomUUID().toString());
-
-      request.execute();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+  @Override
+  public void sendSurvey(String conversationId) {
+    sender.sendSurvey(api(), conversationId);
   }
 
-  /**
-   * Sends a text message along with an open url action to the user.
-   *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
-   */
-  private void sendLinkAction(String conversationId) {
-    try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-
-      // Add the open url action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setOpenUrlAction(
-                  new BusinessMessagesOpenUrlAction()
-                      .setUrl("https://www.google.com"))
-              .setText("Open Google").setPostbackData("open_url")));
-
-      suggestions.addAll(getDefaultMenu());
-
-      // Send the text message and suggestions to the user
-      // Use a fallback text of the actual URL
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setText(BotConstants.RSP_LINK_TEXT)
-          .setRepresentative(representative)
-          .setFallback(BotConstants.RSP_LINK_TEXT + " https://www.google.com")
-          .setSuggestions(suggestions), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+  @Override
+  public void startTyping(String conversationId, long expectedMillis) {
+    String command = StageTimer.currentCommand();
+    sender.startTyping(api(), conversationId, command == null ? "untagged" : command,
+        expectedMillis);
   }
 
   /**
-   * Sends a text message along with a Request a live agent action to the user.
+   * Posts a message to the Business Messages API with the contains rich text
+   * flag set to true. This will make it so the markdown expressions for bold,
+   * italics, and linkified text will render correctly.
    *
+   * @param message The message text to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
-  private void sendChipExamples(String conversationId) {
+  @Override
+  public void sendRichResponse(String message, String conversationId) {
     try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-
-      // Add the request a live agent action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setReply(new BusinessMessagesSuggestedReply()
-              .setText("Example suggestion").setPostbackData("example_postback")));
-
-      // Add the request a live agent action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setOpenUrlAction(
-                  new BusinessMessagesOpenUrlAction()
-                      .setUrl("https://www.google.com"))
-              .setText("Open Google").setPostbackData("open_url")));
-
-      // Add the request a live agent action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setLiveAgentRequest(new BusinessMessagesLiveAgentRequest()));
-
-      // Add the dial action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setDialAction(
-                  new BusinessMessagesDialAction()
-                      .setPhoneNumber("+12223334444"))
-              .setText("Call example").setPostbackData("call_example")));
-
-      suggestions.add(getHelpMenuItem());
-
-      // Send the text message and suggestions to the user
+      // Send plaintext message with default menu to user
       sendResponse(new BusinessMessagesMessage()
           .setMessageId(UUID.randomUUID().toString())
-          .setText(BotConstants.RSP_CHIP_TEXT)
-          .setRepresentative(representative)
-          .setSuggestions(suggestions), conversationId);
+          .setText(message)
+          .setContainsRichText(true)
+          .setRepresentative(getRepresentative())
+          .setFallback(message)
+          .setSuggestions(getDefaultMenu()), conversationId);
     } catch (Exception e) {
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
     }
   }
 
   /**
-   * Sends a text message along with a Request a live agent action to the user.
+   * Posts a message to the Business Messages API.
    *
+   * @param message The message text to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
-  private void sendLiveAgentAction(String conversationId) {
+  @Override
+  public void sendResponse(String message, String conversationId) {
     try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-
-      // Add the request a live agent action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setLiveAgentRequest(new BusinessMessagesLiveAgentRequest()));
-
-      suggestions.add(getHelpMenuItem());
-
-      // Send the text message and suggestions to the user
+      // Send plaintext message with default menu to user
       sendResponse(new BusinessMessagesMessage()
           .setMessageId(UUID.randomUUID().toString())
-          .setText(BotConstants.RSP_LIVE_AGENT_TEXT)
-          .setRepresentative(representative)
-          .setSuggestions(suggestions), conversationId);
+          .setText(message)
+          .setRepresentative(getRepresentative())
+          .setFallback(message)
+          .setSuggestions(getDefaultMenu()), conversationId);
     } catch (Exception e) {
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
     }
   }
 
   /**
-   * Sends a text message along with a dial action to the user.
+   * Posts a text that may be too long for one message, split at paragraph and sentence boundaries
+   * and sent as a single batch. The default menu is attached to the last part only.
    *
+   * @param text The text to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
-  private void sendDialAction(String conversationId) {
-    try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-
-      // Add the dial action
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setDialAction(
-                  new BusinessMessagesDialAction()
-                      .setPhoneNumber("+12223334444"))
-              .setText("Call example").setPostbackData("call_example")));
-
-      suggestions.add(getHelpMenuItem());
-
-      // Send the text message and suggestions to the user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setText(BotConstants.RSP_DIAL_TEXT)
-          .setRepresentative(representative)
-          .setSuggestions(suggestions), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+  @Override
+  public void sendLongText(String text, String conversationId) {
+    List<String> chunks = TextSegmenter.split(text, MAX_CHUNK_CHARS);
+    if (chunks.size() <= 1) {
+      sendResponse(text, conversationId);
+      return;
     }
-  }
 
-  /**
-   * Sends a sample rich card to the user.
-   *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
-   */
-  private void sendRichCard(String conversationId) {
-    try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-      suggestions.add(getHelpMenuItem());
-
-      BusinessMessagesStandaloneCard standaloneCard = getSampleCard();
-
-      // Construct a fallback text for devices that do not support rich cards
-      StringBuilder fallbackText = new StringBuilder();
-      fallbackText.append(standaloneCard.getCardContent().getTitle()).append("\n\n")
-          .append(standaloneCard.getCardContent().getDescription()).append("\n\n")
-          .append(standaloneCard.getCardContent().getMedia().getContentInfo().getFileUrl());
-
-      // Send the rich card message and suggestions to the user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setRichCard(new BusinessMessagesRichCard()
-              .setStandaloneCard(standaloneCard))
-          .setRepresentative(representative)
-          .setFallback(fallbackText.toString())
-          .setSuggestions(suggestions), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    List<BusinessMessagesMessage> messages = new ArrayList<>(chunks.size());
+    for (int i = 0; i < chunks.size(); i++) {
+      messages.add(createTextMessage(chunks.get(i), i == chunks.size() - 1));
     }
-  }
 
-  /**
-   * Creates a sample standalone rich card.
-   *
-   * @return A standalone rich card.
-   */
-  private BusinessMessagesStandaloneCard getSampleCard() {
-    return new BusinessMessagesStandaloneCard()
-        .setCardContent(
-            new BusinessMessagesCardContent()
-                .setTitle("Business Messages!!!")
-                .setDescription("The future of business communication")
-                .setSuggestions(getCardSuggestions())
-                .setMedia(new BusinessMessagesMedia()
-                    .setHeight(MediaHeight.MEDIUM.toString())
-                    .setContentInfo(
-                        new BusinessMessagesContentInfo()
-                            .setFileUrl(BotConstants.SAMPLE_IMAGES[0])
-                    ))
-        );
+    sendResponses(messages, conversationId);
   }
 
   /**
-   * Sends a sample carousel rich card to the user.
+   * Posts a reply while it is being produced. Each part is sent as soon as it is complete, so the
+   * user sees the start of the reply before the producer has finished. If the producer fails, the
+   * text produced so far is still sent.
    *
+   * @param producer Produces the reply text.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
-  private void sendCarouselRichCard(String conversationId) {
-    try {
-      List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-      suggestions.add(getHelpMenuItem());
-
-      BusinessMessagesCarouselCard carouselCard = getSampleCarousel();
-
-      // Construct a fallback text for devices that do not support carousels
-      StringBuilder fallbackText = new StringBuilder();
-      for (BusinessMessagesCardContent cardContent : carouselCard.getCardContents()) {
-        fallbackText.append(cardContent.getTitle()).append("\n\n");
-        fallbackText.append(cardContent.getDescription()).append("\n\n");
-        fallbackText.append(cardContent.getMedia().getContentInfo().getFileUrl()).append("\n");
-        fallbackText.append("---------------------------------------------\n\n");
-      }
+  @Override
+  public void streamResponse(TextProducer producer, String conversationId) {
+    TextSegmenter segmenter = new TextSegmenter(MAX_CHUNK_CHARS,
+        (chunk, last) -> sendResponse(createTextMessage(chunk, last), conversationId));
 
-      // Send the carousel card message and suggestions to the user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setRichCard(new BusinessMessagesRichCard()
-              .setCarouselCard(carouselCard))
-          .setRepresentative(representative)
-          .setFallback(fallbackText.toString())
-          .setSuggestions(suggestions), conversationId);
+    try {
+      producer.produce(segmenter::append);
     } catch (Exception e) {
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    } finally {
+      segmenter.finish();
     }
   }
 
   /**
-   * Creates a sample carousel rich card.
+   * Creates a plain text message.
    *
-   * @return A carousel rich card.
+   * @param text The message text.
+   * @param withMenu Whether to attach the default menu.
+   * @return The message.
    */
-  private BusinessMessagesCarouselCard getSampleCarousel() {
-    List<BusinessMessagesCardContent> cardContents = new ArrayList<>();
-
-    // Create individual cards for the carousel
-    for (int i = 0; i < BotConstants.SAMPLE_IMAGES.length; i++) {
-      cardContents.add(new BusinessMessagesCardContent()
-          .setTitle("Card #" + (i + 1))
-          .setDescription("What do you think?")
-          .setSuggestions(getCardSuggestions())
-          .setMedia(new BusinessMessagesMedia()
-              .setHeight(MediaHeight.MEDIUM.toString())
-              .setContentInfo(new BusinessMessagesContentInfo()
-                  .setFileUrl(BotConstants.SAMPLE_IMAGES[i]))));
+  private BusinessMessagesMessage createTextMessage(String text, boolean withMenu) {
+    BusinessMessagesMessage message = new BusinessMessagesMessage()
+        .setMessageId(UUID.randomUUID().toString())
+        .setText(text)
+        .setRepresentative(getRepresentative())
+        .setFallback(text);
+
+    if (withMenu) {
+      message.setSuggestions(getDefaultMenu());
     }
 
-    return new BusinessMessagesCarouselCard()
-        .setCardContents(cardContents)
-        .setCardWidth(CardWidth.MEDIUM.toString());
-  }
-
-  /**
-   * Suggestions to add to sample cards.
-   *
-   * @return List of suggestions.
-   */
-  private List<BusinessMessagesSuggestion> getCardSuggestions() {
-    List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-
-    suggestions.add(
-        new BusinessMessagesSuggestion()
-            .setReply(new BusinessMessagesSuggestedReply()
-                .setText("\uD83D\uDC4D Like").setPostbackData("like-item")));
-
-    suggestions.add(
-        new BusinessMessagesSuggestion()
-            .setReply(new BusinessMessagesSuggestedReply()
-                .setText("\uD83D\uDC4E Dislike").setPostbackData("dislike-item")));
-
-    return suggestions;
+    return message;
   }
 
   /**
-   * The normalizedMessage should be formatted as "speak french", "speak chinese", etc. the
-   * specified langauge is parsed and mapped to a supported language. If no supported language is
-   * found, an error response is shown.
+   * Posts a multi-part reply to the Business Messages API. The parts are sent back to back, in
+   * order, within a single typing window.
    *
-   * @param normalizedMessage The inbound request from the user.
+   * @param messages The message objects to send the user, in order.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return One future per part, completed once that part has been sent.
    */
-  private void attemptTranslation(String normalizedMessage, String conversationId) {
-    String language = normalizedMessage.replace("speak ", "").trim();
-
-    // Trim any extra text
-    if (language.indexOf(" ") > 0) {
-      language = language.substring(0, language.indexOf(" "));
-    }
+  @Override
+  public List<CompletableFuture<Void>> sendResponses(List<BusinessMessagesMessage> messages,
+      String conversationId) {
+    List<CompletableFuture<Void>> results = sender.sendBatch(api(), conversationId, messages);
 
-    logger.info("Trying to translate to language: " + language);
-
-    // Attempt to match input language to language map
-    if (BotConstants.LANGUAGE_MAP.containsKey(language)) {
-      String languageCode = BotConstants.LANGUAGE_MAP.get(language);
-
-      Translate translate = TranslateOptions.getDefaultInstance().getService();
-      Translation translation =
-          translate.translate(
-              BotConstants.RSP_TO_TRANSLATION,
-              Translate.TranslateOption.sourceLanguage("en"),
-              Translate.TranslateOption.targetLanguage(languageCode),
-              Translate.TranslateOption.format("text"),
-              Translate.TranslateOption.model("base"));
-
-      sendResponse(translation.getTranslatedText(), conversationId);
-    } else { // No matching language found, show default response
-      String noLanguageMatch = "Sorry, but " + language + " is not a supported language.\n\n" +
-          "Here is the list of supported languages: ";
-
-      StringBuilder sb = new StringBuilder();
-      for (String languageName : BotConstants.LANGUAGE_MAP.keySet()) {
-        if (sb.length() != 0) {
-          sb.append(", ");
+    for (int i = 0; i < results.size(); i++) {
+      int part = i;
+      results.get(i).whenComplete((result, e) -> {
+        if (e != null) {
+          logger.log(Level.SEVERE, "Part " + part + " of a multi-part reply failed", e);
         }
-        // Upper case the first letter of the language
-        sb.append(languageName.substring(0, 1).toUpperCase());
-        sb.append(languageName.substring(1));
-      }
-
-      noLanguageMatch += sb.toString();
-
-      sendResponse(noLanguageMatch, conversationId);
+      });
     }
-  }
 
-  /**
-   * Posts a message to the Business Messages API with the contains rich text
-   * flag set to true. This will make it so the markdown expressions for bold,
-   * italics, and linkified text will render correctly.
-   *
-   * @param message The message text to send the user.
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
-   */
-  private void sendRichResponse(String message, String conversationId) {
-    try {
-      // Send plaintext message with default menu to user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setText(message)
-          .setContainsRichText(true)
-          .setRepresentative(representative)
-          .setFallback(message)
-          .setSuggestions(getDefaultMenu()), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
-  }
-
-  /**
-   * Posts a message to the Business Messages API.
-   *
-   * @param message The message text to send the user.
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
-   */
-  private void sendResponse(String message, String conversationId) {
-    try {
-      // Send plaintext message with default menu to user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setText(message)
-          .setRepresentative(representative)
-          .setFallback(message)
-          .setSuggestions(getDefaultMenu()), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+    return results;
   }
 
   /**
    * Posts a message to the Business Messages API, first sending a typing indicator event and
-   * sending a stop typing event after the message has been sent.
+   * sending a stop typing event after the message has been sent. The calls are made
+   * asynchronously and in order with the other messages for the conversation.
    *
    * @param message The message object to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return A future completed once the message has been sent.
    */
-  private void sendResponse(BusinessMessagesMessage message,
+  @Override
+  public CompletableFuture<Void> sendResponse(BusinessMessagesMessage message,
       String conversationId) {
-    try {
-      // Send typing indicator
-      BusinessMessagesEvent event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.TYPING_STARTED.toString());
-
-      Businessmessages.Conversations.Events.Create request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
-
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
-
-      logger.info("message id: " + message.getMessageId());
-      logger.info("message body: " + message.toPrettyString());
-
-      // Send the message
-      Businessmessages.Conversations.Messages.Create messageRequest
-          = builder.build().conversations().messages()
-          .create("conversations/" + conversationId, message);
-
-      // Setup retries with exponential backoff
-      HttpRequest httpRequest =
-          ((AbstractGoogleClientRequest) messageRequest).buildHttpRequest();
-
-      httpRequest.setUnsuccessfulResponseHandler(new
-          HttpBackOffUnsuccessfulResponseHandler(
-          new ExponentialBackOff()));
-
-      httpRequest.execute();
-
-      // Stop typing indicator
-      event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.TYPING_STOPPED.toString());
-
-      request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
-
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+    return sender.sendMessage(api(), conversationId, message);
   }
 
   /**
-   * Creates the default menu items for responses.
+   * Gets the default menu items for responses.
    *
    * @return List of suggestions to form a menu.
    */
-  private List<BusinessMessagesSuggestion> getDefaultMenu() {
-    List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
-    suggestions.add(getHelpMenuItem());
-
-    suggestions.add(new BusinessMessagesSuggestion()
-        .setReply(new BusinessMessagesSuggestedReply()
-            .setText("Rich card").setPostbackData("card")
-        ));
-
-    suggestions.add(new BusinessMessagesSuggestion()
-        .setReply(new BusinessMessagesSuggestedReply()
-            .setText("Carousel").setPostbackData("carousel")
-        ));
-
-    if (representative.getRepresentativeType().equals(RepresentativeType.HUMAN.toString())) {
-      suggestions.add(new BusinessMessagesSuggestion()
-          .setReply(new BusinessMessagesSuggestedReply()
-              .setText("Back to bot").setPostbackData("back_to_bot")
-          ));
-    }
-
-    return suggestions;
+  @Override
+  public List<BusinessMessagesSuggestion> getDefaultMenu() {
+    return ResponseTemplates.defaultMenu(isLiveAgent());
   }
 
-  /**
-   * Get the help menu suggested reply.
-   *
-   * @return A help suggested reply.
-   */
-  private BusinessMessagesSuggestion getHelpMenuItem() {
-    return new BusinessMessagesSuggestion()
-        .setReply(new BusinessMessagesSuggestedReply()
-            .setText("Help").setPostbackData("help")
-        );
+  @Override
+  public BusinessMessagesRepresentative getRepresentative() {
+    return Representatives.copyOf(representative);
   }
 
-  /**
-   * Initializes credentials used by the Business Messages API.
-   */
-  private void initCredentials() {
-    logger.info("Initializing credentials for Business Messages.");
-
-    try {
-      this.credential = GoogleCredential.getApplicationDefault();
-      this.credential = credential.createScoped(Arrays.asList(
-          "https://www.googleapis.com/auth/businessmessages"));
-
-      this.credential.refreshToken();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+  @Override
+  public boolean isLiveAgent() {
+    return representative.getRepresentativeType().equals(RepresentativeType.HUMAN.toString());
   }
 
   /**
-   * Initializes the BM API object.
+   * Gets the BM API object, refreshing its access token if needed.
    */
-  private void initBmApi() {
-    try {
-      if (this.credential == null) {
-        initCredentials();
-      }
-
-      HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-      JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-
-      // create instance of the BM API
-      builder = new Businessmessages
-          .Builder(httpTransport, jsonFactory, null)
-          .setApplicationName("BM Kitchen Sink");
-
-      // set the API credentials and endpoint
-      builder.setHttpRequestInitializer(credential);
-      builder.setRootUrl(BotConstants.BM_API_URL);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+  private static Businessmessages api() {
+    return BmApiClient.getInstance().getApi();
   }
 }
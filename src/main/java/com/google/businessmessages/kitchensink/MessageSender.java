@@ -0,0 +1,689 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.businessmessages.v1.Businessmessages;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesEvent;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSurvey;
+import com.google.businessmessages.kitchensink.logging.StructuredLog;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
+import com.google.businessmessages.kitchensink.outbound.MessageJournal;
+import com.google.businessmessages.kitchensink.outbound.OutboundGovernor;
+import com.google.businessmessages.kitchensink.outbound.OutboundGovernor.CallType;
+import com.google.communications.businessmessages.v1.EventType;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Non-blocking send pipeline for the Business Messages API. Every outbound call runs on a shared
+ * worker pool and returns a future. Calls that are visible to the user (messages, representative
+ * events and surveys) are chained per conversation so they are delivered in the order they were
+ * submitted, while calls for different conversations run in parallel. Every call is admitted by
+ * the {@link OutboundGovernor}, with typing indicators treated as cosmetic. Messages are recorded
+ * in a {@link MessageJournal} until the API accepts them, and sent again if that doesn't happen.
+ *
+ * <p>On App Engine the workers are background threads, and where there are none the calls run on
+ * the request threads that queue them, see {@link BotThreads}.
+ */
+public final class MessageSender {
+  private static final Logger logger = Logger.getLogger(MessageSender.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  // Number of worker threads making outbound API calls, which is also the default number of
+  // messages the governor lets through at once
+  private static final int SENDER_THREADS =
+      BotConfig.getInt("kitchensink.outbound.senderThreads", 16);
+
+  // When true, typing events are only sent for replies expected to be slow
+  private static final boolean ADAPTIVE_TYPING =
+      BotConfig.getBoolean("kitchensink.typing.adaptive", true);
+
+  // Replies expected to take at least this long show a typing indicator
+  private static final long TYPING_THRESHOLD_MILLIS =
+      BotConfig.getLong("kitchensink.typing.thresholdMillis", 500);
+
+  // Upper bound on the time spent retrying a message, so a failing API can't hold a sender thread
+  private static final int MAX_BACKOFF_MILLIS =
+      BotConfig.getInt("kitchensink.outbound.maxBackOffMillis", 30000);
+
+  // Messages still unconfirmed this long after they were recorded are sent again
+  private static final long JOURNAL_RETRY_AFTER_MILLIS =
+      BotConfig.getLong("kitchensink.journal.retryAfterMillis", 60000);
+
+  private static final long JOURNAL_DRAIN_INTERVAL_SECONDS =
+      BotConfig.getLong("kitchensink.journal.drainIntervalSeconds", 30);
+
+  // Command tag for messages sent again from the journal
+  private static final String REPLAY_COMMAND = "replay";
+
+  private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+  private static final MessageSender INSTANCE = new MessageSender();
+
+  // Runs the outbound calls. Without worker threads that can call the App Engine APIs (URL Fetch
+  // and app identity), the calls run on the request threads that queue them
+  private final Executor executor;
+
+  // Whether the journal is drained by a scheduled thread rather than by the request threads
+  private final boolean drainerThread;
+
+  // When the request threads next drain the journal, zero until the first drain
+  private final AtomicLong nextDrainMillis = new AtomicLong();
+
+  private final long startTime = System.currentTimeMillis();
+
+  // Rate limits, circuit breaker and bulkheads shared by every outbound call
+  private final OutboundGovernor governor = OutboundGovernor.getInstance();
+
+  // The last queued call for every conversation with calls in flight
+  private final ConcurrentMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+  // Replies that are still being produced, by conversation
+  private final ConcurrentMap<String, TypingWindow> typingWindows = new ConcurrentHashMap<>();
+
+  // Moving average of the time taken to produce each kind of reply, in milliseconds
+  private final ConcurrentMap<String, Long> replyMillis = new ConcurrentHashMap<>();
+
+  // Unconfirmed messages, null if journaling is off or the journal could not be opened
+  private final MessageJournal journal;
+
+  // IDs of journaled messages queued or being sent by this process, which replays leave alone
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  private MessageSender() {
+    this.drainerThread = BotThreads.workersCanCallApis();
+    if (drainerThread) {
+      this.executor = Executors.newFixedThreadPool(SENDER_THREADS,
+          BotThreads.newFactory("bm-sender"));
+    } else {
+      logger.warning("Background threads are not available, sending on the request threads.");
+      this.executor = Runnable::run;
+    }
+
+    this.journal = openJournal();
+    if (journal != null) {
+      Metrics.registerGauge("bm_journal_pending", journal::size);
+      if (drainerThread) {
+        startJournalDrainer();
+      }
+    }
+  }
+
+  /**
+   * Gets the process-wide sender.
+   *
+   * @return The shared sender.
+   */
+  public static MessageSender getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Shows the typing indicator while a reply is being produced, if the reply is expected to take
+   * long enough for the indicator to be worth its extra API calls. The expected time starts out
+   * as the given estimate and then follows the time this kind of reply actually took. The event is
+   * queued with the other calls for the conversation; the next message sent to the conversation
+   * clears the indicator, and {@link #finishTyping} clears it if no message follows.
+   *
+   * @param bmApi The BM API object.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param replyKind The kind of reply, such as the command producing it.
+   * @param expectedMillis How long the reply is expected to take until one has been timed.
+   */
+  public void startTyping(Businessmessages bmApi, String conversationId, String replyKind,
+      long expectedMillis) {
+    if (!ADAPTIVE_TYPING) {
+      return;
+    }
+
+    String command = StageTimer.currentCommand();
+    boolean show = replyMillis.getOrDefault(replyKind, expectedMillis) >= TYPING_THRESHOLD_MILLIS;
+
+    typingWindows.computeIfAbsent(conversationId, key -> {
+      if (show) {
+        enqueue(conversationId,
+            () -> createEvent(bmApi, conversationId, EventType.TYPING_STARTED, command));
+      }
+      return new TypingWindow(bmApi, replyKind, show);
+    });
+  }
+
+  /**
+   * Ends the typing window of a reply that was not sent, stopping the indicator if it was shown.
+   * Does nothing once a message has been sent for the reply.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  public void finishTyping(String conversationId) {
+    TypingWindow window = typingWindows.remove(conversationId);
+    if (window == null || !window.shown) {
+      return;
+    }
+
+    String command = StageTimer.currentCommand();
+
+    enqueue(conversationId,
+        () -> createEvent(window.bmApi, conversationId, EventType.TYPING_STOPPED, command));
+  }
+
+  /**
+   * Ends the typing window of a reply that is being sent, timing how long it took to produce.
+   *
+   * @return Whether a typing indicator was shown for the reply.
+   */
+  private boolean endTypingWindow(String conversationId) {
+    TypingWindow window = typingWindows.remove(conversationId);
+    if (window == null) {
+      return false;
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - window.startNanos);
+    replyMillis.merge(window.replyKind, elapsedMillis,
+        (average, latest) -> average + (latest - average) / 4);
+
+    return window.shown;
+  }
+
+  /**
+   * Sends a message. With the adaptive typing policy a typing indicator is only shown if
+   * {@link #startTyping} was called for the reply, and it is only stopped explicitly when the
+   * message fails, as a delivered message already ends it. Otherwise every message is wrapped in
+   * a typing started event that runs alongside the send and a typing stopped event sent once the
+   * outcome of both is known.
+   *
+   * @param bmApi The BM API object.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param message The message object to send the user.
+   * @return A future completed once the message has been accepted by the API.
+   */
+  public CompletableFuture<Void> sendMessage(Businessmessages bmApi, String conversationId,
+      BusinessMessagesMessage message) {
+    // The command is tracked per thread, so capture it before handing off to the workers
+    String command = StageTimer.currentCommand();
+
+    record(conversationId, message);
+
+    if (ADAPTIVE_TYPING) {
+      boolean typing = endTypingWindow(conversationId);
+
+      // The start event, if any, is queued ahead of the message, so it has run by the time the
+      // message fails
+      return enqueue(conversationId, () -> {
+        try {
+          createMessage(bmApi, conversationId, message, command);
+        } catch (CompletionException e) {
+          if (typing) {
+            createEvent(bmApi, conversationId, EventType.TYPING_STOPPED, command);
+          }
+          throw e;
+        }
+      });
+    }
+
+    CompletableFuture<Void> typingStarted = CompletableFuture.runAsync(
+        () -> createEvent(bmApi, conversationId, EventType.TYPING_STARTED, command), executor);
+
+    CompletableFuture<Void> sent = enqueue(conversationId,
+        () -> createMessage(bmApi, conversationId, message, command));
+
+    // Stop typing only after the start event so the indicator can't be left on
+    CompletableFuture.allOf(typingStarted, sent)
+        .handleAsync((result, e) -> {
+          createEvent(bmApi, conversationId, EventType.TYPING_STOPPED, command);
+          return null;
+        }, executor);
+
+    return sent;
+  }
+
+  /**
+   * Sends a multi-part reply. The parts are sent back to back by a single queued task, so they
+   * keep their order, share one typing window and reuse the same keep-alive connection. A failed
+   * part does not stop the parts after it.
+   *
+   * @param bmApi The BM API object.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param messages The parts of the reply, in the order they are shown.
+   * @return One future per part, completed once that part has been accepted by the API.
+   */
+  public List<CompletableFuture<Void>> sendBatch(Businessmessages bmApi, String conversationId,
+      List<BusinessMessagesMessage> messages) {
+    String command = StageTimer.currentCommand();
+
+    List<CompletableFuture<Void>> results = new ArrayList<>(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      results.add(new CompletableFuture<>());
+    }
+
+    for (BusinessMessagesMessage message : messages) {
+      record(conversationId, message);
+    }
+
+    boolean typing = ADAPTIVE_TYPING && endTypingWindow(conversationId);
+
+    enqueue(conversationId, () -> {
+      if (!ADAPTIVE_TYPING) {
+        createEvent(bmApi, conversationId, EventType.TYPING_STARTED, command);
+      }
+
+      boolean failed = false;
+      for (int i = 0; i < messages.size(); i++) {
+        try {
+          createMessage(bmApi, conversationId, messages.get(i), command);
+          results.get(i).complete(null);
+        } catch (CompletionException e) {
+          failed = true;
+          results.get(i).completeExceptionally(e.getCause() == null ? e : e.getCause());
+        }
+      }
+
+      if (!ADAPTIVE_TYPING) {
+        createEvent(bmApi, conversationId, EventType.TYPING_STOPPED, command);
+      } else if (failed && typing) {
+        // The start event was queued ahead of this task, so it has already run
+        createEvent(bmApi, conversationId, EventType.TYPING_STOPPED, command);
+      }
+    }).whenComplete((result, e) -> {
+      if (e != null) {
+        results.forEach(part -> part.completeExceptionally(e));
+        messages.forEach(message -> inFlight.remove(message.getMessageId()));
+      }
+    });
+
+    return results;
+  }
+
+  /**
+   * Sends an event, ordered with the other calls for the conversation.
+   *
+   * @param bmApi The BM API object.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param event The event to send.
+   * @return A future completed once the event has been accepted by the API.
+   */
+  public CompletableFuture<Void> sendEvent(Businessmessages bmApi, String conversationId,
+      BusinessMessagesEvent event) {
+    return enqueue(conversationId,
+        () -> createEvent(bmApi, conversationId, event, CallType.MESSAGE));
+  }
+
+  /**
+   * Sends a survey, ordered with the other calls for the conversation.
+   *
+   * @param bmApi The BM API object.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return A future completed once the survey has been accepted by the API.
+   */
+  public CompletableFuture<Void> sendSurvey(Businessmessages bmApi, String conversationId) {
+    return enqueue(conversationId, () -> {
+      try {
+        Businessmessages.Conversations.Surveys.Create request
+            = bmApi.conversations().surveys()
+            .create("conversations/" + conversationId, new BusinessMessagesSurvey());
+
+        request.setSurveyId(UUID.randomUUID().toString());
+
+        governor.call(CallType.MESSAGE, conversationId, () -> {
+          Metrics.increment("bm_outbound_requests_total{call=\"survey\"}");
+          return request.execute();
+        });
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    });
+  }
+
+  /**
+   * Queues a call behind the previous call for the same conversation. A failed call does not stop
+   * the calls queued after it.
+   */
+  private CompletableFuture<Void> enqueue(String conversationId, Runnable call) {
+    CompletableFuture<Void> next = tails.compute(conversationId, (key, previous) ->
+        (previous == null ? COMPLETED : previous)
+            .handle((result, e) -> null)
+            .thenRunAsync(call, executor));
+
+    next.whenComplete((result, e) -> {
+      // Forget the conversation once nothing is queued behind this call
+      tails.remove(conversationId, next);
+
+      if (e != null) {
+        logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+      }
+    });
+
+    return next;
+  }
+
+  /**
+   * Posts a message, retrying with exponential backoff.
+   */
+  private void createMessage(Businessmessages bmApi, String conversationId,
+      BusinessMessagesMessage message, String command) {
+    long start = StageTimer.start();
+    try {
+      StructuredLog.at(logger, Level.INFO)
+          .event("message_send")
+          .with("conversationId", conversationId)
+          .with("messageId", message.getMessageId())
+          .with("command", command)
+          .payload(() -> toPrettyString(message))
+          .log();
+
+      // Send the message
+      Businessmessages.Conversations.Messages.Create messageRequest
+          = bmApi.conversations().messages()
+          .create("conversations/" + conversationId, message);
+
+      long sendTime = System.currentTimeMillis();
+
+      // Retry with exponential backoff, each attempt admitted by the governor on its own
+      governor.callWithRetries(CallType.MESSAGE, conversationId,
+          new ExponentialBackOff.Builder()
+              .setMaxElapsedTimeMillis(MAX_BACKOFF_MILLIS)
+              .build(),
+          millis -> {
+            long backOffStart = StageTimer.start();
+            Sleeper.DEFAULT.sleep(millis);
+            StageTimer.record("backoff", command, backOffStart);
+          },
+          () -> {
+            Metrics.increment("bm_outbound_requests_total{call=\"message\"}");
+            return messageRequest.execute();
+          });
+
+      ReceiptTracker.getInstance().recordSent(message.getMessageId(), sendTime);
+
+      acknowledge(message.getMessageId());
+    } catch (HttpResponseException e) {
+      // A message the API refuses as invalid will never go through, so don't replay it
+      if (journal != null && e.getStatusCode() >= 400 && e.getStatusCode() < 500
+          && e.getStatusCode() != 408 && e.getStatusCode() != 429) {
+        Metrics.increment("bm_journal_dropped_total");
+        acknowledge(message.getMessageId());
+      }
+      throw new CompletionException(e);
+    } catch (Exception e) {
+      throw new CompletionException(e);
+    } finally {
+      inFlight.remove(message.getMessageId());
+      StageTimer.record("message_send", command, start);
+    }
+  }
+
+  /**
+   * Removes a message from the journal. The message has already been sent or refused, so a
+   * journal that can't record that only means the message may be sent again, which the API
+   * de-dupes by ID.
+   */
+  private void acknowledge(String messageId) {
+    if (journal == null) {
+      return;
+    }
+
+    try {
+      journal.acknowledge(messageId);
+    } catch (RuntimeException e) {
+      Metrics.increment("bm_journal_acknowledge_failed_total");
+      logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+    }
+  }
+
+  /**
+   * Posts a typing event. Failures are logged and otherwise ignored.
+   */
+  private void createEvent(Businessmessages bmApi, String conversationId, EventType eventType,
+      String command) {
+    long start = StageTimer.start();
+    try {
+      createEvent(bmApi, conversationId, new BusinessMessagesEvent()
+          .setEventType(eventType.toString()), CallType.COSMETIC);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+    } finally {
+      StageTimer.record("typing", command, start);
+    }
+  }
+
+  private void createEvent(Businessmessages bmApi, String conversationId,
+      BusinessMessagesEvent event, CallType callType) {
+    try {
+      Businessmessages.Conversations.Events.Create request
+          = bmApi.conversations().events()
+          .create("conversations/" + conversationId, event);
+
+      request.setEventId(UUID.randomUUID().toString());
+
+      governor.call(callType, conversationId, () -> {
+        Metrics.increment("bm_outbound_requests_total{call=\""
+            + event.getEventType().toLowerCase() + "\"}");
+        return request.execute();
+      });
+    } catch (Exception e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * Opens the journal of unconfirmed messages, recovering the ones left by the previous process
+   * that used the same file. The default path is under java.io.tmpdir, which on App Engine and
+   * Cloud Run belongs to the instance, so only kitchensink.journal.path pointing at storage that
+   * outlives the instance carries messages over to a new one.
+   */
+  private static MessageJournal openJournal() {
+    if (!BotConfig.getBoolean("kitchensink.journal.enabled", true)) {
+      return null;
+    }
+
+    Path path = Paths.get(BotConfig.getString("kitchensink.journal.path",
+        Paths.get(System.getProperty("java.io.tmpdir"), "kitchensink", "outbound.journal")
+            .toString()));
+
+    try {
+      MessageJournal journal = MessageJournal.open(path,
+          BotConfig.getInt("kitchensink.journal.sizeBytes", 8 * 1024 * 1024),
+          BotConfig.getBoolean("kitchensink.journal.sync", false));
+
+      logger.info("Opened message journal " + path + " with " + journal.size()
+          + " unconfirmed messages.");
+
+      return journal;
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Sends the unconfirmed messages: right away for the ones recovered at startup, afterwards the
+   * ones that have stayed unconfirmed for too long. Also compacts the journal once half of it is
+   * in use.
+   */
+  private void startJournalDrainer() {
+    ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(
+        BotThreads.newFactory("bm-journal-drainer"));
+
+    drainer.execute(() -> replayJournal(startTime));
+
+    drainer.scheduleWithFixedDelay(
+        () -> drainJournal(System.currentTimeMillis() - JOURNAL_RETRY_AFTER_MILLIS),
+        JOURNAL_DRAIN_INTERVAL_SECONDS, JOURNAL_DRAIN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Drains the journal from the request thread of a message being sent, when there is no drainer
+   * thread. The first drain sends the messages recovered at startup.
+   */
+  private void drainJournalIfDue() {
+    long now = System.currentTimeMillis();
+    long due = nextDrainMillis.get();
+    if (now < due || !nextDrainMillis.compareAndSet(due,
+        now + TimeUnit.SECONDS.toMillis(JOURNAL_DRAIN_INTERVAL_SECONDS))) {
+      return;
+    }
+
+    if (due == 0) {
+      replayJournal(startTime);
+    } else {
+      drainJournal(now - JOURNAL_RETRY_AFTER_MILLIS);
+    }
+  }
+
+  /**
+   * Sends the messages unconfirmed since before a point in time again, and compacts the journal
+   * once half of it is in use.
+   */
+  private void drainJournal(long createdBefore) {
+    replayJournal(createdBefore);
+
+    try {
+      if (journal.usage() > 0.5) {
+        journal.compact();
+      }
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    }
+  }
+
+  /**
+   * Queues the journaled messages recorded before a point in time to be sent again, unless this
+   * process is still sending them. Each conversation's messages are queued as one call behind
+   * whatever that conversation is already sending, so they go out in the order they were recorded.
+   * The API de-dupes messages by ID, so a message that did arrive is not shown twice.
+   */
+  private void replayJournal(long createdBefore) {
+    try {
+      List<MessageJournal.Entry> entries = journal.pendingBefore(createdBefore);
+      if (entries.isEmpty()) {
+        return;
+      }
+
+      Businessmessages bmApi = BmApiClient.getInstance().getApi();
+
+      Map<String, List<BusinessMessagesMessage>> byConversation = new LinkedHashMap<>();
+      for (MessageJournal.Entry entry : entries) {
+        BusinessMessagesMessage message = JacksonFactory.getDefaultInstance()
+            .fromString(entry.getMessageJson(), BusinessMessagesMessage.class);
+
+        if (!inFlight.add(entry.getMessageId())) {
+          continue;
+        }
+
+        Metrics.increment("bm_journal_replayed_total");
+
+        byConversation.computeIfAbsent(entry.getConversationId(), key -> new ArrayList<>())
+            .add(message);
+      }
+
+      byConversation.forEach((conversationId, messages) ->
+          enqueue(conversationId, () -> replayConversation(bmApi, conversationId, messages)));
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    }
+  }
+
+  /**
+   * Sends a conversation's journaled messages again in order, stopping at the first one that
+   * fails so the later ones don't overtake it. The ones left are replayed on the next drain.
+   */
+  private void replayConversation(Businessmessages bmApi, String conversationId,
+      List<BusinessMessagesMessage> messages) {
+    for (int i = 0; i < messages.size(); i++) {
+      try {
+        createMessage(bmApi, conversationId, messages.get(i), REPLAY_COMMAND);
+      } catch (CompletionException e) {
+        messages.subList(i + 1, messages.size())
+            .forEach(message -> inFlight.remove(message.getMessageId()));
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Records a message in the journal before it is queued. A message that can't be recorded is
+   * still sent, it just won't be replayed.
+   */
+  private void record(String conversationId, BusinessMessagesMessage message) {
+    if (journal == null) {
+      return;
+    }
+
+    try {
+      journal.append(conversationId, message.getMessageId(),
+          JacksonFactory.getDefaultInstance().toString(message));
+      inFlight.add(message.getMessageId());
+    } catch (IOException e) {
+      Metrics.increment("bm_journal_append_failed_total");
+      logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+    }
+
+    if (!drainerThread) {
+      drainJournalIfDue();
+    }
+  }
+
+  private static String toPrettyString(BusinessMessagesMessage message) {
+    try {
+      return message.toPrettyString();
+    } catch (IOException e) {
+      return "<unprintable: " + e.getMessage() + ">";
+    }
+  }
+
+  /**
+   * A reply being produced for a conversation.
+   */
+  private static final class TypingWindow {
+    private final long startNanos = System.nanoTime();
+    private final Businessmessages bmApi;
+    private final String replyKind;
+
+    // Whether a typing started event was queued for the reply
+    private final boolean shown;
+
+    TypingWindow(Businessmessages bmApi, String replyKind, boolean shown) {
+      this.bmApi = bmApi;
+      this.replyKind = replyKind;
+      this.shown = shown;
+    }
+  }
+}
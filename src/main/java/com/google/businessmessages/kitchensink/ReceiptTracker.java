@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.callback.CallbackEvent;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.state.LruCache;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+// [END import_libraries]
+
+/**
+ * Turns delivery and read receipts into metrics. Send times of outbound messages are kept in a
+ * bounded, expiring index so each receipt can be matched to its message and the time from send to
+ * delivery or read recorded in a histogram.
+ */
+public final class ReceiptTracker {
+
+  private static final ReceiptTracker INSTANCE = new ReceiptTracker();
+
+  // Metric labels of the receipt types the API sends. The type comes from the webhook, so any
+  // other value shares one label rather than adding a time series per distinct string.
+  private static final Map<String, String> LABELS = new HashMap<>();
+  private static final String OTHER_LABEL = label("other");
+
+  static {
+    for (String receiptType : new String[] {"DELIVERED", "READ", "RECEIPT_TYPE_UNSPECIFIED"}) {
+      LABELS.put(receiptType, label(receiptType));
+    }
+  }
+
+  // Send time in milliseconds of recent outbound messages, by message ID
+  private final LruCache<String, Long> sendTimes;
+
+  private ReceiptTracker() {
+    this.sendTimes = new LruCache<>(
+        BotConfig.getInt("kitchensink.receipts.maxTrackedMessages", 50000),
+        TimeUnit.SECONDS.toMillis(
+            BotConfig.getInt("kitchensink.receipts.trackingTtlSeconds", 24 * 60 * 60)));
+  }
+
+  /**
+   * Gets the process-wide tracker.
+   *
+   * @return The shared tracker.
+   */
+  public static ReceiptTracker getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records when a message was sent.
+   *
+   * @param messageId The ID of the outbound message.
+   * @param sendTimeMillis The time the message was sent.
+   */
+  public void recordSent(String messageId, long sendTimeMillis) {
+    sendTimes.put(messageId, sendTimeMillis);
+  }
+
+  /**
+   * Counts a batch of receipts by type and records the latency of each receipt whose message was
+   * sent by this instance.
+   *
+   * @param receipts The receipts from one webhook.
+   */
+  public void recordReceipts(List<CallbackEvent.Receipt> receipts) {
+    long now = System.currentTimeMillis();
+
+    for (CallbackEvent.Receipt receipt : receipts) {
+      String label = LABELS.getOrDefault(receipt.getReceiptType(), OTHER_LABEL);
+
+      Metrics.increment("bm_receipts_total" + label);
+
+      Long sendTime = receipt.getMessageId() == null ? null : sendTimes.get(receipt.getMessageId());
+      if (sendTime != null) {
+        Metrics.histogram("bm_receipt_latency_ms" + label).record(now - sendTime);
+      } else {
+        Metrics.increment("bm_receipts_unmatched_total" + label);
+      }
+    }
+  }
+
+  private static String label(String receiptType) {
+    return "{receipt_type=\"" + receiptType + "\"}";
+  }
+}
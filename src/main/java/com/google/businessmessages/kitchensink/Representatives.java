@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+// [END import_libraries]
+
+/**
+ * The representatives the bot speaks as. The generated model classes are mutable maps, so the
+ * templates never leave this class: every caller gets its own copy, and a message that changes
+ * its representative can't leak the change into other conversations.
+ */
+public final class Representatives {
+
+  private static final BusinessMessagesRepresentative BOT = new BusinessMessagesRepresentative()
+      .setRepresentativeType(RepresentativeType.BOT.toString())
+      .setDisplayName(BotConstants.BOT_AGENT_NAME)
+      .setAvatarImage(BotConstants.BOT_AGENT_AVATAR);
+
+  private static final BusinessMessagesRepresentative HUMAN = new BusinessMessagesRepresentative()
+      .setRepresentativeType(RepresentativeType.HUMAN.toString())
+      .setDisplayName(BotConstants.LIVE_AGENT_NAME)
+      .setAvatarImage(BotConstants.LIVE_AGENT_AVATAR);
+
+  private Representatives() {
+  }
+
+  /**
+   * Gets a copy of the representative for a type.
+   *
+   * @param representativeType The representative type.
+   * @return A representative owned by the caller.
+   */
+  public static BusinessMessagesRepresentative forType(RepresentativeType representativeType) {
+    return copyOf(representativeType == RepresentativeType.HUMAN ? HUMAN : BOT);
+  }
+
+  /**
+   * Copies a representative. The fields are copied with the setters rather than clone(), which
+   * deep copies through reflection and costs more than building the message around it.
+   *
+   * @param representative The representative to copy.
+   * @return A representative owned by the caller.
+   */
+  public static BusinessMessagesRepresentative copyOf(
+      BusinessMessagesRepresentative representative) {
+    return new BusinessMessagesRepresentative()
+        .setRepresentativeType(representative.getRepresentativeType())
+        .setDisplayName(representative.getDisplayName())
+        .setAvatarImage(representative.getAvatarImage());
+  }
+}
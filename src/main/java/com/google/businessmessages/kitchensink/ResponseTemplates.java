@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesCarouselCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesContentInfo;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesDialAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesLiveAgentRequest;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMedia;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesOpenUrlAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedReply;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import com.google.communications.businessmessages.v1.CardWidth;
+import com.google.communications.businessmessages.v1.MediaHeight;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+// [END import_libraries]
+
+/**
+ * The static parts of the bot's responses. Suggestions, cards, carousels and fallback texts are
+ * built once when the class loads and shared by every message, so only the message ID and the
+ * representative are set per send. The shared objects are mutable API models and must be treated
+ * as read-only.
+ */
+public final class ResponseTemplates {
+
+  // Get the help menu suggested reply
+  public static final BusinessMessagesSuggestion HELP_MENU_ITEM = new BusinessMessagesSuggestion()
+      .setReply(new BusinessMessagesSuggestedReply()
+          .setText("Help").setPostbackData("help")
+      );
+
+  // Default menu items for responses from the bot
+  public static final List<BusinessMessagesSuggestion> DEFAULT_MENU = Collections.unmodifiableList(
+      Arrays.asList(
+          HELP_MENU_ITEM,
+          new BusinessMessagesSuggestion()
+              .setReply(new BusinessMessagesSuggestedReply()
+                  .setText("Rich card").setPostbackData("card")
+              ),
+          new BusinessMessagesSuggestion()
+              .setReply(new BusinessMessagesSuggestedReply()
+                  .setText("Carousel").setPostbackData("carousel")
+              )));
+
+  // Default menu items for responses from a live agent, adding a way back to the bot
+  public static final List<BusinessMessagesSuggestion> LIVE_AGENT_MENU;
+
+  static {
+    List<BusinessMessagesSuggestion> suggestions = new ArrayList<>(DEFAULT_MENU);
+    suggestions.add(new BusinessMessagesSuggestion()
+        .setReply(new BusinessMessagesSuggestedReply()
+            .setText("Back to bot").setPostbackData("back_to_bot")
+        ));
+
+    LIVE_AGENT_MENU = Collections.unmodifiableList(suggestions);
+  }
+
+  public static final List<BusinessMessagesSuggestion> HELP_ONLY =
+      Collections.singletonList(HELP_MENU_ITEM);
+
+  private static final BusinessMessagesSuggestion OPEN_URL_ACTION =
+      new BusinessMessagesSuggestion()
+          .setAction(new BusinessMessagesSuggestedAction()
+              .setOpenUrlAction(
+                  new BusinessMessagesOpenUrlAction()
+                      .setUrl("https://www.google.com"))
+              .setText("Open Google").setPostbackData("open_url"));
+
+  private static final BusinessMessagesSuggestion LIVE_AGENT_REQUEST =
+      new BusinessMessagesSuggestion()
+          .setLiveAgentRequest(new BusinessMessagesLiveAgentRequest());
+
+  private static final BusinessMessagesSuggestion DIAL_ACTION = new BusinessMessagesSuggestion()
+      .setAction(new BusinessMessagesSuggestedAction()
+          .setDialAction(
+              new BusinessMessagesDialAction()
+                  .setPhoneNumber("+12223334444"))
+          .setText("Call example").setPostbackData("call_example"));
+
+  // Open url action followed by the default menu, for the bot and for a live agent
+  public static final List<BusinessMessagesSuggestion> LINK_SUGGESTIONS =
+      prepend(OPEN_URL_ACTION, DEFAULT_MENU);
+
+  public static final List<BusinessMessagesSuggestion> LIVE_AGENT_LINK_SUGGESTIONS =
+      prepend(OPEN_URL_ACTION, LIVE_AGENT_MENU);
+
+  // Use a fallback text of the actual URL
+  public static final String LINK_FALLBACK = BotConstants.RSP_LINK_TEXT + " https://www.google.com";
+
+  public static final List<BusinessMessagesSuggestion> CHIP_SUGGESTIONS =
+      Collections.unmodifiableList(Arrays.asList(
+          new BusinessMessagesSuggestion()
+              .setReply(new BusinessMessagesSuggestedReply()
+                  .setText("Example suggestion").setPostbackData("example_postback")),
+          OPEN_URL_ACTION,
+          LIVE_AGENT_REQUEST,
+          DIAL_ACTION,
+          HELP_MENU_ITEM));
+
+  public static final List<BusinessMessagesSuggestion> LIVE_AGENT_SUGGESTIONS =
+      Collections.unmodifiableList(Arrays.asList(LIVE_AGENT_REQUEST, HELP_MENU_ITEM));
+
+  public static final List<BusinessMessagesSuggestion> DIAL_SUGGESTIONS =
+      Collections.unmodifiableList(Arrays.asList(DIAL_ACTION, HELP_MENU_ITEM));
+
+  // Suggestions to add to sample cards
+  private static final List<BusinessMessagesSuggestion> CARD_SUGGESTIONS =
+      Collections.unmodifiableList(Arrays.asList(
+          new BusinessMessagesSuggestion()
+              .setReply(new BusinessMessagesSuggestedReply()
+                  .setText("\uD83D\uDC4D Like").setPostbackData("like-item")),
+          new BusinessMessagesSuggestion()
+              .setReply(new BusinessMessagesSuggestedReply()
+                  .setText("\uD83D\uDC4E Dislike").setPostbackData("dislike-item"))));
+
+  public static final BusinessMessagesRichCard SAMPLE_CARD = new BusinessMessagesRichCard()
+      .setStandaloneCard(new BusinessMessagesStandaloneCard()
+          .setCardContent(
+              new BusinessMessagesCardContent()
+                  .setTitle("Business Messages!!!")
+                  .setDescription("The future of business communication")
+                  .setSuggestions(CARD_SUGGESTIONS)
+                  .setMedia(new BusinessMessagesMedia()
+                      .setHeight(MediaHeight.MEDIUM.toString())
+                      .setContentInfo(
+                          new BusinessMessagesContentInfo()
+                              .setFileUrl(BotConstants.SAMPLE_IMAGES[0])
+                      ))
+          ));
+
+  // Fallback text for devices that do not support rich cards
+  public static final String SAMPLE_CARD_FALLBACK =
+      fallbackText(SAMPLE_CARD.getStandaloneCard().getCardContent());
+
+  public static final BusinessMessagesRichCard SAMPLE_CAROUSEL = new BusinessMessagesRichCard()
+      .setCarouselCard(sampleCarousel());
+
+  // Fallback text for devices that do not support carousels
+  public static final String SAMPLE_CAROUSEL_FALLBACK;
+
+  static {
+    StringBuilder fallbackText = new StringBuilder();
+    for (BusinessMessagesCardContent cardContent
+        : SAMPLE_CAROUSEL.getCarouselCard().getCardContents()) {
+      fallbackText.append(cardContent.getTitle()).append("\n\n");
+      fallbackText.append(cardContent.getDescription()).append("\n\n");
+      fallbackText.append(cardContent.getMedia().getContentInfo().getFileUrl()).append("\n");
+      fallbackText.append("---------------------------------------------\n\n");
+    }
+
+    SAMPLE_CAROUSEL_FALLBACK = fallbackText.toString();
+  }
+
+  // Comma separated, capitalized names of the supported translation languages
+  public static final String SUPPORTED_LANGUAGES;
+
+  static {
+    StringBuilder sb = new StringBuilder();
+    for (String languageName : new TreeSet<>(BotConstants.LANGUAGE_MAP.keySet())) {
+      if (sb.length() != 0) {
+        sb.append(", ");
+      }
+      // Upper case the first letter of the language
+      sb.append(languageName.substring(0, 1).toUpperCase());
+      sb.append(languageName.substring(1));
+    }
+
+    SUPPORTED_LANGUAGES = sb.toString();
+  }
+
+  private ResponseTemplates() {
+  }
+
+  /**
+   * Gets the default menu for the representative type.
+   *
+   * @param liveAgent True if a live agent is in the conversation.
+   * @return List of suggestions to form a menu.
+   */
+  public static List<BusinessMessagesSuggestion> defaultMenu(boolean liveAgent) {
+    return liveAgent ? LIVE_AGENT_MENU : DEFAULT_MENU;
+  }
+
+  private static List<BusinessMessagesSuggestion> prepend(BusinessMessagesSuggestion first,
+      List<BusinessMessagesSuggestion> rest) {
+    List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
+    suggestions.add(first);
+    suggestions.addAll(rest);
+
+    return Collections.unmodifiableList(suggestions);
+  }
+
+  /**
+   * Creates a sample carousel rich card.
+   */
+  private static BusinessMessagesCarouselCard sampleCarousel() {
+    List<BusinessMessagesCardContent> cardContents = new ArrayList<>();
+
+    // Create individual cards for the carousel
+    for (int i = 0; i < BotConstants.SAMPLE_IMAGES.length; i++) {
+      cardContents.add(new BusinessMessagesCardContent()
+          .setTitle("Card #" + (i + 1))
+          .setDescription("What do you think?")
+          .setSuggestions(CARD_SUGGESTIONS)
+          .setMedia(new BusinessMessagesMedia()
+              .setHeight(MediaHeight.MEDIUM.toString())
+              .setContentInfo(new BusinessMessagesContentInfo()
+                  .setFileUrl(BotConstants.SAMPLE_IMAGES[i]))));
+    }
+
+    return new BusinessMessagesCarouselCard()
+        .setCardContents(Collections.unmodifiableList(cardContents))
+        .setCardWidth(CardWidth.MEDIUM.toString());
+  }
+
+  private static String fallbackText(BusinessMessagesCardContent cardContent) {
+    return cardContent.getTitle() + "\n\n"
+        + cardContent.getDescription() + "\n\n"
+        + cardContent.getMedia().getContentInfo().getFileUrl();
+  }
+}
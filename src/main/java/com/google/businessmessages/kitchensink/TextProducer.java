@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import java.util.function.Consumer;
+
+/**
+ * Produces the text of a reply piece by piece, such as a translation or a generated answer, so
+ * the first part can be sent before the whole reply is known.
+ */
+@FunctionalInterface
+public interface TextProducer {
+
+  /**
+   * Produces the text.
+   *
+   * @param out Receives the pieces of the text, in order.
+   * @throws Exception If the text could not be produced.
+   */
+  void produce(Consumer<CharSequence> out) throws Exception;
+}
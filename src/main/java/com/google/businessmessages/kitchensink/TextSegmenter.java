@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits text into chunks that each fit in one message. When streaming, a chunk ends at a
+ * paragraph break as soon as one is seen, so chunks can be sent while the rest of the text is
+ * still being produced. {@link #split} has the whole text, so it packs as many paragraphs into
+ * each chunk as fit instead. Text longer than the size budget is cut at the last paragraph break
+ * that fits, then the last sentence end, then the last space, and only as a last resort in the
+ * middle of a word, never inside a surrogate pair. Sentence ends in the first half of the budget
+ * are passed over in favour of a later space, as are periods that end an abbreviation.
+ */
+public final class TextSegmenter {
+
+  /**
+   * Receives the chunks, in order.
+   */
+  @FunctionalInterface
+  public interface ChunkSink {
+    /**
+     * @param chunk The chunk text, trimmed and never empty.
+     * @param last True for the final chunk of the text.
+     */
+    void accept(String chunk, boolean last);
+  }
+
+  private static final String PARAGRAPH_BREAK = "\n\n";
+
+  // Words whose trailing period doesn't end a sentence. Words with more than one period, such as
+  // "Ph.D." or "e.g.", and single letter initials are recognized without being listed
+  private static final Set<String> ABBREVIATIONS = new HashSet<>(Arrays.asList(
+      "mr", "mrs", "ms", "dr", "prof", "sr", "jr", "st", "mt", "inc", "ltd", "co", "corp", "vs",
+      "etc", "approx", "no", "fig", "dept", "est", "jan", "feb", "mar", "apr", "jun", "jul", "aug",
+      "sep", "sept", "oct", "nov", "dec"));
+
+  private final int maxChars;
+
+  // Whether paragraphs are packed into a chunk rather than each ending one
+  private final boolean packParagraphs;
+
+  private final ChunkSink sink;
+
+  private final StringBuilder buffer = new StringBuilder();
+
+  private boolean finished;
+
+  /**
+   * @param maxChars The maximum length of a chunk.
+   * @param sink Receives the chunks.
+   */
+  public TextSegmenter(int maxChars, ChunkSink sink) {
+    this(maxChars, false, sink);
+  }
+
+  private TextSegmenter(int maxChars, boolean packParagraphs, ChunkSink sink) {
+    if (maxChars < 1) {
+      throw new IllegalArgumentException("maxChars must be positive");
+    }
+
+    this.maxChars = maxChars;
+    this.packParagraphs = packParagraphs;
+    this.sink = sink;
+  }
+
+  /**
+   * Splits a complete text, packing as many paragraphs into each chunk as fit.
+   *
+   * @param text The text to split.
+   * @param maxChars The maximum length of a chunk.
+   * @return The chunks, in order.
+   */
+  public static List<String> split(String text, int maxChars) {
+    List<String> chunks = new ArrayList<>();
+
+    TextSegmenter segmenter =
+        new TextSegmenter(maxChars, true, (chunk, last) -> chunks.add(chunk));
+    segmenter.append(text);
+    segmenter.finish();
+
+    return chunks;
+  }
+
+  /**
+   * Adds text, passing on every chunk that is complete.
+   *
+   * @param text The next piece of the text.
+   */
+  public void append(CharSequence text) {
+    if (finished) {
+      throw new IllegalStateException("The text is already finished");
+    }
+
+    buffer.append(text);
+
+    while (emitNext()) {
+      // Keep going while whole chunks are buffered
+    }
+  }
+
+  /**
+   * Passes on the rest of the text as the final chunk.
+   */
+  public void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    String rest = buffer.toString().trim();
+    buffer.setLength(0);
+
+    if (!rest.isEmpty()) {
+      // The remainder can still be over the budget if it arrived without any break
+      List<String> tail = new ArrayList<>();
+      while (rest.length() > maxChars) {
+        int cut = findCut(rest);
+        tail.add(rest.substring(0, cut).trim());
+        rest = rest.substring(cut).trim();
+      }
+      tail.add(rest);
+
+      for (int i = 0; i < tail.size(); i++) {
+        sink.accept(tail.get(i), i == tail.size() - 1);
+      }
+    }
+  }
+
+  /**
+   * Emits the next chunk if one is complete. A chunk is held back when nothing but whitespace
+   * follows it, as it may turn out to be the last one.
+   *
+   * @return True if a chunk was emitted.
+   */
+  private boolean emitNext() {
+    int cut;
+
+    int paragraphEnd = packParagraphs ? -1 : buffer.indexOf(PARAGRAPH_BREAK);
+    if (paragraphEnd >= 0 && paragraphEnd <= maxChars) {
+      cut = paragraphEnd + PARAGRAPH_BREAK.length();
+    } else if (buffer.length() > maxChars) {
+      cut = findCut(buffer);
+    } else {
+      return false;
+    }
+
+    String chunk = buffer.substring(0, cut).trim();
+    if (isBlank(buffer, cut)) {
+      return false;
+    }
+
+    buffer.delete(0, cut);
+    if (!chunk.isEmpty()) {
+      sink.accept(chunk, false);
+    }
+
+    return true;
+  }
+
+  /**
+   * Finds where to cut a text that is over the budget.
+   */
+  private int findCut(CharSequence text) {
+    int limit = Math.min(maxChars, text.length());
+
+    int paragraphEnd = lastParagraphBreak(text, limit);
+    if (paragraphEnd > 0) {
+      return paragraphEnd + PARAGRAPH_BREAK.length();
+    }
+
+    int space = -1;
+    for (int i = limit - 1; i > 0; i--) {
+      char c = text.charAt(i);
+
+      // Sentence ends too early in the budget would leave a needlessly short chunk
+      if (i >= limit / 2 && (c == '.' || c == '!' || c == '?') && i + 1 < text.length()
+          && Character.isWhitespace(text.charAt(i + 1))
+          && (c != '.' || !isAbbreviation(text, i))) {
+        return i + 1;
+      }
+
+      if (space < 0 && Character.isWhitespace(c)) {
+        space = i;
+      }
+    }
+
+    if (space > 0) {
+      return space;
+    }
+
+    // Don't separate the two halves of a character outside the Basic Multilingual Plane
+    if (limit < text.length() && Character.isHighSurrogate(text.charAt(limit - 1))
+        && Character.isLowSurrogate(text.charAt(limit)) && limit > 1) {
+      return limit - 1;
+    }
+
+    return limit;
+  }
+
+  /**
+   * Finds the last paragraph break that starts within the budget.
+   */
+  private static int lastParagraphBreak(CharSequence text, int limit) {
+    for (int i = limit - 1; i > 0; i--) {
+      if (text.charAt(i) == '\n' && text.charAt(i - 1) == '\n') {
+        return i - 1;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Checks whether the period at an index ends an abbreviation rather than a sentence.
+   */
+  private static boolean isAbbreviation(CharSequence text, int period) {
+    int start = period;
+    while (start > 0 && !Character.isWhitespace(text.charAt(start - 1))) {
+      start--;
+    }
+
+    String word = text.subSequence(start, period).toString();
+    if (word.isEmpty()) {
+      return false;
+    }
+
+    return word.length() == 1 && Character.isLetter(word.charAt(0))
+        || word.indexOf('.') >= 0
+        || ABBREVIATIONS.contains(word.toLowerCase());
+  }
+
+  private static boolean isBlank(CharSequence text, int from) {
+    for (int i = from; i < text.length(); i++) {
+      if (!Character.isWhitespace(text.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
+import com.google.businessmessages.kitchensink.state.LruCache;
+import com.google.businessmessages.kitchensink.state.StateStore;
+import com.google.businessmessages.kitchensink.state.StateStores;
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.TranslateOptions;
+import com.google.cloud.translate.Translation;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Caches translations so a repeated "speak XYZ" command never leaves the process. Results are kept
+ * in an in-memory LRU tier backed by the shared state store, keyed by a hash of the source text,
+ * the target language and the translation model. The Translate service is created once and reused.
+ */
+public final class TranslationCache {
+  private static final Logger logger = Logger.getLogger(TranslationCache.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  private static final String SOURCE_LANGUAGE = "en";
+
+  private static final String MODEL = "base";
+
+  private static final String KEY_PREFIX = "translation:";
+
+  private static final TranslationCache INSTANCE = new TranslationCache();
+
+  private final LruCache<String, String> localCache;
+
+  // Shared tier, null when the state store is in process and would only duplicate the LRU tier
+  private final StateStore sharedCache;
+
+  private final int ttlSeconds;
+
+  // Created on first use so the Translate classes are only loaded when needed
+  private volatile Translate translate;
+
+  private TranslationCache() {
+    this.ttlSeconds = BotConfig.getInt("kitchensink.translation.ttlSeconds", 7 * 24 * 60 * 60);
+
+    this.localCache = new LruCache<>(BotConfig.getInt("kitchensink.translation.maxEntries", 512),
+        TimeUnit.SECONDS.toMillis(ttlSeconds));
+
+    StateStore stateStore = StateStores.getInstance();
+    this.sharedCache = stateStore.isLocal() ? null : stateStore;
+  }
+
+  /**
+   * Gets the process-wide translation cache.
+   *
+   * @return The shared cache.
+   */
+  public static TranslationCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Translates English text, using a cached result when there is one.
+   *
+   * @param text The English text to translate.
+   * @param languageCode The target language code.
+   * @return The translated text.
+   */
+  public String translate(String text, String languageCode) {
+    String key = cacheKey(text, languageCode);
+
+    String translatedText = localCache.get(key);
+    if (translatedText != null) {
+      return translatedText;
+    }
+
+    if (sharedCache != null) {
+      translatedText = sharedCache.get(key);
+      if (translatedText != null) {
+        localCache.put(key, translatedText);
+
+        return translatedText;
+      }
+    }
+
+    Translation translation;
+    long start = StageTimer.start();
+    try {
+      translation = getTranslate().translate(
+          text,
+          Translate.TranslateOption.sourceLanguage(SOURCE_LANGUAGE),
+          Translate.TranslateOption.targetLanguage(languageCode),
+          Translate.TranslateOption.format("text"),
+          Translate.TranslateOption.model(MODEL));
+    } finally {
+      StageTimer.record("translation", start);
+    }
+
+    translatedText = translation.getTranslatedText();
+
+    localCache.put(key, translatedText);
+    if (sharedCache != null) {
+      sharedCache.put(key, translatedText, ttlSeconds);
+    }
+
+    return translatedText;
+  }
+
+  /**
+   * Checks whether a translation is held in process, so no remote call is needed to return it.
+   *
+   * @param text The English text to translate.
+   * @param languageCode The target language code.
+   * @return True if the translation is in the in-memory tier.
+   */
+  public boolean isCachedLocally(String text, String languageCode) {
+    return localCache.get(cacheKey(text, languageCode)) != null;
+  }
+
+  /**
+   * Fetches the bot's translation response for every supported language so the cache is warm
+   * before the first "speak XYZ" command. Translations already in the shared tier are fetched
+   * with one multi-get, the rest are translated. Failures are logged and skipped.
+   */
+  public void warmUp() {
+    long start = System.nanoTime();
+
+    Set<String> languageCodes = new HashSet<>(BotConstants.LANGUAGE_MAP.values());
+    if (sharedCache != null) {
+      List<String> keys = new ArrayList<>(languageCodes.size());
+      for (String languageCode : languageCodes) {
+        keys.add(cacheKey(BotConstants.RSP_TO_TRANSLATION, languageCode));
+      }
+
+      for (Map.Entry<String, String> entry : sharedCache.getAll(keys).entrySet()) {
+        localCache.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    for (String languageCode : languageCodes) {
+      try {
+        translate(BotConstants.RSP_TO_TRANSLATION, languageCode);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+      }
+    }
+
+    logger.info("Translation cache warmed up for " + languageCodes.size() + " languages in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+  }
+
+  /**
+   * Creates the Translate client ahead of the first "speak XYZ" command, without any API call.
+   */
+  public void initializeClient() {
+    getTranslate();
+  }
+
+  private static String cacheKey(String text, String languageCode) {
+    return KEY_PREFIX
+        + Hashing.sha256().hashString(text, StandardCharsets.UTF_8) + ":"
+        + languageCode + ":" + MODEL;
+  }
+
+  private Translate getTranslate() {
+    Translate service = translate;
+    if (service == null) {
+      synchronized (this) {
+        service = translate;
+        if (service == null) {
+          service = TranslateOptions.getDefaultInstance().getService();
+          translate = service;
+        }
+      }
+    }
+
+    return service;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.businessmessages.kitchensink.callback.CallbackEventReader;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Initializes the shared clients and exercises the hot paths once per instance, so the first
+ * webhook after a scale-up doesn't pay for class loading, credential discovery, the TLS truststore
+ * or the JSON factories. Each step is timed; the durations are logged and exported as
+ * {@code warmup_duration_ms} gauges.
+ *
+ * <p>On App Engine the steps call the App Engine APIs (app identity, memcache) and the shared
+ * clients decide there whether they can use background threads, so the warm-up runs on the request
+ * thread that starts it rather than on a thread of its own.
+ */
+public final class WarmUp {
+  private static final Logger logger = Logger.getLogger(WarmUp.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  // How often the routing and serialization paths are run to get them compiled
+  private static final int ITERATIONS = BotConfig.getInt("kitchensink.warmup.iterations", 200);
+
+  // Messages covering every built-in command and the echo fallback
+  private static final List<String> SAMPLE_MESSAGES = Arrays.asList(
+      "help", "who", "lorem ipsum", "medium text", "long text", "speak french", "link", "dial",
+      "card", "carousel", "chips", "live agent", "bold", "italics", "hyperlink", "hello");
+
+  private static final String SAMPLE_WEBHOOK = "{\"conversationId\":\"warmup\","
+      + "\"message\":{\"messageId\":\"warmup\",\"text\":\"help\"},"
+      + "\"context\":{\"placeId\":\"\"},\"sendTime\":\"2020-01-01T00:00:00Z\"}";
+
+  private static CompletableFuture<Map<String, Long>> result;
+
+  private WarmUp() {
+  }
+
+  /**
+   * Starts the warm-up in the background, or on App Engine runs it, unless it has already been
+   * started.
+   *
+   * @return A future completed with the duration of each step in milliseconds.
+   */
+  public static synchronized CompletableFuture<Map<String, Long>> start() {
+    if (result == null) {
+      if (BotThreads.isAppEngine()) {
+        result = CompletableFuture.completedFuture(warmUp());
+      } else {
+        result = CompletableFuture.supplyAsync(WarmUp::warmUp, runnable -> {
+          Thread thread = new Thread(runnable, "warm-up");
+          thread.setDaemon(true);
+          thread.start();
+        });
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Runs the warm-up, or waits for the one already running.
+   *
+   * @return The duration of each step in milliseconds.
+   */
+  public static Map<String, Long> run() {
+    return start().join();
+  }
+
+  private static Map<String, Long> warmUp() {
+    Map<String, Long> durations = new LinkedHashMap<>();
+    long start = System.nanoTime();
+
+    step(durations, "api_client", () -> BmApiClient.getInstance().getApi());
+    step(durations, "sender", MessageSender::getInstance);
+    step(durations, "translation_client",
+        () -> TranslationCache.getInstance().initializeClient());
+
+    step(durations, "routing", () -> {
+      for (int i = 0; i < ITERATIONS; i++) {
+        KitchenSinkBot.dryRunRouting(SAMPLE_MESSAGES);
+      }
+    });
+
+    step(durations, "serialization", () -> {
+      BusinessMessagesMessage message = new BusinessMessagesMessage()
+          .setMessageId(UUID.randomUUID().toString())
+          .setRichCard(ResponseTemplates.SAMPLE_CAROUSEL)
+          .setRepresentative(Representatives.forType(RepresentativeType.BOT))
+          .setFallback(ResponseTemplates.SAMPLE_CAROUSEL_FALLBACK)
+          .setSuggestions(ResponseTemplates.DEFAULT_MENU);
+      byte[] webhook = SAMPLE_WEBHOOK.getBytes(StandardCharsets.UTF_8);
+
+      for (int i = 0; i < ITERATIONS; i++) {
+        String json = JacksonFactory.getDefaultInstance().toString(message);
+        JacksonFactory.getDefaultInstance().fromString(json, BusinessMessagesMessage.class);
+        CallbackEventReader.read(new ByteArrayInputStream(webhook));
+      }
+    });
+
+    durations.put("total", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+    for (Map.Entry<String, Long> duration : durations.entrySet()) {
+      long millis = duration.getValue();
+      Metrics.registerGauge("warmup_duration_ms{step=\"" + duration.getKey() + "\"}",
+          () -> millis);
+    }
+
+    logger.info("Warm-up finished: " + durations);
+
+    return Collections.unmodifiableMap(durations);
+  }
+
+  /**
+   * Runs and times a step. A failed step is logged and the warm-up carries on.
+   */
+  private static void step(Map<String, Long> durations, String name, Step step) {
+    long start = System.nanoTime();
+    try {
+      step.run();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+    }
+    durations.put(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  @FunctionalInterface
+  private interface Step {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.callback;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed view of a webhook sent by Business Messages. Only the fields the bot uses are kept; each
+ * section is null when it is absent from the payload.
+ */
+public final class CallbackEvent {
+  String conversationId;
+  String requestId;
+  Message message;
+  SuggestionResponse suggestionResponse;
+  UserStatus userStatus;
+  List<Receipt> receipts;
+  SurveyResponse surveyResponse;
+
+  CallbackEvent() {
+  }
+
+  public String getConversationId() {
+    return conversationId;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public SuggestionResponse getSuggestionResponse() {
+    return suggestionResponse;
+  }
+
+  public UserStatus getUserStatus() {
+    return userStatus;
+  }
+
+  /**
+   * @return The delivery and read receipts, or null if this is not a receipts event.
+   */
+  public List<Receipt> getReceipts() {
+    return receipts == null ? null : Collections.unmodifiableList(receipts);
+  }
+
+  public SurveyResponse getSurveyResponse() {
+    return surveyResponse;
+  }
+
+  /**
+   * A message the user sent.
+   */
+  public static final class Message {
+    String messageId;
+    String text;
+
+    Message() {
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getText() {
+      return text;
+    }
+  }
+
+  /**
+   * The user tapped a suggestion.
+   */
+  public static final class SuggestionResponse {
+    String postbackData;
+
+    SuggestionResponse() {
+    }
+
+    public String getPostbackData() {
+      return postbackData;
+    }
+  }
+
+  /**
+   * A change in the user's status, such as typing or asking for a live agent.
+   */
+  public static final class UserStatus {
+    Boolean isTyping;
+    Boolean requestedLiveAgent;
+
+    UserStatus() {
+    }
+
+    /**
+     * @return Whether the user is typing, or null if the status is about something else.
+     */
+    public Boolean getIsTyping() {
+      return isTyping;
+    }
+
+    /**
+     * @return Whether the user asked for a live agent, or null if the status is about something
+     *     else.
+     */
+    public Boolean getRequestedLiveAgent() {
+      return requestedLiveAgent;
+    }
+  }
+
+  /**
+   * Receipt for a message the bot sent.
+   */
+  public static final class Receipt {
+    String receiptType;
+    String messageId;
+
+    Receipt() {
+    }
+
+    public String getReceiptType() {
+      return receiptType;
+    }
+
+    /**
+     * @return The ID of the message the receipt is for, taken from the message's resource name.
+     */
+    public String getMessageId() {
+      return messageId;
+    }
+  }
+
+  /**
+   * The user's answer to a survey.
+   */
+  public static final class SurveyResponse {
+    String rating;
+
+    SurveyResponse() {
+    }
+
+    public String getRating() {
+      return rating;
+    }
+  }
+}
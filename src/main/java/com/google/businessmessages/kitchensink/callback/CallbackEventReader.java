@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.callback;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes webhook payloads straight from the request stream into {@link CallbackEvent} objects.
+ * The payload is never held as a string or a JSON tree, and fields the bot does not use are
+ * skipped without being materialized.
+ */
+public final class CallbackEventReader {
+
+  private CallbackEventReader() {
+  }
+
+  /**
+   * Reads a webhook payload.
+   *
+   * @param inputStream The UTF-8 encoded request body.
+   * @return The decoded event.
+   * @throws IOException If the stream can't be read or does not hold a JSON object.
+   */
+  public static CallbackEvent read(InputStream inputStream) throws IOException {
+    return read(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a webhook payload.
+   *
+   * @param reader The request body.
+   * @return The decoded event.
+   * @throws IOException If the reader fails or does not hold a JSON object.
+   */
+  public static CallbackEvent read(Reader reader) throws IOException {
+    try (JsonReader jsonReader = new JsonReader(reader)) {
+      return readEvent(jsonReader);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException("Malformed callback payload", e);
+    }
+  }
+
+  private static CallbackEvent readEvent(JsonReader reader) throws IOException {
+    CallbackEvent event = new CallbackEvent();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "conversationId":
+          event.conversationId = nextString(reader);
+          break;
+        case "requestId":
+          event.requestId = nextString(reader);
+          break;
+        case "message":
+          event.message = readMessage(reader);
+          break;
+        case "suggestionResponse":
+          event.suggestionResponse = readSuggestionResponse(reader);
+          break;
+        case "userStatus":
+          event.userStatus = readUserStatus(reader);
+          break;
+        case "receipts":
+          readReceipts(reader, event);
+          break;
+        case "surveyResponse":
+          event.surveyResponse = readSurveyResponse(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return event;
+  }
+
+  private static CallbackEvent.Message readMessage(JsonReader reader) throws IOException {
+    CallbackEvent.Message message = new CallbackEvent.Message();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "messageId":
+          message.messageId = nextString(reader);
+          break;
+        case "text":
+          message.text = nextString(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return message;
+  }
+
+  private static CallbackEvent.SuggestionResponse readSuggestionResponse(JsonReader reader)
+      throws IOException {
+    CallbackEvent.SuggestionResponse suggestionResponse = new CallbackEvent.SuggestionResponse();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("postbackData")) {
+        suggestionResponse.postbackData = nextString(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return suggestionResponse;
+  }
+
+  private static CallbackEvent.UserStatus readUserStatus(JsonReader reader) throws IOException {
+    CallbackEvent.UserStatus userStatus = new CallbackEvent.UserStatus();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "isTyping":
+          userStatus.isTyping = nextBoolean(reader);
+          break;
+        case "requestedLiveAgent":
+          userStatus.requestedLiveAgent = nextBoolean(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return userStatus;
+  }
+
+  /**
+   * Reads the receipts section, which wraps the array in a second "receipts" field.
+   */
+  private static void readReceipts(JsonReader reader, CallbackEvent event) throws IOException {
+    event.receipts = new ArrayList<>();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("receipts")) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          event.receipts.add(readReceipt(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  /**
+   * Gets the message ID from the resource name of a message,
+   * "conversations/{conversationId}/messages/{messageId}". A bare ID is returned as it is.
+   */
+  private static String messageIdOf(String name) {
+    return name == null ? null : name.substring(name.lastIndexOf('/') + 1);
+  }
+
+  private static CallbackEvent.Receipt readReceipt(JsonReader reader) throws IOException {
+    CallbackEvent.Receipt receipt = new CallbackEvent.Receipt();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "receiptType":
+          receipt.receiptType = nextString(reader);
+          break;
+        case "message":
+          receipt.messageId = messageIdOf(nextString(reader));
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return receipt;
+  }
+
+  private static CallbackEvent.SurveyResponse readSurveyResponse(JsonReader reader)
+      throws IOException {
+    CallbackEvent.SurveyResponse surveyResponse = new CallbackEvent.SurveyResponse();
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("rating")) {
+        surveyResponse.rating = nextString(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return surveyResponse;
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+
+    return reader.nextString();
+  }
+
+  private static Boolean nextBoolean(JsonReader reader) throws IOException {
+    JsonToken token = reader.peek();
+    if (token == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    } else if (token == JsonToken.STRING) {
+      return Boolean.valueOf(reader.nextString());
+    }
+
+    return reader.nextBoolean();
+  }
+}
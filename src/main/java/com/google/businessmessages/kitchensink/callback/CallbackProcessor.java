@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.callback;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.BotConstants;
+import com.google.businessmessages.kitchensink.KitchenSinkBot;
+import com.google.businessmessages.kitchensink.ReceiptTracker;
+import com.google.businessmessages.kitchensink.logging.StructuredLog;
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
+import com.google.businessmessages.kitchensink.state.ConversationStateStore;
+import com.google.businessmessages.kitchensink.state.IdempotencyStore;
+import com.google.businessmessages.kitchensink.state.InMemoryIdempotencyStore;
+import com.google.businessmessages.kitchensink.state.SharedIdempotencyStore;
+import com.google.businessmessages.kitchensink.state.StateStore;
+import com.google.businessmessages.kitchensink.state.StateStores;
+import com.google.businessmessages.kitchensink.state.TieredIdempotencyStore;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Turns decoded callback events into bot work, whichever way they were received: pushed to the
+ * callback servlet or pulled from a Pub/Sub subscription. Redelivered messages and responses are
+ * de-duped when their work runs, and the representative type of each conversation is tracked.
+ */
+public final class CallbackProcessor {
+  private static final Logger logger = Logger.getLogger(CallbackProcessor.class.getName());
+
+  private static volatile CallbackProcessor instance;
+
+  // De-dupes redelivered messages and responses
+  private final IdempotencyStore idempotencyStore;
+
+  // Representative type of each conversation
+  private final ConversationStateStore conversationState;
+
+  private CallbackProcessor() {
+    StateStore stateStore = StateStores.getInstance();
+
+    this.idempotencyStore = createIdempotencyStore(stateStore);
+    this.conversationState = new ConversationStateStore(stateStore,
+        BotConfig.getInt("kitchensink.state.maxLocalEntries", 10000),
+        BotConfig.getLong("kitchensink.state.localTtlMillis", 30000),
+        BotConfig.getInt("kitchensink.state.ttlSeconds", 24 * 60 * 60));
+  }
+
+  /**
+   * Returns the shared processor, creating it on first use.
+   *
+   * @return The process-wide processor.
+   */
+  public static CallbackProcessor getInstance() {
+    CallbackProcessor processor = instance;
+    if (processor == null) {
+      synchronized (CallbackProcessor.class) {
+        processor = instance;
+        if (processor == null) {
+          processor = new CallbackProcessor();
+          instance = processor;
+        }
+      }
+    }
+
+    return processor;
+  }
+
+  /**
+   * Returns the work an event calls for. The event must have a conversation ID. Its message or
+   * request ID is only recorded when the work runs, so an event whose work was never queued (for
+   * instance because the conversation's mailbox was full) is processed when it is redelivered.
+   *
+   * @param event The decoded callback event.
+   * @return The work to run, or null if the event needs no work.
+   */
+  public Runnable prepare(CallbackEvent event) {
+    String conversationId = event.getConversationId();
+
+    if (event.getMessage() != null) {
+      String message = event.getMessage().getText();
+      String messageId = event.getMessage().getMessageId();
+
+      StructuredLog.at(logger, Level.INFO)
+          .event("callback_message")
+          .with("conversationId", conversationId)
+          .with("messageId", messageId)
+          .log();
+
+      if (message != null && messageId != null) {
+        return () -> {
+          // Check to see if this message has already been seen, if so, ignore
+          if (markSeen(messageId)) {
+            routeTextResponse(conversationId, message);
+          }
+        };
+      }
+    } else if (event.getRequestId() != null) {
+      String requestId = event.getRequestId();
+
+      StructuredLog.at(logger, Level.INFO)
+          .event("callback_request")
+          .with("conversationId", conversationId)
+          .with("requestId", requestId)
+          .log();
+
+      return () -> {
+        // Check to see if this response has already been seen, if so, ignore
+        if (markSeen(requestId)) {
+          handleNonMessageResponse(event, conversationId);
+        } else {
+          logger.info("Request ID found in the cache.");
+        }
+      };
+    } else { // Survey responses
+      return () -> handleNonMessageResponse(event, conversationId);
+    }
+
+    return null;
+  }
+
+  private boolean markSeen(String id) {
+    long start = StageTimer.start();
+    try {
+      return idempotencyStore.markSeen(id);
+    } finally {
+      StageTimer.record("dedupe", start);
+    }
+  }
+
+  /**
+   * Creates the de-dupe store. Recently seen IDs are answered from process memory, all others are
+   * recorded in the shared state store with a single atomic add so concurrent redeliveries can't
+   * both pass.
+   */
+  private static IdempotencyStore createIdempotencyStore(StateStore stateStore) {
+    int ttlSeconds = BotConfig.getInt("kitchensink.dedupe.ttlSeconds", 24 * 60 * 60);
+    int maxEntries = BotConfig.getInt("kitchensink.dedupe.maxLocalEntries", 10000);
+
+    if (stateStore.isLocal()) {
+      return new InMemoryIdempotencyStore(TimeUnit.SECONDS.toMillis(ttlSeconds), maxEntries);
+    }
+
+    return new TieredIdempotencyStore(
+        new InMemoryIdempotencyStore(
+            BotConfig.getLong("kitchensink.dedupe.localTtlMillis", 60000), maxEntries),
+        new SharedIdempotencyStore(stateStore, ttlSeconds));
+  }
+
+  private KitchenSinkBot switchAndGetBot(String conversationId,
+      RepresentativeType representativeType) {
+    long start = StageTimer.start();
+    try {
+      conversationState.setRepresentativeType(conversationId, representativeType);
+    } finally {
+      StageTimer.record("representative", start);
+    }
+
+    return KitchenSinkBot.forType(representativeType);
+  }
+
+  private KitchenSinkBot getBot(String conversationId) {
+    long start = StageTimer.start();
+    try {
+      return KitchenSinkBot.forType(conversationState.getRepresentativeType(conversationId));
+    } finally {
+      StageTimer.record("representative", start);
+    }
+  }
+
+  private void handleNonMessageResponse(CallbackEvent event, String conversationId) {
+    if (event.getSuggestionResponse() != null) {
+      String postbackData = event.getSuggestionResponse().getPostbackData();
+
+      routeTextResponse(conversationId, postbackData);
+    } else if (event.getUserStatus() != null) {
+      CallbackEvent.UserStatus userStatus = event.getUserStatus();
+
+      if (userStatus.getIsTyping() != null) {
+        logger.info("User is typing");
+      } else if (userStatus.getRequestedLiveAgent() != null) {
+        logger.info("User requested transfer to live agent");
+
+        if (userStatus.getRequestedLiveAgent()) {
+          switchAndGetBot(conversationId, RepresentativeType.HUMAN)
+              .transferToLiveAgent(conversationId);
+        }
+      }
+    } else if (event.getReceipts() != null) {
+      ReceiptTracker.getInstance().recordReceipts(event.getReceipts());
+    } else if (event.getSurveyResponse() != null) {
+      String rating = event.getSurveyResponse().getRating();
+
+      getBot(conversationId).routeMessage(rating, conversationId);
+    }
+  }
+
+  private void routeTextResponse(String conversationId, String message) {
+    String normalizedMessage = message.toLowerCase().trim();
+
+    // Check if this is a transfer request to go back to a bot conversation
+    if (normalizedMessage.equals(BotConstants.CMD_BACK_TO_BOT)) {
+      switchAndGetBot(conversationId, RepresentativeType.BOT).transferToBot(conversationId);
+    } else {
+      getBot(conversationId).routeMessage(message, conversationId);
+    }
+  }
+}
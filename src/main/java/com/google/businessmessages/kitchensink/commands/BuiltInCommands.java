@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.businessmessages.kitchensink.BotConstants;
+import com.google.businessmessages.kitchensink.ResponseTemplates;
+
+/**
+ * The commands that ship with the kitchen sink bot.
+ */
+public final class BuiltInCommands implements CommandProvider {
+
+  @Override
+  public void registerCommands(CommandRegistry registry) {
+    registry
+        .command("lorem_ipsum", BotConstants.CMD_LOREM_IPSUM,
+            () -> new TextReply(BotConstants.RSP_LOREM_IPSUM, TextReply.Format.PLAIN))
+        .command("medium_text", BotConstants.CMD_MEDIUM_TEXT,
+            () -> new TextReply(BotConstants.RSP_MEDIUM_TEXT, TextReply.Format.PLAIN))
+        .command("long_text", BotConstants.CMD_LONG_TEXT,
+            () -> new TextReply(BotConstants.RSP_LONG_TEXT, TextReply.Format.SPLIT))
+        .command("speak", BotConstants.CMD_SPEAK,
+            () -> new TranslationCommand())
+        .command("link", BotConstants.CMD_LINK,
+            () -> new SuggestionReply(BotConstants.RSP_LINK_TEXT,
+                // Use a fallback text of the actual URL
+                ResponseTemplates.LINK_FALLBACK,
+                ResponseTemplates.LINK_SUGGESTIONS,
+                ResponseTemplates.LIVE_AGENT_LINK_SUGGESTIONS))
+        .command("dial", BotConstants.CMD_DIAL,
+            () -> new SuggestionReply(BotConstants.RSP_DIAL_TEXT, null,
+                ResponseTemplates.DIAL_SUGGESTIONS, ResponseTemplates.DIAL_SUGGESTIONS))
+        .command("card", BotConstants.CMD_CARD,
+            () -> new RichCardReply(ResponseTemplates.SAMPLE_CARD,
+                ResponseTemplates.SAMPLE_CARD_FALLBACK))
+        .command("carousel", BotConstants.CMD_CAROURSEL,
+            () -> new RichCardReply(ResponseTemplates.SAMPLE_CAROUSEL,
+                ResponseTemplates.SAMPLE_CAROUSEL_FALLBACK))
+        .command("who", BotConstants.CMD_WHO,
+            () -> new TextReply(BotConstants.RSP_WHO_TEXT, TextReply.Format.PLAIN))
+        .command("csat", BotConstants.CMD_CSAT_TRIGGER,
+            () -> (context, message, normalizedMessage, conversationId) ->
+                context.sendSurvey(conversationId))
+        .command("help", BotConstants.CMD_HELP,
+            () -> new TextReply(BotConstants.RSP_HELP_TEXT, TextReply.Format.PLAIN))
+        .command("live_agent", BotConstants.CMD_LIVE_AGENT,
+            () -> new SuggestionReply(BotConstants.RSP_LIVE_AGENT_TEXT, null,
+                ResponseTemplates.LIVE_AGENT_SUGGESTIONS,
+                ResponseTemplates.LIVE_AGENT_SUGGESTIONS))
+        .command("chips", BotConstants.CMD_CHIPS,
+            () -> new SuggestionReply(BotConstants.RSP_CHIP_TEXT, null,
+                ResponseTemplates.CHIP_SUGGESTIONS, ResponseTemplates.CHIP_SUGGESTIONS))
+        .command("bold", BotConstants.CMD_BOLD,
+            () -> new TextReply("**" + BotConstants.RSP_LOREM_IPSUM + "**", TextReply.Format.RICH))
+        .command("italics", BotConstants.CMD_ITALICS,
+            () -> new TextReply("*" + BotConstants.RSP_LOREM_IPSUM + "*", TextReply.Format.RICH))
+        .command("hyperlink", BotConstants.CMD_HYPERLINK,
+            () -> new TextReply(BotConstants.RSP_HYPERLINK_TEXT, TextReply.Format.RICH));
+  }
+}
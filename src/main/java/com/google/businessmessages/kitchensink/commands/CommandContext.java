@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import com.google.businessmessages.kitchensink.TextProducer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What a {@link CommandHandler} can do in a conversation. There is one context per representative,
+ * reused for every message.
+ */
+public interface CommandContext {
+
+  /**
+   * @return A copy of the representative the responses are sent as, owned by the caller.
+   */
+  BusinessMessagesRepresentative getRepresentative();
+
+  /**
+   * @return True if a live agent represents the business.
+   */
+  boolean isLiveAgent();
+
+  /**
+   * @return The default menu items for responses.
+   */
+  List<BusinessMessagesSuggestion> getDefaultMenu();
+
+  /**
+   * Sends a text with the default menu.
+   *
+   * @param text The message text to send the user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void sendResponse(String text, String conversationId);
+
+  /**
+   * Sends a text containing markdown with the default menu.
+   *
+   * @param text The message text to send the user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void sendRichResponse(String text, String conversationId);
+
+  /**
+   * Sends a text that may be split over several messages.
+   *
+   * @param text The text to send the user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void sendLongText(String text, String conversationId);
+
+  /**
+   * Sends a message.
+   *
+   * @param message The message object to send the user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return A future completed once the message has been sent.
+   */
+  CompletableFuture<Void> sendResponse(BusinessMessagesMessage message, String conversationId);
+
+  /**
+   * Sends a multi-part reply in order.
+   *
+   * @param messages The message objects to send the user, in order.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return One future per part, completed once that part has been sent.
+   */
+  List<CompletableFuture<Void>> sendResponses(List<BusinessMessagesMessage> messages,
+      String conversationId);
+
+  /**
+   * Sends a reply while it is being produced.
+   *
+   * @param producer Produces the reply text.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void streamResponse(TextProducer producer, String conversationId);
+
+  /**
+   * Sends the user a CSAT survey.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void sendSurvey(String conversationId);
+
+  /**
+   * Shows the typing indicator if the reply is expected to be slow. Once replies to the command
+   * have been timed, the measured time is used instead of the estimate.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param expectedMillis How long the reply is expected to take until one has been timed.
+   */
+  void startTyping(String conversationId, long expectedMillis);
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+/**
+ * Produces the response to a command. Handlers are created once, on first use, and shared by every
+ * conversation, so they must be thread-safe.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+  /**
+   * Responds to a command.
+   *
+   * @param context Sends the response, as the representative currently in the conversation.
+   * @param message The received message from a user.
+   * @param normalizedMessage The lower cased and trimmed message.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  void handle(CommandContext context, String message, String normalizedMessage,
+      String conversationId);
+}
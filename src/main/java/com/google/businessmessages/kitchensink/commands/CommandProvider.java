@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+/**
+ * Service provider that contributes commands to the bot. Providers are found with
+ * {@link java.util.ServiceLoader}, listed in
+ * {@code META-INF/services/com.google.businessmessages.kitchensink.commands.CommandProvider}.
+ *
+ * <p>A provider should stay cheap to load: it only names its commands and how to create their
+ * handlers, and the handlers, with whatever clients they need, are created on first use.
+ */
+public interface CommandProvider {
+
+  /**
+   * Adds the commands of this provider.
+   *
+   * @param registry The registry to add the commands to.
+   */
+  void registerCommands(CommandRegistry registry);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.businessmessages.kitchensink.CommandDispatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Collects the commands of the installed {@link CommandProvider}s into a dispatcher.
+ */
+public final class CommandRegistry {
+  private static final Logger logger = Logger.getLogger(CommandRegistry.class.getName());
+
+  private final CommandDispatcher.Builder<LazyCommand> dispatcher = CommandDispatcher.builder();
+
+  private final List<String> names = new ArrayList<>();
+
+  private CommandRegistry() {
+  }
+
+  /**
+   * Builds a dispatcher from the providers visible to a class loader. Commands are matched in the
+   * order the providers, and the commands within them, are listed.
+   *
+   * @param classLoader The class loader to find providers with.
+   * @param fallback The command used when no other command matches.
+   * @return The dispatcher.
+   */
+  public static CommandDispatcher<LazyCommand> load(ClassLoader classLoader,
+      LazyCommand fallback) {
+    CommandRegistry registry = new CommandRegistry();
+
+    for (CommandProvider provider : ServiceLoader.load(CommandProvider.class, classLoader)) {
+      provider.registerCommands(registry);
+    }
+
+    logger.info("Registered commands: " + registry.names);
+
+    return registry.dispatcher.fallback(fallback).build();
+  }
+
+  /**
+   * Adds a command.
+   *
+   * @param name The command name, used to tag metrics.
+   * @param command The command, either a plain string or a regular expression that has to match
+   *     the whole message.
+   * @param factory Creates the handler on first use.
+   * @return This registry.
+   */
+  public CommandRegistry command(String name, String command,
+      Supplier<? extends CommandHandler> factory) {
+    dispatcher.command(command, new LazyCommand(name, factory));
+    names.add(name);
+
+    return this;
+  }
+}
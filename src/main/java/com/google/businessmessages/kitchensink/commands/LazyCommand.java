@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import java.util.function.Supplier;
+
+/**
+ * A named command whose handler is created the first time the command is used.
+ */
+public final class LazyCommand {
+
+  private final String name;
+
+  private final Supplier<? extends CommandHandler> factory;
+
+  private volatile CommandHandler handler;
+
+  /**
+   * @param name The command name, used to tag metrics.
+   * @param factory Creates the handler.
+   */
+  public LazyCommand(String name, Supplier<? extends CommandHandler> factory) {
+    this.name = name;
+    this.factory = factory;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the handler, creating it on first use.
+   *
+   * @return The handler.
+   */
+  public CommandHandler getHandler() {
+    CommandHandler result = handler;
+    if (result == null) {
+      synchronized (this) {
+        result = handler;
+        if (result == null) {
+          result = factory.get();
+          handler = result;
+        }
+      }
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
+import com.google.businessmessages.kitchensink.ResponseTemplates;
+import java.util.UUID;
+
+/**
+ * Replies with a rich card or a carousel, followed by the help suggestion.
+ */
+final class RichCardReply implements CommandHandler {
+
+  private final BusinessMessagesRichCard richCard;
+
+  private final String fallback;
+
+  /**
+   * @param richCard The card or carousel to send.
+   * @param fallback The text shown by devices that can't display the card.
+   */
+  RichCardReply(BusinessMessagesRichCard richCard, String fallback) {
+    this.richCard = richCard;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public void handle(CommandContext context, String message, String normalizedMessage,
+      String conversationId) {
+    // Send the rich card message and suggestions to the user
+    context.sendResponse(new BusinessMessagesMessage()
+        .setMessageId(UUID.randomUUID().toString())
+        .setRichCard(richCard)
+        .setRepresentative(context.getRepresentative())
+        .setFallback(fallback)
+        .setSuggestions(ResponseTemplates.HELP_ONLY), conversationId);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Replies with a text and a fixed set of suggestions.
+ */
+final class SuggestionReply implements CommandHandler {
+
+  private final String text;
+
+  private final String fallback;
+
+  private final List<BusinessMessagesSuggestion> suggestions;
+
+  private final List<BusinessMessagesSuggestion> liveAgentSuggestions;
+
+  /**
+   * @param text The reply text.
+   * @param fallback The fallback text, or null for none.
+   * @param suggestions The suggestions shown with the reply.
+   * @param liveAgentSuggestions The suggestions shown when a live agent is in the conversation.
+   */
+  SuggestionReply(String text, String fallback, List<BusinessMessagesSuggestion> suggestions,
+      List<BusinessMessagesSuggestion> liveAgentSuggestions) {
+    this.text = text;
+    this.fallback = fallback;
+    this.suggestions = suggestions;
+    this.liveAgentSuggestions = liveAgentSuggestions;
+  }
+
+  @Override
+  public void handle(CommandContext context, String message, String normalizedMessage,
+      String conversationId) {
+    // Send the text message and suggestions to the user
+    context.sendResponse(new BusinessMessagesMessage()
+        .setMessageId(UUID.randomUUID().toString())
+        .setText(text)
+        .setRepresentative(context.getRepresentative())
+        .setFallback(fallback)
+        .setSuggestions(context.isLiveAgent() ? liveAgentSuggestions : suggestions),
+        conversationId);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+/**
+ * Replies with a fixed text and the default menu.
+ */
+final class TextReply implements CommandHandler {
+
+  /**
+   * How the text is sent.
+   */
+  enum Format {
+    // One plain message
+    PLAIN,
+    // One message with markdown rendered
+    RICH,
+    // Split over several messages if it is too long for one
+    SPLIT
+  }
+
+  private final String text;
+
+  private final Format format;
+
+  /**
+   * @param text The reply text.
+   * @param format How the text is sent.
+   */
+  TextReply(String text, Format format) {
+    this.text = text;
+    this.format = format;
+  }
+
+  @Override
+  public void handle(CommandContext context, String message, String normalizedMessage,
+      String conversationId) {
+    switch (format) {
+      case RICH:
+        context.sendRichResponse(text, conversationId);
+        break;
+      case SPLIT:
+        context.sendLongText(text, conversationId);
+        break;
+      default:
+        context.sendResponse(text, conversationId);
+        break;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.commands;
+
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.BotConstants;
+import com.google.businessmessages.kitchensink.ResponseTemplates;
+import com.google.businessmessages.kitchensink.TranslationCache;
+import java.util.logging.Logger;
+
+/**
+ * Replies to "speak XYZ" with a sample text translated to the requested language. This is the
+ * only command that needs the Translate client, which is loaded with this handler.
+ */
+final class TranslationCommand implements CommandHandler {
+  private static final Logger logger = Logger.getLogger(TranslationCommand.class.getName());
+
+  // Expected time to produce a reply that needs a translation call, until one has been timed
+  private static final long TRANSLATION_REPLY_MILLIS =
+      BotConfig.getLong("kitchensink.typing.translationReplyMillis", 1000);
+
+  /**
+   * The normalizedMessage should be formatted as "speak french", "speak chinese", etc. the
+   * specified langauge is parsed and mapped to a supported language. If no supported language is
+   * found, an error response is shown.
+   */
+  @Override
+  public void handle(CommandContext context, String message, String normalizedMessage,
+      String conversationId) {
+    String language = normalizedMessage.replace("speak ", "").trim();
+
+    // Trim any extra text
+    if (language.indexOf(" ") > 0) {
+      language = language.substring(0, language.indexOf(" "));
+    }
+
+    logger.info("Trying to translate to language: " + language);
+
+    // Attempt to match input language to language map
+    if (BotConstants.LANGUAGE_MAP.containsKey(language)) {
+      String languageCode = BotConstants.LANGUAGE_MAP.get(language);
+
+      TranslationCache translationCache = TranslationCache.getInstance();
+      if (!translationCache.isCachedLocally(BotConstants.RSP_TO_TRANSLATION, languageCode)) {
+        context.startTyping(conversationId, TRANSLATION_REPLY_MILLIS);
+      }
+
+      context.streamResponse(out ->
+          out.accept(translationCache.translate(BotConstants.RSP_TO_TRANSLATION, languageCode)),
+          conversationId);
+    } else { // No matching language found, show default response
+      String noLanguageMatch = "Sorry, but " + language + " is not a supported language.\n\n" +
+          "Here is the list of supported languages: " + ResponseTemplates.SUPPORTED_LANGUAGES;
+
+      context.sendResponse(noLanguageMatch, conversationId);
+    }
+  }
+}
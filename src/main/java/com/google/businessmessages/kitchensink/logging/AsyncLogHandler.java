@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.logging;
+
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log handler that queues records in a fixed-size ring buffer and hands them to the wrapped
+ * handlers on a background thread, so request threads never wait on log formatting or I/O. When
+ * the buffer is full, warnings and errors are written on the calling thread instead, and records
+ * below WARNING are counted as dropped. Queued records are never overwritten.
+ *
+ * <p>Finding the class and method that logged a record takes a stack walk, which costs more than
+ * queuing the record. Unless the handler is told to infer the caller, the logger name is used as
+ * the source class, which names the same class for loggers created from a class name.
+ *
+ * <p>Not for App Engine Standard, where only log lines written on the request thread are tied to
+ * their request in the request logs.
+ */
+public final class AsyncLogHandler extends Handler {
+
+  private static AsyncLogHandler installed;
+
+  private final Handler[] delegates;
+
+  // Whether to walk the stack for the class and method that logged each record
+  private final boolean inferCaller;
+
+  private final LogRecord[] ring;
+
+  private final Object lock = new Object();
+
+  // Index of the oldest queued record and the number of queued records, guarded by lock
+  private int head;
+  private int size;
+  private boolean closed;
+
+  private final Thread worker;
+
+  /**
+   * Creates the handler and starts its writer thread.
+   *
+   * @param capacity The number of records the buffer holds.
+   * @param inferCaller Whether to find the class and method that logged each record.
+   * @param delegates The handlers that write the records.
+   */
+  public AsyncLogHandler(int capacity, boolean inferCaller, Handler... delegates) {
+    this.delegates = delegates.clone();
+    this.inferCaller = inferCaller;
+    this.ring = new LogRecord[capacity];
+
+    this.worker = new Thread(this::drain, "async-log-writer");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Moves the handlers of the root logger behind an async handler. Does nothing if already done.
+   *
+   * @param capacity The number of records the buffer holds.
+   * @param inferCaller Whether to find the class and method that logged each record.
+   */
+  public static synchronized void install(int capacity, boolean inferCaller) {
+    if (installed != null) {
+      return;
+    }
+
+    Logger root = Logger.getLogger("");
+    Handler[] handlers = root.getHandlers();
+    for (Handler handler : handlers) {
+      root.removeHandler(handler);
+    }
+
+    installed = new AsyncLogHandler(capacity, inferCaller, handlers);
+    root.addHandler(installed);
+  }
+
+  /**
+   * Writes out the queued records and gives the root logger its original handlers back.
+   */
+  public static synchronized void uninstall() {
+    if (installed == null) {
+      return;
+    }
+
+    Logger root = Logger.getLogger("");
+    root.removeHandler(installed);
+    installed.close();
+    for (Handler handler : installed.delegates) {
+      root.addHandler(handler);
+    }
+
+    installed = null;
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (!isLoggable(record)) {
+      return;
+    }
+
+    if (inferCaller) {
+      // Resolve the caller now, a stack walk on the writer thread would find the wrong one
+      record.getSourceClassName();
+    } else if (record.getSourceClassName() == null) {
+      record.setSourceClassName(record.getLoggerName());
+    }
+
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+
+      if (size < ring.length) {
+        ring[(head + size) % ring.length] = record;
+        if (size++ == 0) {
+          lock.notifyAll();
+        }
+        return;
+      }
+    }
+
+    if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+      Metrics.increment("log_records_written_inline_total");
+      write(record);
+    } else {
+      Metrics.increment("log_records_dropped_total");
+    }
+  }
+
+  @Override
+  public void flush() {
+    synchronized (lock) {
+      while (size > 0 && !closed) {
+        try {
+          lock.wait(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    for (Handler delegate : delegates) {
+      delegate.flush();
+    }
+  }
+
+  /**
+   * Stops the writer thread once the queued records are written. The wrapped handlers are flushed
+   * but left open, as they may still be used elsewhere.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+
+    try {
+      worker.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (Handler delegate : delegates) {
+      delegate.flush();
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      LogRecord record;
+
+      synchronized (lock) {
+        while (size == 0) {
+          if (closed) {
+            lock.notifyAll();
+            return;
+          }
+
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+
+        record = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+
+        if (size == 0) {
+          // Wake up callers waiting in flush
+          lock.notifyAll();
+        }
+      }
+
+      write(record);
+    }
+  }
+
+  private void write(LogRecord record) {
+    for (Handler delegate : delegates) {
+      try {
+        delegate.publish(record);
+      } catch (RuntimeException e) {
+        reportError(null, e, ErrorManager.WRITE_FAILURE);
+      }
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.logging;
+
+import com.google.businessmessages.kitchensink.BotConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A structured log entry: an event name followed by key=value fields and an optional payload.
+ * Nothing is formatted when the entry is created. The line is only rendered when a handler formats
+ * the record, which with {@link AsyncLogHandler} happens off the request thread. Payloads are
+ * sampled and truncated, and their supplier is never called for entries that are not emitted.
+ *
+ * <pre>
+ * StructuredLog.at(logger, Level.INFO)
+ *     .event("message_send")
+ *     .with("messageId", messageId)
+ *     .payload(message::toPrettyString)
+ *     .log();
+ * </pre>
+ */
+public class StructuredLog {
+
+  // One in this many payloads is logged; 1 logs every payload and 0 none
+  private static final int PAYLOAD_SAMPLE_EVERY =
+      BotConfig.getInt("kitchensink.logging.payloadSampleEvery", 100);
+
+  // Payloads longer than this are cut short
+  private static final int MAX_PAYLOAD_CHARS =
+      BotConfig.getInt("kitchensink.logging.maxPayloadChars", 1024);
+
+  // Returned for levels that are not logged, so disabled entries cost no allocation
+  private static final StructuredLog DISABLED = new StructuredLog(null, null) {
+    @Override
+    public StructuredLog event(String name) {
+      return this;
+    }
+
+    @Override
+    public StructuredLog with(String key, Object value) {
+      return this;
+    }
+
+    @Override
+    public StructuredLog payload(Supplier<String> supplier) {
+      return this;
+    }
+
+    @Override
+    public void log() {
+    }
+  };
+
+  private final Logger logger;
+  private final Level level;
+  private final List<Object> fields = new ArrayList<>(8);
+  private String event;
+  private Supplier<String> payload;
+
+  private StructuredLog(Logger logger, Level level) {
+    this.logger = logger;
+    this.level = level;
+  }
+
+  /**
+   * Starts an entry.
+   *
+   * @param logger The logger to write to.
+   * @param level The level of the entry.
+   * @return The entry, or a no-op entry if the level is not logged.
+   */
+  public static StructuredLog at(Logger logger, Level level) {
+    return logger.isLoggable(level) ? new StructuredLog(logger, level) : DISABLED;
+  }
+
+  /**
+   * @param name The event name, written first on the line.
+   * @return This entry.
+   */
+  public StructuredLog event(String name) {
+    this.event = name;
+
+    return this;
+  }
+
+  /**
+   * Adds a field. The value is converted to a string only when the entry is formatted.
+   *
+   * @param key The field name.
+   * @param value The field value.
+   * @return This entry.
+   */
+  public StructuredLog with(String key, Object value) {
+    fields.add(key);
+    fields.add(value);
+
+    return this;
+  }
+
+  /**
+   * Attaches a payload to a sample of entries.
+   *
+   * @param supplier Produces the payload, only called if the entry is sampled and formatted.
+   * @return This entry.
+   */
+  public StructuredLog payload(Supplier<String> supplier) {
+    if (PAYLOAD_SAMPLE_EVERY > 0
+        && ThreadLocalRandom.current().nextInt(PAYLOAD_SAMPLE_EVERY) == 0) {
+      this.payload = supplier;
+    }
+
+    return this;
+  }
+
+  /**
+   * Writes the entry.
+   */
+  public void log() {
+    LogRecord record = new LogRecord(level, "{0}");
+    record.setParameters(new Object[] {new Line(event, fields, payload)});
+    record.setLoggerName(logger.getName());
+
+    // Set explicitly so the caller isn't inferred from a stack walk on another thread
+    record.setSourceClassName(logger.getName());
+    record.setSourceMethodName(event);
+
+    logger.log(record);
+  }
+
+  /**
+   * The formatted line, rendered on demand by the log formatter.
+   */
+  private static final class Line {
+    private final String event;
+    private final List<Object> fields;
+    private final Supplier<String> payload;
+
+    Line(String event, List<Object> fields, Supplier<String> payload) {
+      this.event = event;
+      this.fields = fields;
+      this.payload = payload;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder line = new StringBuilder(128);
+      line.append("event=").append(event);
+
+      for (int i = 0; i < fields.size(); i += 2) {
+        line.append(' ').append(fields.get(i)).append('=').append(fields.get(i + 1));
+      }
+
+      if (payload != null) {
+        String text = payload.get();
+
+        line.append(" payload=");
+        if (text != null && text.length() > MAX_PAYLOAD_CHARS) {
+          line.append(text, 0, MAX_PAYLOAD_CHARS)
+              .append("...(")
+              .append(text.length() - MAX_PAYLOAD_CHARS)
+              .append(" more chars)");
+        } else {
+          line.append(text);
+        }
+      }
+
+      return line.toString();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values over fixed, roughly exponential buckets. Recording is
+ * a bucket search and two striped counter updates, so it is cheap enough for hot paths.
+ */
+public final class Histogram {
+
+  // Upper bounds of the buckets; values above the last bound fall into the overflow bucket
+  private static final long[] DEFAULT_BOUNDS = {
+      1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000,
+      3600000
+  };
+
+  private final long[] bounds;
+
+  private final LongAdder[] buckets;
+
+  private final LongAdder sum = new LongAdder();
+
+  public Histogram() {
+    this(DEFAULT_BOUNDS);
+  }
+
+  /**
+   * @param bounds The ascending upper bounds of the buckets.
+   */
+  public Histogram(long[] bounds) {
+    this.bounds = bounds.clone();
+    this.buckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param value The value, negative values are recorded as zero.
+   */
+  public void record(long value) {
+    long recorded = Math.max(0, value);
+
+    int low = 0;
+    int high = bounds.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (bounds[mid] < recorded) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    buckets[low].increment();
+    sum.add(recorded);
+  }
+
+  /**
+   * @return The upper bounds of the buckets, without the overflow bucket.
+   */
+  public long[] getBounds() {
+    return bounds.clone();
+  }
+
+  /**
+   * @return The number of values in each bucket, the last entry being the overflow bucket.
+   */
+  public long[] getBucketCounts() {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+
+    return counts;
+  }
+
+  /**
+   * @return The number of recorded values.
+   */
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+
+    return count;
+  }
+
+  /**
+   * @return The sum of the recorded values.
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+}
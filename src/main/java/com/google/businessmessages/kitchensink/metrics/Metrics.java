@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters, gauges and histograms. Counters are striped so that
+ * hot paths can update them from many threads without contention. Names may carry labels in the
+ * Prometheus form, for example {@code bm_receipts_total{receipt_type="READ"}}.
+ */
+public final class Metrics {
+
+  private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  /**
+   * Adds one to a counter, creating it if needed.
+   *
+   * @param name The counter name.
+   */
+  public static void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Adds to a counter, creating it if needed.
+   *
+   * @param name The counter name.
+   * @param delta The amount to add.
+   */
+  public static void add(String name, long delta) {
+    counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+  }
+
+  /**
+   * Gets the current value of a counter.
+   *
+   * @param name The counter name.
+   * @return The counter value, zero if it was never updated.
+   */
+  public static long count(String name) {
+    LongAdder counter = counters.get(name);
+
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Registers a gauge whose value is read when a snapshot is taken. A gauge registered under an
+   * existing name replaces the previous one.
+   *
+   * @param name The gauge name.
+   * @param gauge Supplies the current value.
+   */
+  public static void registerGauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Gets a histogram, creating it if needed.
+   *
+   * @param name The histogram name.
+   * @return The histogram.
+   */
+  public static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  /**
+   * Gets a histogram with the given buckets, creating it if needed.
+   *
+   * @param name The histogram name.
+   * @param bounds The ascending upper bounds of the buckets, used if the histogram is created.
+   * @return The histogram.
+   */
+  public static Histogram histogram(String name, long[] bounds) {
+    return histograms.computeIfAbsent(name, key -> new Histogram(bounds));
+  }
+
+  /**
+   * Gets all histograms, sorted by name.
+   *
+   * @return The histograms.
+   */
+  public static SortedMap<String, Histogram> histograms() {
+    return new TreeMap<>(histograms);
+  }
+
+  /**
+   * Gets the current value of every counter, sorted by name.
+   *
+   * @return The counter values.
+   */
+  public static SortedMap<String, Long> counters() {
+    SortedMap<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+      values.put(counter.getKey(), counter.getValue().sum());
+    }
+
+    return values;
+  }
+
+  /**
+   * Gets the current value of every gauge, sorted by name.
+   *
+   * @return The gauge values.
+   */
+  public static SortedMap<String, Long> gauges() {
+    SortedMap<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().getAsLong());
+    }
+
+    return values;
+  }
+
+  /**
+   * Takes a snapshot of all counters and gauges, sorted by name.
+   *
+   * @return The current values.
+   */
+  public static SortedMap<String, Long> snapshot() {
+    SortedMap<String, Long> values = counters();
+    values.putAll(gauges());
+
+    return values;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each stage of the callback pipeline takes, in microseconds, tagged by stage and
+ * by the command being handled. The command is tracked per thread while a message is routed, so
+ * stages further down the call chain are attributed to it without passing it around.
+ */
+public final class StageTimer {
+
+  // Command tag used outside of routing, before the command is known
+  public static final String NO_COMMAND = "none";
+
+  private static final String METRIC_NAME = "callback_stage_duration_us";
+
+  // Bucket bounds in microseconds, from 10us up to 5 minutes to cover backoff retries
+  private static final long[] BOUNDS = {
+      10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+      1000000, 2500000, 5000000, 10000000, 30000000, 60000000, 300000000
+  };
+
+  private static final ThreadLocal<String> currentCommand = new ThreadLocal<>();
+
+  // Histograms by stage and command, cached to skip building the metric name on every record
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  private StageTimer() {
+  }
+
+  /**
+   * Marks the start of a stage.
+   *
+   * @return The start time to pass to {@link #record}.
+   */
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a stage for the command handled by the current thread.
+   *
+   * @param stage The stage name.
+   * @param startNanos The value returned by {@link #start()}.
+   */
+  public static void record(String stage, long startNanos) {
+    record(stage, currentCommand(), startNanos);
+  }
+
+  /**
+   * Records a stage for a command.
+   *
+   * @param stage The stage name.
+   * @param command The command tag.
+   * @param startNanos The value returned by {@link #start()}.
+   */
+  public static void record(String stage, String command, long startNanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+
+    histograms.computeIfAbsent(stage + '\0' + command, key -> Metrics.histogram(
+        METRIC_NAME + "{stage=\"" + stage + "\",command=\"" + command + "\"}", BOUNDS))
+        .record(micros);
+  }
+
+  /**
+   * Sets the command handled by the current thread.
+   *
+   * @param command The command tag, or null to clear it.
+   */
+  public static void setCommand(String command) {
+    if (command == null) {
+      currentCommand.remove();
+    } else {
+      currentCommand.set(command);
+    }
+  }
+
+  /**
+   * @return The command handled by the current thread, or {@link #NO_COMMAND}.
+   */
+  public static String currentCommand() {
+    String command = currentCommand.get();
+
+    return command == null ? NO_COMMAND : command;
+  }
+}
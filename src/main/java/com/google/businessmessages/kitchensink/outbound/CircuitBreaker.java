@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for a remote dependency. After a run of consecutive failures the circuit opens
+ * and calls are refused without being made. Once the open period has passed a single probe call
+ * is let through: if it succeeds the circuit closes, otherwise it opens again.
+ *
+ * <p>Each time the circuit opens it starts a new generation, and a call reports its outcome
+ * against the generation it was let through in. A call that was already running when the circuit
+ * opened can finish long after, and its outcome says nothing about the dependency now, so it is
+ * ignored rather than closing the circuit again behind the probe's back.
+ */
+public final class CircuitBreaker {
+
+  /**
+   * The state of the circuit.
+   */
+  public enum State {
+    CLOSED,
+    HALF_OPEN,
+    OPEN
+  }
+
+  /**
+   * Returned by {@link #tryAcquire()} when the call may not be made.
+   */
+  public static final long REFUSED = -1;
+
+  private final int failureThreshold;
+
+  private final long openNanos;
+
+  // Guarded by this
+  private State state = State.CLOSED;
+  private long generation;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean probeInFlight;
+
+  /**
+   * @param failureThreshold The number of consecutive failures that opens the circuit.
+   * @param openMillis How long the circuit stays open before a probe is allowed.
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * Asks to make a call. A caller that is allowed must report the outcome with
+   * {@link #onSuccess(long)} or {@link #onFailure(long)}, passing back the permit.
+   *
+   * @return The permit for the call, or {@link #REFUSED} if the call may not be made.
+   */
+  public synchronized long tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return generation;
+      case OPEN:
+        if (System.nanoTime() - openedAt < openNanos) {
+          return REFUSED;
+        }
+        state = State.HALF_OPEN;
+        probeInFlight = true;
+        return generation;
+      default:
+        if (probeInFlight) {
+          return REFUSED;
+        }
+        probeInFlight = true;
+        return generation;
+    }
+  }
+
+  /**
+   * Records a successful call.
+   *
+   * @param permit The permit the call was made with.
+   */
+  public synchronized void onSuccess(long permit) {
+    if (permit != generation) {
+      return;
+    }
+
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    probeInFlight = false;
+  }
+
+  /**
+   * Records a failed call.
+   *
+   * @param permit The permit the call was made with.
+   */
+  public synchronized void onFailure(long permit) {
+    if (permit != generation) {
+      return;
+    }
+
+    consecutiveFailures++;
+    probeInFlight = false;
+
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+      generation++;
+    }
+  }
+
+  /**
+   * @return The current state.
+   */
+  public synchronized State getState() {
+    return state;
+  }
+}
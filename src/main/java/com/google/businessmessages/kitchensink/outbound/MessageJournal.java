@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outbound messages that have not been confirmed by the API yet, kept in a
+ * memory-mapped file so a record survives the process dying right after it was written without a
+ * sync on every send. A message is recorded before it is sent and acknowledged once the API has
+ * accepted it; on open, messages without an acknowledgement are recovered so they can be sent
+ * again. The journal is rewritten with only the pending messages once it fills up.
+ *
+ * <p>Each record is a header (payload length, type, creation time and a CRC32 of the payload)
+ * followed by the payload. A zero length marks the end of the journal, and a record with a bad
+ * checksum, left by a write that was cut short, ends the recovery.
+ *
+ * <p>The journal only helps if the next process that opens it can see the same file. A local
+ * disk that outlives the process, such as a Compute Engine persistent disk, is fine. The /tmp of
+ * an App Engine or Cloud Run instance lives in that instance's memory and is gone once the
+ * instance is, so there the journal only covers retries and restarts within one instance. One
+ * process at a time holds the journal, through a lock on a file next to it.
+ */
+public final class MessageJournal implements Closeable {
+
+  /**
+   * A message waiting for an acknowledgement.
+   */
+  public static final class Entry {
+    private final String conversationId;
+    private final String messageId;
+    private final String messageJson;
+    private final long createdAt;
+
+    Entry(String conversationId, String messageId, String messageJson, long createdAt) {
+      this.conversationId = conversationId;
+      this.messageId = messageId;
+      this.messageJson = messageJson;
+      this.createdAt = createdAt;
+    }
+
+    public String getConversationId() {
+      return conversationId;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    /**
+     * @return The message, serialized as JSON.
+     */
+    public String getMessageJson() {
+      return messageJson;
+    }
+
+    /**
+     * @return When the message was first recorded, in epoch milliseconds.
+     */
+    public long getCreatedAt() {
+      return createdAt;
+    }
+  }
+
+  private static final byte PENDING = 1;
+  private static final byte ACKNOWLEDGED = 2;
+
+  // Payload length, type, creation time and checksum
+  private static final int HEADER_BYTES = 4 + 1 + 8 + 4;
+
+  private final Path file;
+
+  private final int capacity;
+
+  private final boolean sync;
+
+  // Keeps other processes out of the journal while it is open
+  private FileChannel lockChannel;
+
+  // Lets one compaction run at a time, taken before this
+  private final Object compactLock = new Object();
+
+  // Pending messages in the order they were recorded, guarded by this
+  private final Map<String, Entry> pending = new LinkedHashMap<>();
+
+  private FileChannel channel;
+
+  private MappedByteBuffer buffer;
+
+  private MessageJournal(Path file, int capacity, boolean sync) {
+    this.file = file;
+    this.capacity = capacity;
+    this.sync = sync;
+  }
+
+  /**
+   * Opens a journal, recovering the messages that were not acknowledged before it was closed.
+   *
+   * @param file The journal file, created if it doesn't exist.
+   * @param capacity The size of the journal file in bytes.
+   * @param sync When true every record is forced to disk, which also survives a machine crash.
+   * @return The journal.
+   * @throws IOException If the file could not be mapped or another process has it open.
+   */
+  public static MessageJournal open(Path file, int capacity, boolean sync) throws IOException {
+    MessageJournal journal = new MessageJournal(file, capacity, sync);
+    journal.lock();
+    try {
+      journal.map(file);
+      journal.recover();
+
+      // Start over from a clean file holding only what is still pending
+      journal.compact();
+    } catch (IOException | RuntimeException e) {
+      journal.close();
+      throw e;
+    }
+
+    return journal;
+  }
+
+  /**
+   * Records a message before it is sent.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param messageId The message ID.
+   * @param messageJson The message, serialized as JSON.
+   * @throws IOException If the journal is full of pending messages.
+   */
+  public void append(String conversationId, String messageId, String messageJson)
+      throws IOException {
+    Entry entry = new Entry(conversationId, messageId, messageJson, System.currentTimeMillis());
+
+    byte[] payload = encodePending(entry);
+    if (!tryAppend(entry, payload)) {
+      compact();
+
+      if (!tryAppend(entry, payload)) {
+        throw new IOException("Message journal is full");
+      }
+    }
+  }
+
+  /**
+   * Records that a message was accepted by the API.
+   *
+   * @param messageId The message ID.
+   */
+  public void acknowledge(String messageId) {
+    if (tryAcknowledge(messageId)) {
+      return;
+    }
+
+    try {
+      // The entry is already dropped from memory, so the rewrite leaves it out
+      compact();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to compact the message journal", e);
+    }
+  }
+
+  /**
+   * Gets the pending messages recorded before a point in time.
+   *
+   * @param createdBefore The cut-off, in epoch milliseconds.
+   * @return The messages, oldest first.
+   */
+  public synchronized List<Entry> pendingBefore(long createdBefore) {
+    List<Entry> entries = new ArrayList<>();
+    for (Entry entry : pending.values()) {
+      if (entry.createdAt < createdBefore) {
+        entries.add(entry);
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * @return The number of pending messages.
+   */
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+   * @return The fraction of the journal file in use, between 0 and 1.
+   */
+  public synchronized double usage() {
+    return (double) buffer.position() / capacity;
+  }
+
+  /**
+   * Rewrites the journal with only the pending messages. The new file is written next to the
+   * journal and moved over it, so a crash during compaction leaves either file intact. Messages
+   * keep being recorded in the old file while the new one is written and forced to disk; only
+   * catching up with them and the move hold up the writers.
+   *
+   * @throws IOException If the new file could not be written.
+   */
+  public void compact() throws IOException {
+    compact(() -> { });
+  }
+
+  /**
+   * Compacts the journal, running a callback once the pending messages are in the new file and
+   * before it replaces the journal.
+   */
+  void compact(Runnable beforeSwap) throws IOException {
+    synchronized (compactLock) {
+      Map<String, Entry> snapshot;
+      synchronized (this) {
+        if (channel == null) {
+          throw new IOException("Message journal is closed");
+        }
+        snapshot = new LinkedHashMap<>(pending);
+      }
+
+      Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+      Files.deleteIfExists(compacted);
+
+      try {
+        MappedByteBuffer compactBuffer;
+        try (FileChannel compactChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          // The mapping stays valid once the channel is closed
+          compactBuffer = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        for (Entry entry : snapshot.values()) {
+          writeRecord(compactBuffer, PENDING, entry.createdAt, encodePending(entry));
+        }
+        compactBuffer.force();
+
+        beforeSwap.run();
+
+        synchronized (this) {
+          swap(compacted, compactBuffer, snapshot);
+        }
+      } catch (IOException | RuntimeException e) {
+        // Keep appending to the old file
+        Files.deleteIfExists(compacted);
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (buffer != null && channel != null) {
+        buffer.force();
+      }
+      closeChannel();
+    } finally {
+      if (lockChannel != null) {
+        // Closing the channel releases the lock
+        lockChannel.close();
+        lockChannel = null;
+      }
+    }
+  }
+
+  /**
+   * Writes what was recorded while the compacted file was being written to it, and moves it over
+   * the journal.
+   */
+  private void swap(Path compacted, MappedByteBuffer compactBuffer, Map<String, Entry> snapshot)
+      throws IOException {
+    if (channel == null) {
+      throw new IOException("Message journal is closed");
+    }
+
+    for (Entry entry : pending.values()) {
+      if (!snapshot.containsKey(entry.messageId)) {
+        writeRecord(compactBuffer, PENDING, entry.createdAt, encodePending(entry));
+      }
+    }
+    for (String messageId : snapshot.keySet()) {
+      if (!pending.containsKey(messageId)) {
+        writeRecord(compactBuffer, ACKNOWLEDGED, System.currentTimeMillis(),
+            messageId.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    compactBuffer.force();
+    int end = compactBuffer.position();
+
+    // The old file stays mapped until the move has gone through
+    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    closeChannel();
+    map(file);
+    buffer.position(end);
+  }
+
+  private synchronized boolean tryAppend(Entry entry, byte[] payload) throws IOException {
+    if (channel == null) {
+      throw new IOException("Message journal is closed");
+    }
+    if (!hasRoom(buffer, payload.length)) {
+      return false;
+    }
+
+    write(PENDING, entry.createdAt, payload);
+    pending.put(entry.messageId, entry);
+    return true;
+  }
+
+  /**
+   * Records an acknowledgement, returning false if the entry was dropped but the journal has no
+   * room left for the record.
+   */
+  private synchronized boolean tryAcknowledge(String messageId) {
+    if (pending.remove(messageId) == null) {
+      return true;
+    }
+
+    byte[] payload = messageId.getBytes(StandardCharsets.UTF_8);
+    if (!hasRoom(buffer, payload.length)) {
+      return false;
+    }
+
+    write(ACKNOWLEDGED, System.currentTimeMillis(), payload);
+    return true;
+  }
+
+  private void lock() throws IOException {
+    Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+    Files.createDirectories(lockFile.toAbsolutePath().getParent());
+
+    lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+
+    if (lock == null) {
+      lockChannel.close();
+      lockChannel = null;
+      throw new IOException("Message journal " + file + " is already open");
+    }
+  }
+
+  private void map(Path path) throws IOException {
+    Files.createDirectories(path.toAbsolutePath().getParent());
+
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  private void closeChannel() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Replays the records, leaving the buffer positioned after the last valid one.
+   */
+  private void recover() {
+    buffer.position(0);
+
+    Record record;
+    while ((record = readRecord()) != null) {
+      if (record.type == PENDING) {
+        Entry entry = decodePending(record.payload, record.createdAt);
+        pending.put(entry.messageId, entry);
+      } else {
+        pending.remove(new String(record.payload, StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  /**
+   * Reads the record at the current position, or returns null and leaves the position unchanged
+   * at the end of the journal.
+   */
+  private Record readRecord() {
+    int start = buffer.position();
+    if (capacity - start < HEADER_BYTES) {
+      return null;
+    }
+
+    int length = buffer.getInt();
+    byte type = buffer.get();
+    long createdAt = buffer.getLong();
+    int checksum = buffer.getInt();
+
+    if (length <= 0 || length > capacity - buffer.position()
+        || (type != PENDING && type != ACKNOWLEDGED)) {
+      buffer.position(start);
+      return null;
+    }
+
+    byte[] payload = new byte[length];
+    buffer.get(payload);
+
+    if (checksum != checksum(payload)) {
+      buffer.position(start);
+      return null;
+    }
+
+    return new Record(type, createdAt, payload);
+  }
+
+  private static boolean hasRoom(ByteBuffer out, int payloadLength) {
+    // Leave room for the zero length that marks the end
+    return out.remaining() >= HEADER_BYTES + payloadLength + 4;
+  }
+
+  private void write(byte type, long createdAt, byte[] payload) {
+    putRecord(buffer, type, createdAt, payload);
+
+    if (sync) {
+      buffer.force();
+    }
+  }
+
+  private static void writeRecord(ByteBuffer out, byte type, long createdAt, byte[] payload)
+      throws IOException {
+    if (!hasRoom(out, payload.length)) {
+      throw new IOException("Message journal is full");
+    }
+
+    putRecord(out, type, createdAt, payload);
+  }
+
+  private static void putRecord(ByteBuffer out, byte type, long createdAt, byte[] payload) {
+    int start = out.position();
+
+    // Write the body first and the length last, so a torn write reads as the end of the journal
+    out.position(start + 4);
+    out.put(type);
+    out.putLong(createdAt);
+    out.putInt(checksum(payload));
+    out.put(payload);
+    int end = out.position();
+
+    out.putInt(0);
+    out.putInt(start, payload.length);
+    out.position(end);
+  }
+
+  private static byte[] encodePending(Entry entry) {
+    byte[] conversationId = entry.conversationId.getBytes(StandardCharsets.UTF_8);
+    byte[] messageId = entry.messageId.getBytes(StandardCharsets.UTF_8);
+    byte[] json = entry.messageJson.getBytes(StandardCharsets.UTF_8);
+
+    return ByteBuffer.allocate(8 + conversationId.length + messageId.length + json.length)
+        .putInt(conversationId.length).put(conversationId)
+        .putInt(messageId.length).put(messageId)
+        .put(json)
+        .array();
+  }
+
+  private static Entry decodePending(byte[] payload, long createdAt) {
+    ByteBuffer in = ByteBuffer.wrap(payload);
+
+    byte[] conversationId = new byte[in.getInt()];
+    in.get(conversationId);
+    byte[] messageId = new byte[in.getInt()];
+    in.get(messageId);
+    byte[] json = new byte[in.remaining()];
+    in.get(json);
+
+    return new Entry(new String(conversationId, StandardCharsets.UTF_8),
+        new String(messageId, StandardCharsets.UTF_8),
+        new String(json, StandardCharsets.UTF_8), createdAt);
+  }
+
+  private static int checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    return (int) crc.getValue();
+  }
+
+  private static final class Record {
+    final byte type;
+    final long createdAt;
+    final byte[] payload;
+
+    Record(byte type, long createdAt, byte[] payload) {
+      this.type = type;
+      this.createdAt = createdAt;
+      this.payload = payload;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.state.LruCache;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for calls to the Business Messages API. Every call passes, in order:
+ *
+ * <ul>
+ *   <li>a per-conversation and a global token bucket. User-visible calls wait a bounded time for
+ *       a token, cosmetic calls are dropped right away;</li>
+ *   <li>a bulkhead for its {@link CallType}, so cosmetic events can never take the capacity
+ *       needed by messages. It is entered after the tokens are taken, so a call waiting out its
+ *       rate limit doesn't hold a permit, and user-visible calls wait a bounded time for it;</li>
+ *   <li>a circuit breaker that stops calling the API while it is failing and probes it with a
+ *       single call once the open period has passed.</li>
+ * </ul>
+ *
+ * <p>A refused call fails with {@link OutboundRejectedException} without reaching the network.
+ * Retries are admitted one attempt at a time by {@link #callWithRetries}, so a call backing off
+ * gives its permit up and each attempt counts against the rate limits.
+ */
+public final class OutboundGovernor {
+
+  /**
+   * How a call is treated by the governor.
+   */
+  public enum CallType {
+    // Messages, representative events and surveys the user sees
+    MESSAGE,
+    // Typing indicators, which are safe to drop
+    COSMETIC
+  }
+
+  /**
+   * An outbound API call.
+   *
+   * @param <T> The result type.
+   */
+  @FunctionalInterface
+  public interface Call<T> {
+    T execute() throws IOException;
+  }
+
+  private static final OutboundGovernor INSTANCE = fromConfig();
+
+  private final TokenBucket globalBucket;
+
+  // Buckets of recently active conversations
+  private final LruCache<String, TokenBucket> conversationBuckets;
+
+  private final double conversationRatePerSecond;
+
+  private final int conversationBurst;
+
+  private final long maxWaitNanos;
+
+  private final CircuitBreaker circuitBreaker;
+
+  private final Map<CallType, Semaphore> bulkheads = new EnumMap<>(CallType.class);
+
+  private OutboundGovernor(Builder builder) {
+    this.globalBucket = new TokenBucket(builder.globalRatePerSecond, builder.globalBurst);
+    this.conversationBuckets = new LruCache<>(builder.maxTrackedConversations,
+        TimeUnit.MINUTES.toMillis(10));
+    this.conversationRatePerSecond = builder.conversationRatePerSecond;
+    this.conversationBurst = builder.conversationBurst;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxWaitMillis);
+    this.circuitBreaker = new CircuitBreaker(builder.failureThreshold, builder.openMillis);
+
+    bulkheads.put(CallType.MESSAGE, new Semaphore(builder.messageConcurrency));
+    bulkheads.put(CallType.COSMETIC, new Semaphore(builder.cosmeticConcurrency));
+  }
+
+  /**
+   * Gets the process-wide governor, configured from the kitchensink.outbound.* settings.
+   *
+   * @return The shared governor.
+   */
+  public static OutboundGovernor getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Creates a builder for a governor, starting from the default settings.
+   *
+   * @return A new builder.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static OutboundGovernor fromConfig() {
+    OutboundGovernor governor = builder()
+        .globalRate(
+            BotConfig.getInt("kitchensink.outbound.globalRatePerSecond", 100),
+            BotConfig.getInt("kitchensink.outbound.globalBurst", 200))
+        .conversationRate(
+            BotConfig.getInt("kitchensink.outbound.conversationRatePerSecond", 5),
+            BotConfig.getInt("kitchensink.outbound.conversationBurst", 10))
+        .maxTrackedConversations(
+            BotConfig.getInt("kitchensink.outbound.maxTrackedConversations", 10000))
+        .maxWaitMillis(BotConfig.getLong("kitchensink.outbound.maxWaitMillis", 2000))
+        .circuitBreaker(
+            BotConfig.getInt("kitchensink.outbound.breaker.failureThreshold", 5),
+            BotConfig.getLong("kitchensink.outbound.breaker.openMillis", 10000))
+        .bulkheads(
+            // One permit per sender thread, so the bulkhead only bites on other callers
+            BotConfig.getInt("kitchensink.outbound.messageConcurrency",
+                BotConfig.getInt("kitchensink.outbound.senderThreads", 16)),
+            BotConfig.getInt("kitchensink.outbound.cosmeticConcurrency", 4))
+        .build();
+
+    Metrics.registerGauge("bm_circuit_state",
+        () -> governor.circuitBreaker.getState().ordinal());
+
+    return governor;
+  }
+
+  /**
+   * Makes a call if the limits allow it.
+   *
+   * @param type How the call is treated.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param call The API call.
+   * @param <T> The result type.
+   * @return The result of the call.
+   * @throws OutboundRejectedException If the call was refused.
+   * @throws IOException If the call failed.
+   */
+  public <T> T call(CallType type, String conversationId, Call<T> call) throws IOException {
+    throttle(type, conversationId);
+
+    Semaphore bulkhead = bulkheads.get(type);
+    if (!enter(type, bulkhead)) {
+      throw reject(type, "bulkhead_full");
+    }
+
+    try {
+      long permit = circuitBreaker.tryAcquire();
+      if (permit == CircuitBreaker.REFUSED) {
+        throw reject(type, "circuit_open");
+      }
+
+      T result;
+      try {
+        result = call.execute();
+      } catch (IOException e) {
+        if (isServerFailure(e)) {
+          circuitBreaker.onFailure(permit);
+        } else {
+          circuitBreaker.onSuccess(permit);
+        }
+        throw e;
+      } catch (RuntimeException e) {
+        circuitBreaker.onFailure(permit);
+        throw e;
+      }
+
+      circuitBreaker.onSuccess(permit);
+
+      return result;
+    } finally {
+      bulkhead.release();
+    }
+  }
+
+  /**
+   * Makes a call, retrying it with backoff while the API answers with a server error. Each attempt
+   * is admitted on its own, and nothing is held while backing off. A refused attempt is not
+   * retried, nor is a failure once the circuit is open.
+   *
+   * @param type How the call is treated.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param backOff The delays between attempts.
+   * @param sleeper Waits out each delay.
+   * @param call The API call.
+   * @param <T> The result type.
+   * @return The result of the call.
+   * @throws OutboundRejectedException If an attempt was refused.
+   * @throws IOException If the last attempt failed.
+   */
+  public <T> T callWithRetries(CallType type, String conversationId, BackOff backOff,
+      Sleeper sleeper, Call<T> call) throws IOException {
+    while (true) {
+      try {
+        return call(type, conversationId, call);
+      } catch (HttpResponseException e) {
+        if (e.getStatusCode() < 500 || isCircuitOpen()) {
+          throw e;
+        }
+
+        long delayMillis = backOff.nextBackOffMillis();
+        if (delayMillis == BackOff.STOP) {
+          throw e;
+        }
+
+        Metrics.increment("bm_outbound_retries_total{status=\"" + e.getStatusCode() + "\"}");
+        try {
+          sleeper.sleep(delayMillis);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while backing off");
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks whether calls are currently being refused, so retries can stop early.
+   *
+   * @return True if the circuit is open.
+   */
+  public boolean isCircuitOpen() {
+    return circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+  }
+
+  /**
+   * Takes a token from the conversation and the global bucket, waiting for them if the call type
+   * allows it.
+   */
+  private void throttle(CallType type, String conversationId) throws IOException {
+    long maxWait = type == CallType.MESSAGE ? maxWaitNanos : 0;
+
+    TokenBucket conversationBucket = conversationBuckets.computeIfAbsent(conversationId,
+        key -> new TokenBucket(conversationRatePerSecond, conversationBurst));
+
+    long conversationWait = conversationBucket.reserve(maxWait);
+    if (conversationWait < 0) {
+      throw reject(type, "rate_limited");
+    }
+
+    long globalWait = globalBucket.reserve(maxWait);
+    if (globalWait < 0) {
+      conversationBucket.refund();
+      throw reject(type, "rate_limited");
+    }
+
+    long waitNanos = Math.max(conversationWait, globalWait);
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+    }
+  }
+
+  /**
+   * Takes a bulkhead permit, waiting for one if the call type allows it.
+   */
+  private boolean enter(CallType type, Semaphore bulkhead) throws IOException {
+    if (type != CallType.MESSAGE) {
+      return bulkhead.tryAcquire();
+    }
+
+    try {
+      return bulkhead.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the bulkhead");
+    }
+  }
+
+  /**
+   * Server errors, throttling and network failures count against the API. Other client errors
+   * mean the API is up and the request was wrong.
+   */
+  private static boolean isServerFailure(IOException e) {
+    if (e instanceof HttpResponseException) {
+      int status = ((HttpResponseException) e).getStatusCode();
+
+      return status == 429 || status >= 500;
+    }
+
+    return true;
+  }
+
+  private static OutboundRejectedException reject(CallType type, String reason) {
+    Metrics.increment("bm_outbound_rejected_total{call_type=\""
+        + type.name().toLowerCase() + "\",reason=\"" + reason + "\"}");
+
+    return new OutboundRejectedException(reason);
+  }
+
+  /**
+   * Builder for {@link OutboundGovernor}.
+   */
+  public static final class Builder {
+    private double globalRatePerSecond = 100;
+    private int globalBurst = 200;
+    private double conversationRatePerSecond = 5;
+    private int conversationBurst = 10;
+    private int maxTrackedConversations = 10000;
+    private long maxWaitMillis = 2000;
+    private int failureThreshold = 5;
+    private long openMillis = 10000;
+    private int messageConcurrency = 16;
+    private int cosmeticConcurrency = 4;
+
+    private Builder() {
+    }
+
+    /**
+     * @param ratePerSecond The sustained rate of calls across all conversations.
+     * @param burst The number of calls allowed at once above the rate.
+     * @return This builder.
+     */
+    public Builder globalRate(double ratePerSecond, int burst) {
+      this.globalRatePerSecond = ratePerSecond;
+      this.globalBurst = burst;
+
+      return this;
+    }
+
+    /**
+     * @param ratePerSecond The sustained rate of calls to a single conversation.
+     * @param burst The number of calls allowed at once above the rate.
+     * @return This builder.
+     */
+    public Builder conversationRate(double ratePerSecond, int burst) {
+      this.conversationRatePerSecond = ratePerSecond;
+      this.conversationBurst = burst;
+
+      return this;
+    }
+
+    /**
+     * @param maxTrackedConversations The number of conversations whose buckets are kept.
+     * @return This builder.
+     */
+    public Builder maxTrackedConversations(int maxTrackedConversations) {
+      this.maxTrackedConversations = maxTrackedConversations;
+
+      return this;
+    }
+
+    /**
+     * @param maxWaitMillis How long a user-visible call may wait for a token, and then for a
+     *     bulkhead permit.
+     * @return This builder.
+     */
+    public Builder maxWaitMillis(long maxWaitMillis) {
+      this.maxWaitMillis = maxWaitMillis;
+
+      return this;
+    }
+
+    /**
+     * @param failureThreshold The number of consecutive failures that opens the circuit.
+     * @param openMillis How long the circuit stays open before it is probed.
+     * @return This builder.
+     */
+    public Builder circuitBreaker(int failureThreshold, long openMillis) {
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+
+      return this;
+    }
+
+    /**
+     * @param messageConcurrency The number of user-visible calls allowed in flight.
+     * @param cosmeticConcurrency The number of cosmetic calls allowed in flight.
+     * @return This builder.
+     */
+    public Builder bulkheads(int messageConcurrency, int cosmeticConcurrency) {
+      this.messageConcurrency = messageConcurrency;
+      this.cosmeticConcurrency = cosmeticConcurrency;
+
+      return this;
+    }
+
+    /**
+     * @return The governor.
+     */
+    public OutboundGovernor build() {
+      return new OutboundGovernor(this);
+    }
+  }
+}
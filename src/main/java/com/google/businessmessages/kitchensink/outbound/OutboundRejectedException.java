@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the {@link OutboundGovernor} refuses to make a call.
+ */
+public class OutboundRejectedException extends IOException {
+
+  private final String reason;
+
+  /**
+   * @param reason Why the call was refused: "rate_limited", "bulkhead_full" or "circuit_open".
+   */
+  public OutboundRejectedException(String reason) {
+    super("Outbound call rejected: " + reason);
+    this.reason = reason;
+  }
+
+  /**
+   * @return Why the call was refused.
+   */
+  public String getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens refill continuously up to the burst size. A caller may reserve
+ * a token that is not there yet if it is willing to wait for it, which lets the bucket smooth a
+ * burst out instead of rejecting it.
+ */
+public final class TokenBucket {
+
+  private final double capacity;
+
+  private final double tokensPerNano;
+
+  // Guarded by this
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param ratePerSecond The number of tokens added per second.
+   * @param burst The maximum number of tokens held.
+   */
+  public TokenBucket(double ratePerSecond, int burst) {
+    this.capacity = burst;
+    this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.tokens = burst;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Reserves a token.
+   *
+   * @param maxWaitNanos The longest the caller is willing to wait for the token.
+   * @return How long to wait before using the token, or -1 if it would take longer than allowed
+   *     and nothing was reserved.
+   */
+  public synchronized long reserve(long maxWaitNanos) {
+    refill();
+
+    if (tokens >= 1) {
+      tokens -= 1;
+      return 0;
+    }
+
+    long waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+    if (waitNanos > maxWaitNanos) {
+      return -1;
+    }
+
+    // Going negative makes later callers queue behind this one
+    tokens -= 1;
+    return waitNanos;
+  }
+
+  /**
+   * Gives back a token reserved for a call that was not made.
+   */
+  public synchronized void refund() {
+    tokens = Math.min(capacity, tokens + 1);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.pubsub;
+
+// [START import_libraries]
+import com.google.api.core.ApiService;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import com.google.businessmessages.kitchensink.callback.CallbackEvent;
+import com.google.businessmessages.kitchensink.callback.CallbackEventReader;
+import com.google.businessmessages.kitchensink.callback.CallbackProcessor;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+// [END import_libraries]
+
+/**
+ * Receives callback events by pulling them from a Pub/Sub subscription instead of having them
+ * pushed to the callback servlet. A streaming-pull subscriber hands messages to a few executor
+ * threads, which decode them and queue the work in the conversation mailboxes, the same ones that
+ * pushed webhooks go through, so a conversation's events stay in order while both arrive. A message
+ * is only acked once its work has run, so the subscriber's flow control limits (outstanding
+ * messages and bytes) bound the work in flight and a burst waits in the subscription rather than
+ * timing out. Acks are collected by the subscriber and sent to Pub/Sub in batches.
+ *
+ * <p>A message whose mailbox is full is nacked. Events are de-duped when their work runs, so its
+ * ID was never recorded and the redelivery is processed normally.
+ *
+ * <p>Messages can also be fed straight to {@link #receiveMessage}, without a subscriber, to drive
+ * the bot from an in-memory stand-in for Pub/Sub.
+ */
+public final class PullIngestion implements MessageReceiver {
+  private static final Logger logger = Logger.getLogger(PullIngestion.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  private static PullIngestion running;
+
+  private final CallbackProcessor processor;
+
+  private final ConversationExecutor executor;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  // Null when messages are fed in directly
+  private Subscriber subscriber;
+
+  // Channel to the Pub/Sub emulator, null when connected to Pub/Sub itself
+  private ManagedChannel emulatorChannel;
+
+  /**
+   * @param processor Turns the decoded events into bot work.
+   * @param executor Runs the work, in order for each conversation.
+   */
+  public PullIngestion(CallbackProcessor processor, ConversationExecutor executor) {
+    this.processor = processor;
+    this.executor = executor;
+  }
+
+  /**
+   * Starts pulling from the subscription named by "kitchensink.pubsub.subscription". Does nothing
+   * if already started.
+   */
+  public static synchronized void start() {
+    if (running != null) {
+      return;
+    }
+
+    String subscriptionId = BotConfig.getString("kitchensink.pubsub.subscription", null);
+    if (subscriptionId == null) {
+      throw new IllegalStateException("kitchensink.pubsub.subscription is required to pull");
+    }
+
+    ProjectSubscriptionName subscription = ProjectSubscriptionName.of(
+        BotConfig.getString("kitchensink.pubsub.projectId", ServiceOptions.getDefaultProjectId()),
+        subscriptionId);
+
+    ConversationExecutor executor = ConversationExecutor.getShared();
+    if (executor == null) {
+      throw new IllegalStateException("Pulling needs conversation workers, which this instance "
+          + "can't start");
+    }
+
+    PullIngestion ingestion = new PullIngestion(CallbackProcessor.getInstance(), executor);
+    ingestion.subscribe(subscription,
+        BotConfig.getString("kitchensink.pubsub.emulatorHost",
+            System.getenv("PUBSUB_EMULATOR_HOST")));
+
+    Metrics.registerGauge("pubsub_outstanding_messages", ingestion::getOutstanding);
+
+    running = ingestion;
+  }
+
+  /**
+   * Stops pulling. The work of received messages is finished when the shared executor shuts down.
+   */
+  public static synchronized void stop() {
+    if (running == null) {
+      return;
+    }
+
+    running.close();
+    running = null;
+  }
+
+  /**
+   * Decodes a message and queues its work in the conversation's mailbox.
+   *
+   * @param message The Pub/Sub message, carrying a webhook payload as its data.
+   * @param consumer Acks the message once its work has run, or nacks it if it can't be queued.
+   */
+  @Override
+  public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+    Metrics.increment("pubsub_messages_total");
+
+    CallbackEvent event;
+    long parseStart = StageTimer.start();
+    try {
+      event = CallbackEventReader.read(message.getData().newInput());
+    } catch (IOException e) {
+      event = null;
+    } finally {
+      StageTimer.record("parse", parseStart);
+    }
+
+    // A redelivery wouldn't decode any better
+    if (event == null || event.getConversationId() == null) {
+      Metrics.increment("pubsub_messages_malformed_total");
+      logger.warning("Dropping malformed Pub/Sub message " + message.getMessageId());
+
+      consumer.ack();
+      return;
+    }
+
+    Runnable work = processor.prepare(event);
+    if (work == null) {
+      consumer.ack();
+      return;
+    }
+
+    outstanding.incrementAndGet();
+
+    boolean queued = executor.submit(event.getConversationId(), () -> {
+      try {
+        work.run();
+      } finally {
+        outstanding.decrementAndGet();
+        consumer.ack();
+      }
+    });
+
+    if (!queued) {
+      outstanding.decrementAndGet();
+      Metrics.increment("pubsub_messages_nacked_total");
+
+      consumer.nack();
+    }
+  }
+
+  /**
+   * Gets the number of received messages whose work hasn't finished.
+   *
+   * @return The outstanding message count.
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Starts a streaming-pull subscriber that feeds this receiver.
+   *
+   * @param subscription The subscription to pull from.
+   * @param emulatorHost The host:port of a Pub/Sub emulator, or null for Pub/Sub itself.
+   */
+  private void subscribe(ProjectSubscriptionName subscription, String emulatorHost) {
+    FlowControlSettings flowControl = FlowControlSettings.newBuilder()
+        .setMaxOutstandingElementCount(
+            BotConfig.getLong("kitchensink.pubsub.maxOutstandingMessages", 1000))
+        .setMaxOutstandingRequestBytes(
+            BotConfig.getLong("kitchensink.pubsub.maxOutstandingBytes", 10 * 1024 * 1024))
+        .build();
+
+    Subscriber.Builder builder = Subscriber.newBuilder(subscription, this)
+        .setFlowControlSettings(flowControl)
+        .setParallelPullCount(BotConfig.getInt("kitchensink.pubsub.parallelPullCount", 1))
+        .setExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+            .setExecutorThreadCount(BotConfig.getInt("kitchensink.pubsub.executorThreads", 4))
+            .build());
+
+    if (emulatorHost != null && !emulatorHost.isEmpty()) {
+      emulatorChannel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build();
+
+      builder.setChannelProvider(
+          FixedTransportChannelProvider.create(GrpcTransportChannel.create(emulatorChannel)))
+          .setCredentialsProvider(NoCredentialsProvider.create());
+
+      logger.info("Pulling from the Pub/Sub emulator at " + emulatorHost);
+    }
+
+    subscriber = builder.build();
+    subscriber.addListener(new ApiService.Listener() {
+      @Override
+      public void failed(ApiService.State from, Throwable failure) {
+        logger.log(Level.SEVERE, "Pub/Sub subscriber failed", failure);
+      }
+    }, MoreExecutors.directExecutor());
+
+    subscriber.startAsync().awaitRunning();
+    logger.info("Pulling callback events from " + subscription);
+  }
+
+  private void close() {
+    if (subscriber != null) {
+      try {
+        subscriber.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+      } catch (TimeoutException | IllegalStateException e) {
+        logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+      }
+    }
+
+    if (emulatorChannel != null) {
+      emulatorChannel.shutdownNow();
+    }
+  }
+}
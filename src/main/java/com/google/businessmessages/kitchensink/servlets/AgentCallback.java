@@ -17,19 +17,19 @@ package com.google.businessmessages.kitchensink.servlets;
 
 // [START import_libraries]
 
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.businessmessages.kitchensink.BotConstants;
-import com.google.businessmessages.kitchensink.KitchenSinkBot;
-import com.google.communications.businessmessages.v1.RepresentativeType;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.BotThreads;
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import com.google.businessmessages.kitchensink.TranslationCache;
+import com.google.businessmessages.kitchensink.callback.CallbackEvent;
+import com.google.businessmessages.kitchensink.callback.CallbackEventReader;
+import com.google.businessmessages.kitchensink.callback.CallbackProcessor;
+import com.google.businessmessages.kitchensink.logging.AsyncLogHandler;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.metrics.StageTimer;
 import java.io.IOException;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -44,138 +44,103 @@ public class AgentCallback extends HttpServlet {
 
   private static final Logger logger = Logger.getLogger(AgentCallback.class.getName());
 
+  // When true, webhooks are acknowledged right away and processed on the worker queue, if its
+  // workers can call the App Engine APIs
+  private static final boolean ASYNC_INGESTION =
+      BotConfig.getBoolean("kitchensink.ingestion.async", true);
+
+  // Runs routing for queued webhooks, in order for each conversation and in parallel across them.
+  // Shared with pull ingestion, and null when webhooks are processed on the request thread
+  private ConversationExecutor executor;
+
+  // De-dupes callback events and routes them to the bot
+  private CallbackProcessor processor;
+
   public AgentCallback() {
     super();
   }
 
   @Override
-  public void doPost(HttpServletRequest request, HttpServletResponse response)
-      throws IOException {
-    // set the response type to JSON
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-
-    String jsonResponse = request.getReader().lines().collect(
-        Collectors.joining(System.lineSeparator())
-    );
+  public void init() throws ServletException {
+    super.init();
+
+    // Off by default on App Engine, which only ties log lines written on the request thread to
+    // their request
+    if (BotConfig.getBoolean("kitchensink.logging.async", !BotThreads.isAppEngine())) {
+      AsyncLogHandler.install(BotConfig.getInt("kitchensink.logging.bufferSize", 1024),
+          BotConfig.getBoolean("kitchensink.logging.inferCaller", false));
+    }
 
-    logger.info(jsonResponse);
+    processor = CallbackProcessor.getInstance();
 
-    // Load the JSON string into a Json parser
-    JsonParser parser = new JsonParser();
-    JsonObject obj = parser.parse(jsonResponse).getAsJsonObject();
+    // The warm-up reads and writes the state store, so it needs a thread that can call it
+    if (BotConfig.getBoolean("kitchensink.translation.warmUp", false)
+        && BotThreads.workersCanCallApis()) {
+      BotThreads.newFactory("translation-warm-up")
+          .newThread(() -> TranslationCache.getInstance().warmUp())
+          .start();
+    }
 
-    // Parse incoming request
-    String conversationId = obj.get("conversationId").getAsString();
-
-    // Use memcache to de-dupe messages
-    MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
-
-    if (obj.has("message")) {
-      String message = obj.get("message").getAsJsonObject().get("text").getAsString();
-      String messageId = obj.get("message").getAsJsonObject().get("messageId").getAsString();
-
-      // Check to see if this message has already been seen, if so, ignore
-      if (!syncCache.contains(messageId)) {
-        syncCache.put(messageId, true);
-
-        routeTextResponse(conversationId, message);
-      }
-    } else if (obj.has("requestId")) {
-      String requestId = obj.get("requestId").getAsString();
-
-      // Check to see if this response has already been seen, if so, ignore
-      if (!syncCache.contains(requestId)) {
-        syncCache.put(requestId, true);
-
-        handleNonMessageResponse(obj, conversationId);
-      } else {
-        logger.info("Request ID found in the cache.");
-      }
-    } else { // Survey responses
-      handleNonMessageResponse(obj, conversationId);
+    if (ASYNC_INGESTION) {
+      executor = ConversationExecutor.getShared();
     }
   }
 
-  private BusinessMessagesRepresentative switchAndGetRepresentative(
-      RepresentativeType representativeType) {
-    MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
-
-    BusinessMessagesRepresentative representative =
-        representativeType == RepresentativeType.BOT ?
-            new BusinessMessagesRepresentative()
-                .setRepresentativeType(RepresentativeType.BOT.toString())
-                .setDisplayName(BotConstants.BOT_AGENT_NAME)
-                .setAvatarImage(BotConstants.BOT_AGENT_AVATAR) :
-            new BusinessMessagesRepresentative()
-                .setRepresentativeType(RepresentativeType.HUMAN.toString())
-                .setDisplayName(BotConstants.LIVE_AGENT_NAME)
-                .setAvatarImage(BotConstants.LIVE_AGENT_AVATAR);
-
-    syncCache.put("representativeType", representativeType.toString());
+  @Override
+  public void destroy() {
+    // The executor is shut down with the application, it may still run pulled events
+    AsyncLogHandler.uninstall();
 
-    return representative;
+    super.destroy();
   }
 
-  private BusinessMessagesRepresentative getRepresentative() {
-    MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    // set the response type to JSON
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
 
-    if (syncCache.contains("representativeType")) {
-      return switchAndGetRepresentative(Enum.valueOf(RepresentativeType.class,
-          syncCache.get("representativeType").toString()));
-    } else {
-      return switchAndGetRepresentative(RepresentativeType.BOT);
+    Metrics.increment("callback_webhooks_total");
+
+    // Decode the payload straight from the request stream and validate it
+    CallbackEvent event;
+    long parseStart = StageTimer.start();
+    try {
+      event = CallbackEventReader.read(request.getInputStream());
+    } catch (IOException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed callback payload");
+      return;
+    } finally {
+      StageTimer.record("parse", parseStart);
     }
-  }
 
-  private void handleNonMessageResponse(JsonObject obj, String conversationId) {
-    if (obj.has("suggestionResponse")) {
-      String postbackData = obj.get("suggestionResponse")
-          .getAsJsonObject().get("postbackData").getAsString();
-
-      routeTextResponse(conversationId, postbackData);
-    } else if (obj.has("userStatus")) {
-      obj = obj.get("userStatus").getAsJsonObject();
-
-      if (obj.has("isTyping")) {
-        logger.info("User is typing");
-      } else if (obj.has("requestedLiveAgent")) {
-        logger.info("User requested transfer to live agent");
-
-        if (obj.get("requestedLiveAgent").getAsBoolean()) {
-          new KitchenSinkBot(switchAndGetRepresentative(RepresentativeType.HUMAN))
-              .transferToLiveAgent(conversationId);
-        }
-      }
-    } else if (obj.has("receipts")) {
-      JsonArray receipts
-          = obj.get("receipts").getAsJsonObject().getAsJsonArray("receipts");
-
-      for (JsonElement element : receipts) {
-        String receiptType = element.getAsJsonObject().get("receiptType").getAsString();
-        String messageId = element.getAsJsonObject().get("message").getAsString();
-
-        logger.info("Receipt: (" + receiptType + ", " + messageId + ")");
-      }
-    } else if (obj.has("surveyResponse")) {
-      String rating
-          = obj.get("surveyResponse").getAsJsonObject().get("rating").getAsString();
-
-      new KitchenSinkBot(getRepresentative()).routeMessage(rating, conversationId);
+    // Parse incoming request
+    String conversationId = event.getConversationId();
+    if (conversationId == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing conversationId");
+      return;
     }
-  }
 
-  private void routeTextResponse(String conversationId, String message) {
-    String normalizedMessage = message.toLowerCase().trim();
+    Runnable work = processor.prepare(event);
+    if (work != null) {
+      dispatch(conversationId, work, response);
+    }
+  }
 
-    // Check if this is a transfer request to go back to a bot conversation
-    if (normalizedMessage.equals(BotConstants.CMD_BACK_TO_BOT)) {
-      BusinessMessagesRepresentative representative = switchAndGetRepresentative(
-          RepresentativeType.BOT);
+  /**
+   * Runs the webhook work, either inline or on the worker queue. When the queue for the
+   * conversation is full the webhook is answered with 503 so the platform redelivers it later. The
+   * event's ID is only recorded once its work runs, so the redelivery isn't taken for a duplicate.
+   */
+  private void dispatch(String conversationId, Runnable work, HttpServletResponse response)
+      throws IOException {
+    if (executor == null) {
+      work.run();
+    } else if (!executor.submit(conversationId, work)) {
+      logger.warning("Callback queue full, rejecting webhook for " + conversationId);
 
-      new KitchenSinkBot(representative).transferToBot(conversationId);
-    } else {
-      new KitchenSinkBot(getRepresentative()).routeMessage(message, conversationId);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Callback queue full");
     }
   }
 }
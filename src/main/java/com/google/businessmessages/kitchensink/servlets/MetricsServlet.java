@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.servlets;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.metrics.Histogram;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+// [END import_libraries]
+
+/**
+ * Admin servlet exposing the bot's metrics in the Prometheus text format.
+ */
+@WebServlet(name = "MetricsServlet", value = "/admin/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+
+    PrintWriter writer = response.getWriter();
+    Set<String> typedNames = new HashSet<>();
+
+    for (Map.Entry<String, Long> counter : Metrics.counters().entrySet()) {
+      writeType(writer, typedNames, baseName(counter.getKey()), "counter");
+      writer.println(counter.getKey() + " " + counter.getValue());
+    }
+
+    for (Map.Entry<String, Long> gauge : Metrics.gauges().entrySet()) {
+      writeType(writer, typedNames, baseName(gauge.getKey()), "gauge");
+      writer.println(gauge.getKey() + " " + gauge.getValue());
+    }
+
+    for (Map.Entry<String, Histogram> histogram : Metrics.histograms().entrySet()) {
+      writeType(writer, typedNames, baseName(histogram.getKey()), "histogram");
+      writeHistogram(writer, histogram.getKey(), histogram.getValue());
+    }
+
+    writer.flush();
+  }
+
+  /**
+   * Writes the TYPE line of a metric family the first time the family is seen.
+   */
+  private void writeType(PrintWriter writer, Set<String> typedNames, String baseName,
+      String type) {
+    if (typedNames.add(baseName)) {
+      writer.println("# TYPE " + baseName + " " + type);
+    }
+  }
+
+  /**
+   * Writes a histogram as cumulative buckets followed by its count and sum.
+   */
+  private void writeHistogram(PrintWriter writer, String name, Histogram histogram) {
+    // Split "name{labels}" so the bucket label can be added to the existing labels
+    int labelStart = name.indexOf('{');
+    String baseName = baseName(name);
+    String labels = labelStart < 0 ? "" : name.substring(labelStart + 1, name.length() - 1);
+    String labelPrefix = labels.isEmpty() ? "" : labels + ",";
+    String labelSuffix = labels.isEmpty() ? "" : "{" + labels + "}";
+
+    long[] bounds = histogram.getBounds();
+    long[] counts = histogram.getBucketCounts();
+
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+
+      String bound = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+      writer.println(baseName + "_bucket{" + labelPrefix + "le=\"" + bound + "\"} " + cumulative);
+    }
+
+    writer.println(baseName + "_count" + labelSuffix + " " + cumulative);
+    writer.println(baseName + "_sum" + labelSuffix + " " + histogram.getSum());
+  }
+
+  private static String baseName(String name) {
+    int labelStart = name.indexOf('{');
+
+    return labelStart < 0 ? name : name.substring(0, labelStart);
+  }
+}
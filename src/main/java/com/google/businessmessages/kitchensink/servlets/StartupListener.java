@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.servlets;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.BmApiClient;
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import com.google.businessmessages.kitchensink.WarmUp;
+import com.google.businessmessages.kitchensink.pubsub.PullIngestion;
+import com.google.businessmessages.kitchensink.state.StateStores;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+// [END import_libraries]
+
+/**
+ * Starts the warm-up as soon as the application is deployed on an instance, so it also runs for
+ * instances that are started without a warm-up request, starts pulling callback events from
+ * Pub/Sub when configured to, and releases the shared clients and the conversation workers when the
+ * instance shuts down.
+ */
+@WebListener
+public class StartupListener implements ServletContextListener {
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    if (BotConfig.getBoolean("kitchensink.warmup.onStartup", true)) {
+      WarmUp.start();
+    }
+
+    if ("pull".equals(BotConfig.getString("kitchensink.ingestion.mode", "push"))) {
+      PullIngestion.start();
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    PullIngestion.stop();
+    ConversationExecutor.shutdownShared();
+    BmApiClient.shutdown();
+    StateStores.shutdown();
+  }
+}
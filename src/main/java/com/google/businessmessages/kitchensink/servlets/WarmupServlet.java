@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.servlets;
+
+// [START import_libraries]
+import com.google.businessmessages.kitchensink.WarmUp;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+// [END import_libraries]
+
+/**
+ * Handles the App Engine warm-up request sent to a new instance before it gets traffic. Responds
+ * with an empty 200 once the shared clients are initialized; the time each step took goes to the
+ * log and the warmup_duration_ms gauges rather than to the caller.
+ */
+@WebServlet(name = "WarmupServlet", value = "/_ah/warmup")
+public class WarmupServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) {
+    WarmUp.run();
+
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State store backed by App Engine memcache. Only available when running on App Engine Standard.
+ */
+public class AppEngineStateStore implements StateStore {
+
+  private final MemcacheService syncCache;
+
+  /**
+   * @param syncCache The memcache service.
+   */
+  public AppEngineStateStore(MemcacheService syncCache) {
+    this.syncCache = syncCache;
+  }
+
+  @Override
+  public String get(String key) {
+    Object value = syncCache.get(key);
+
+    return value == null ? null : value.toString();
+  }
+
+  @Override
+  public Map<String, String> getAll(Collection<String> keys) {
+    Map<String, String> values = new HashMap<>();
+    for (Map.Entry<String, Object> entry : syncCache.getAll(keys).entrySet()) {
+      if (entry.getValue() != null) {
+        values.put(entry.getKey(), entry.getValue().toString());
+      }
+    }
+
+    return values;
+  }
+
+  @Override
+  public void put(String key, String value, int ttlSeconds) {
+    syncCache.put(key, value, Expiration.byDeltaSeconds(ttlSeconds));
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value, int ttlSeconds) {
+    return syncCache.put(key, value, Expiration.byDeltaSeconds(ttlSeconds),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import com.google.communications.businessmessages.v1.RepresentativeType;
+
+/**
+ * Per-conversation state, currently the type of representative the user is talking to. Reads are
+ * served from an in-process near cache; writes go to the near cache and through to the state
+ * store so other instances see them once their near cache entry expires. A store that lives in
+ * process is used directly, without a near cache.
+ */
+public class ConversationStateStore {
+
+  private static final String REPRESENTATIVE_KEY_PREFIX = "representativeType:";
+
+  // Null when the store is in process
+  private final LruCache<String, RepresentativeType> nearCache;
+
+  private final StateStore store;
+
+  private final int ttlSeconds;
+
+  /**
+   * @param store The state store.
+   * @param maxEntries The maximum number of conversations held in the near cache.
+   * @param nearCacheTtlMillis How long a near cache entry is trusted.
+   * @param ttlSeconds How long state is kept in the store.
+   */
+  public ConversationStateStore(StateStore store, int maxEntries,
+      long nearCacheTtlMillis, int ttlSeconds) {
+    this.store = store;
+    this.nearCache = store.isLocal() ? null : new LruCache<>(maxEntries, nearCacheTtlMillis);
+    this.ttlSeconds = ttlSeconds;
+  }
+
+  /**
+   * Gets the representative type for a conversation.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return The current representative type, BOT if none was stored.
+   */
+  public RepresentativeType getRepresentativeType(String conversationId) {
+    RepresentativeType representativeType =
+        nearCache == null ? null : nearCache.get(conversationId);
+    if (representativeType != null) {
+      return representativeType;
+    }
+
+    String value = store.get(REPRESENTATIVE_KEY_PREFIX + conversationId);
+    representativeType =
+        value == null ? RepresentativeType.BOT : RepresentativeType.valueOf(value);
+
+    if (nearCache != null) {
+      nearCache.put(conversationId, representativeType);
+    }
+
+    return representativeType;
+  }
+
+  /**
+   * Stores the representative type for a conversation.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param representativeType The new representative type.
+   */
+  public void setRepresentativeType(String conversationId,
+      RepresentativeType representativeType) {
+    if (nearCache != null) {
+      nearCache.put(conversationId, representativeType);
+    }
+
+    store.put(REPRESENTATIVE_KEY_PREFIX + conversationId, representativeType.toString(),
+        ttlSeconds);
+  }
+}
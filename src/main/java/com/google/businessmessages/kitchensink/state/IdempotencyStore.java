@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+/**
+ * Remembers message and request IDs that have already been processed so that webhook redeliveries
+ * are only handled once.
+ */
+public interface IdempotencyStore {
+
+  /**
+   * Atomically records an ID as seen.
+   *
+   * @param id The message or request ID.
+   * @return True if this is the first time the ID was seen, false for a duplicate.
+   */
+  boolean markSeen(String id);
+}
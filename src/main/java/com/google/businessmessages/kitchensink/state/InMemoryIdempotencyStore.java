@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idempotency store held in process memory. IDs expire after a fixed time and the number of
+ * remembered IDs is bounded; once the bound is reached expired IDs are purged first and then
+ * arbitrary entries are dropped. Each purge frees a tenth of the bound, so a full store doesn't
+ * scan all its IDs on every insert.
+ */
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+
+  private final ConcurrentMap<String, Long> expiryById = new ConcurrentHashMap<>();
+
+  private final long ttlNanos;
+
+  private final int maxEntries;
+
+  // Size a purge brings the store down to
+  private final int purgeTarget;
+
+  /**
+   * @param ttlMillis How long an ID is remembered.
+   * @param maxEntries The maximum number of IDs held.
+   */
+  public InMemoryIdempotencyStore(long ttlMillis, int maxEntries) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.maxEntries = maxEntries;
+    this.purgeTarget = maxEntries - maxEntries / 10;
+  }
+
+  @Override
+  public boolean markSeen(String id) {
+    long now = System.nanoTime();
+    long expiry = now + ttlNanos;
+
+    boolean[] firstSeen = new boolean[1];
+    expiryById.compute(id, (key, existing) -> {
+      if (existing == null || existing - now <= 0) {
+        firstSeen[0] = true;
+        return expiry;
+      }
+      return existing;
+    });
+
+    if (firstSeen[0] && expiryById.size() > maxEntries) {
+      evict(now);
+    }
+
+    return firstSeen[0];
+  }
+
+  /**
+   * @return The number of IDs held.
+   */
+  int size() {
+    return expiryById.size();
+  }
+
+  /**
+   * Removes expired IDs and, if the store is still over its purge target, arbitrary IDs until it
+   * is back down to it.
+   */
+  private void evict(long now) {
+    expiryById.values().removeIf(expiry -> expiry - now <= 0);
+
+    Iterator<String> ids = expiryById.keySet().iterator();
+    while (expiryById.size() > purgeTarget && ids.hasNext()) {
+      ids.next();
+      ids.remove();
+    }
+  }
+}
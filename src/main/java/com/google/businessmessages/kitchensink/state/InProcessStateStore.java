@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State store held in process memory, for a single instance or for tests. The number of entries
+ * is bounded; once the bound is reached expired entries are purged first and then arbitrary
+ * entries are dropped. Each purge frees a tenth of the bound, so a full store doesn't scan all its
+ * entries on every insert.
+ */
+public class InProcessStateStore implements StateStore {
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final int maxEntries;
+
+  // Size a purge brings the store down to
+  private final int purgeTarget;
+
+  /**
+   * @param maxEntries The maximum number of entries held.
+   */
+  public InProcessStateStore(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.purgeTarget = maxEntries - maxEntries / 10;
+  }
+
+  @Override
+  public boolean isLocal() {
+    return true;
+  }
+
+  @Override
+  public String get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.isExpired(System.nanoTime())) {
+      entries.remove(key, entry);
+      return null;
+    }
+
+    return entry.value;
+  }
+
+  @Override
+  public Map<String, String> getAll(Collection<String> keys) {
+    Map<String, String> values = new HashMap<>();
+    for (String key : keys) {
+      String value = get(key);
+      if (value != null) {
+        values.put(key, value);
+      }
+    }
+
+    return values;
+  }
+
+  @Override
+  public void put(String key, String value, int ttlSeconds) {
+    long now = System.nanoTime();
+    entries.put(key, new Entry(value, now + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+
+    evictIfFull(now);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value, int ttlSeconds) {
+    long now = System.nanoTime();
+    Entry entry = new Entry(value, now + TimeUnit.SECONDS.toNanos(ttlSeconds));
+
+    boolean[] added = new boolean[1];
+    entries.compute(key, (k, existing) -> {
+      if (existing == null || existing.isExpired(now)) {
+        added[0] = true;
+        return entry;
+      }
+      return existing;
+    });
+
+    if (added[0]) {
+      evictIfFull(now);
+    }
+
+    return added[0];
+  }
+
+  /**
+   * Once the store is over its bound, removes expired entries and then arbitrary entries until it
+   * is back down to the purge target.
+   */
+  private void evictIfFull(long now) {
+    if (entries.size() <= maxEntries) {
+      return;
+    }
+
+    entries.values().removeIf(entry -> entry.isExpired(now));
+
+    Iterator<String> keys = entries.keySet().iterator();
+    while (entries.size() > purgeTarget && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  private static final class Entry {
+    final String value;
+    final long expiresAt;
+
+    Entry(String value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt - now <= 0;
+    }
+  }
+}
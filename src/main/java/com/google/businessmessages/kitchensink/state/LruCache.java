@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Small thread-safe LRU cache whose entries also expire a fixed time after they were written.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LruCache<K, V> {
+
+  private final Map<K, Entry<V>> entries;
+
+  private final long ttlNanos;
+
+  /**
+   * @param maxEntries The maximum number of entries held before the least recently used is dropped.
+   * @param ttlMillis How long an entry stays valid after it was written.
+   */
+  public LruCache(int maxEntries, long ttlMillis) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Gets a value.
+   *
+   * @param key The key.
+   * @return The value, or null if it is absent or expired.
+   */
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.expiresAt - System.nanoTime() <= 0) {
+      entries.remove(key);
+      return null;
+    }
+
+    return entry.value;
+  }
+
+  /**
+   * Stores a value, replacing any previous value and restarting its expiry.
+   *
+   * @param key The key.
+   * @param value The value.
+   */
+  public synchronized void put(K key, V value) {
+    entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+  }
+
+  /**
+   * Gets a value, creating and storing it if it is absent or expired.
+   *
+   * @param key The key.
+   * @param factory Creates the value, called while the cache is locked.
+   * @return The current value.
+   */
+  public synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> factory) {
+    V value = get(key);
+    if (value == null) {
+      value = factory.apply(key);
+      put(key, value);
+    }
+
+    return value;
+  }
+
+  /**
+   * Removes a value.
+   *
+   * @param key The key.
+   * @return The removed value, or null if there was none or it had expired.
+   */
+  public synchronized V remove(K key) {
+    Entry<V> entry = entries.remove(key);
+
+    return entry == null || entry.expiresAt - System.nanoTime() <= 0 ? null : entry.value;
+  }
+
+  /**
+   * @return The number of entries held, including expired entries not yet dropped.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static final class Entry<V> {
+    final V value;
+    final long expiresAt;
+
+    Entry(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
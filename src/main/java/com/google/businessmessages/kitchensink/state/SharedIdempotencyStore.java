@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+/**
+ * Idempotency store backed by a {@link StateStore}, shared by all instances when the store is.
+ * Each ID is recorded with a single add-if-absent call, so concurrent redeliveries can't both be
+ * treated as new.
+ */
+public class SharedIdempotencyStore implements IdempotencyStore {
+
+  private final StateStore store;
+
+  private final int ttlSeconds;
+
+  /**
+   * @param store The state store.
+   * @param ttlSeconds How long an ID is remembered.
+   */
+  public SharedIdempotencyStore(StateStore store, int ttlSeconds) {
+    this.store = store;
+    this.ttlSeconds = ttlSeconds;
+  }
+
+  @Override
+  public boolean markSeen(String id) {
+    return store.putIfAbsent(id, "1", ttlSeconds);
+  }
+}
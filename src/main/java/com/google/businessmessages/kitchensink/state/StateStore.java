@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A key-value cache for state shared by all instances of the bot. Values are strings and every
+ * entry expires. Backends don't throw when the cache is unavailable: reads return nothing and
+ * writes are dropped, as with any cache miss or eviction.
+ */
+public interface StateStore {
+
+  /**
+   * Gets a value.
+   *
+   * @param key The key.
+   * @return The value, or null if there is none.
+   */
+  String get(String key);
+
+  /**
+   * Gets several values in one round trip.
+   *
+   * @param keys The keys.
+   * @return The values that were found, by key.
+   */
+  Map<String, String> getAll(Collection<String> keys);
+
+  /**
+   * Stores a value, replacing any previous value.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @param ttlSeconds How long the value is kept.
+   */
+  void put(String key, String value, int ttlSeconds);
+
+  /**
+   * Atomically stores a value unless the key already has one.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @param ttlSeconds How long the value is kept.
+   * @return False if the key already had a value. True if the value was stored, or if the store
+   *     could not be reached and it is unknown.
+   */
+  boolean putIfAbsent(String key, String value, int ttlSeconds);
+
+  /**
+   * @return True if the store lives in this process, so callers need no near cache in front of it.
+   */
+  default boolean isLocal() {
+    return false;
+  }
+
+  /**
+   * Releases the connections held by the store.
+   */
+  default void close() {
+  }
+}
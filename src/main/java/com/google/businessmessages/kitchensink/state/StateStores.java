@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.businessmessages.kitchensink.BotConfig;
+import java.io.IOException;
+
+/**
+ * Creates the state store chosen by the "kitchensink.state.backend" property and shares it across
+ * the process:
+ *
+ * <ul>
+ *   <li>"memcache", App Engine memcache (the default, App Engine Standard only).</li>
+ *   <li>"xmemcached", a memcached cluster listed in "kitchensink.state.memcached.servers", for a
+ *   plain servlet container or Cloud Run.</li>
+ *   <li>"memory", in process memory, for a single instance.</li>
+ * </ul>
+ */
+public final class StateStores {
+
+  private static StateStore instance;
+
+  private StateStores() {
+  }
+
+  /**
+   * Gets the shared state store, creating it on first use.
+   *
+   * @return The configured store.
+   */
+  public static synchronized StateStore getInstance() {
+    if (instance == null) {
+      instance = create(BotConfig.getString("kitchensink.state.backend", "memcache"));
+    }
+
+    return instance;
+  }
+
+  /**
+   * Closes the shared store. A later call to {@link #getInstance()} creates a new one.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  /**
+   * Creates a state store.
+   *
+   * @param backend The backend, "memcache", "xmemcached" or "memory".
+   * @return A new store.
+   */
+  public static StateStore create(String backend) {
+    switch (backend) {
+      case "memcache":
+        return new AppEngineStateStore(MemcacheServiceFactory.getMemcacheService());
+      case "xmemcached":
+        try {
+          return XmemcachedStateStore.connect(
+              BotConfig.getString("kitchensink.state.memcached.servers", "localhost:11211"),
+              BotConfig.getInt("kitchensink.state.memcached.poolSize", 4),
+              BotConfig.getLong("kitchensink.state.memcached.connectTimeoutMillis", 5000),
+              BotConfig.getLong("kitchensink.state.memcached.opTimeoutMillis", 200));
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to start the memcached client", e);
+        }
+      case "memory":
+        return new InProcessStateStore(
+            BotConfig.getInt("kitchensink.state.memory.maxEntries", 100000));
+      default:
+        throw new IllegalArgumentException("Unknown state backend: " + backend);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+/**
+ * Idempotency store with a process-local tier in front of a shared one. IDs seen recently by this
+ * instance are rejected without a remote call; everything else is decided by the shared tier.
+ */
+public class TieredIdempotencyStore implements IdempotencyStore {
+
+  private final IdempotencyStore local;
+
+  private final IdempotencyStore shared;
+
+  /**
+   * @param local The short-lived in-process tier.
+   * @param shared The tier shared by all instances.
+   */
+  public TieredIdempotencyStore(IdempotencyStore local, IdempotencyStore shared) {
+    this.local = local;
+    this.shared = shared;
+  }
+
+  @Override
+  public boolean markSeen(String id) {
+    if (!local.markSeen(id)) {
+      return false;
+    }
+
+    return shared.markSeen(id);
+  }
+}
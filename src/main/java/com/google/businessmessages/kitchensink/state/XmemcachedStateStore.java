@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.XMemcachedClientBuilder;
+import net.rubyeye.xmemcached.command.BinaryCommandFactory;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import net.rubyeye.xmemcached.utils.AddrUtil;
+
+/**
+ * State store backed by a memcached cluster through xmemcached, for running outside App Engine.
+ * It speaks the binary protocol over a small pool of connections per server, and fetches several
+ * keys with a single multi-get. A failed or timed out call counts as a miss and is logged.
+ */
+public class XmemcachedStateStore implements StateStore {
+  private static final Logger logger = Logger.getLogger(XmemcachedStateStore.class.getName());
+
+  private static final String EXCEPTION_WAS_THROWN = "exception";
+
+  private final MemcachedClient client;
+
+  private XmemcachedStateStore(MemcachedClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Connects to a memcached cluster.
+   *
+   * @param servers The servers as space separated host:port pairs.
+   * @param poolSize The number of connections to each server.
+   * @param connectTimeoutMillis How long to wait for a connection.
+   * @param opTimeoutMillis How long to wait for the answer to a call.
+   * @return The store.
+   * @throws IOException If the client can't be started.
+   */
+  public static XmemcachedStateStore connect(String servers, int poolSize,
+      long connectTimeoutMillis, long opTimeoutMillis) throws IOException {
+    XMemcachedClientBuilder builder = new XMemcachedClientBuilder(AddrUtil.getAddresses(servers));
+    builder.setCommandFactory(new BinaryCommandFactory());
+    builder.setConnectionPoolSize(poolSize);
+    builder.setConnectTimeout(connectTimeoutMillis);
+    builder.setOpTimeout(opTimeoutMillis);
+
+    logger.info("Connecting to memcached at " + servers + " with " + poolSize
+        + " connections per server.");
+
+    return new XmemcachedStateStore(builder.build());
+  }
+
+  @Override
+  public String get(String key) {
+    try {
+      return client.get(key);
+    } catch (TimeoutException | MemcachedException e) {
+      failed(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getAll(Collection<String> keys) {
+    try {
+      Map<String, String> values = client.get(keys);
+      if (values != null) {
+        return values;
+      }
+    } catch (TimeoutException | MemcachedException e) {
+      failed(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public void put(String key, String value, int ttlSeconds) {
+    try {
+      client.set(key, ttlSeconds, value);
+    } catch (TimeoutException | MemcachedException e) {
+      failed(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value, int ttlSeconds) {
+    try {
+      return client.add(key, ttlSeconds, value);
+    } catch (TimeoutException | MemcachedException e) {
+      failed(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    // Unknown, so let the caller go ahead rather than drop the work
+    return true;
+  }
+
+  @Override
+  public void close() {
+    try {
+      client.shutdown();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+    }
+  }
+
+  private static void failed(Exception e) {
+    Metrics.increment("state_store_errors_total{backend=\"xmemcached\"}");
+    logger.log(Level.WARNING, EXCEPTION_WAS_THROWN, e);
+  }
+}
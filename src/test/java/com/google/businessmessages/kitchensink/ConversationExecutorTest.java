@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class ConversationExecutorTest {
+
+  private final ConversationExecutor executor = new ConversationExecutor(2, 16, 60000, false);
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void submit_runsTheTasksOfAConversationInOrder() throws InterruptedException {
+    List<Integer> order = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(10);
+
+    for (int i = 0; i < 10; i++) {
+      int task = i;
+      assertTrue(executor.submit("conversation-1", () -> {
+        order.add(task);
+        done.countDown();
+      }));
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", order.toString());
+  }
+
+  @Test
+  public void submit_keepsRunningAConversationAfterATaskThrows() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit("conversation-1", () -> {
+      throw new IllegalStateException("Injected");
+    });
+    executor.submit("conversation-1", done::countDown);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void submit_keepsRunningAConversationAfterATaskThrowsAnError()
+      throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit("conversation-1", () -> {
+      throw new AssertionError("Injected");
+    });
+    executor.submit("conversation-1", done::countDown);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    // The mailbox can be scheduled again once it has drained
+    CountDownLatch later = new CountDownLatch(1);
+    executor.submit("conversation-1", later::countDown);
+    assertTrue(later.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void getShared_returnsOneExecutorUntilItIsShutDown() {
+    ConversationExecutor shared = ConversationExecutor.getShared();
+    try {
+      assertSame(shared, ConversationExecutor.getShared());
+    } finally {
+      ConversationExecutor.shutdownShared();
+    }
+
+    ConversationExecutor next = ConversationExecutor.getShared();
+    try {
+      assertNotSame(shared, next);
+    } finally {
+      ConversationExecutor.shutdownShared();
+    }
+  }
+}
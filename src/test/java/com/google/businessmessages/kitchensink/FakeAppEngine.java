@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+// [START import_libraries]
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.apphosting.api.ApiProxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+// [END import_libraries]
+
+/**
+ * Stands in for the App Engine Standard runtime in tests. The thread that installs it becomes the
+ * request thread. Memcache calls are answered as if every write was stored and every read missed,
+ * and the threads that made them are recorded. As on App Engine, a thread that is neither the
+ * request thread nor a background thread can't call the APIs. Background threads can be made
+ * available, as they are on manual and basic scaling instances.
+ */
+public final class FakeAppEngine implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+  private static final String BACKGROUND_THREAD_FACTORY =
+      "com.google.appengine.api.ThreadManager.BACKGROUND_THREAD_FACTORY";
+
+  private final ApiProxy.Environment environment;
+
+  private final List<Thread> memcacheCallers = new CopyOnWriteArrayList<>();
+
+  private FakeAppEngine(boolean backgroundThreads) {
+    Map<String, Object> attributes = new HashMap<>();
+    this.environment = new RequestEnvironment(attributes);
+
+    if (backgroundThreads) {
+      ThreadFactory background = runnable -> new Thread(() -> {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        runnable.run();
+      });
+      attributes.put(BACKGROUND_THREAD_FACTORY, background);
+    }
+  }
+
+  /**
+   * Makes the JVM look like App Engine, with the calling thread as the request thread.
+   *
+   * @param backgroundThreads Whether background threads can be started.
+   * @return The installed runtime, to be uninstalled after the test.
+   */
+  public static FakeAppEngine install(boolean backgroundThreads) {
+    FakeAppEngine appEngine = new FakeAppEngine(backgroundThreads);
+
+    SystemProperty.environment.set(SystemProperty.Environment.Value.Production);
+    ApiProxy.setDelegate(appEngine);
+    ApiProxy.setEnvironmentForCurrentThread(appEngine.environment);
+
+    return appEngine;
+  }
+
+  /**
+   * Makes the JVM stop looking like App Engine.
+   */
+  public void uninstall() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+    ApiProxy.setDelegate(null);
+    System.clearProperty(SystemProperty.environment.key());
+  }
+
+  /**
+   * Gets the threads that called memcache, in call order.
+   *
+   * @return The calling threads.
+   */
+  public List<Thread> getMemcacheCallers() {
+    return memcacheCallers;
+  }
+
+  @Override
+  public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+      String methodName, byte[] request) {
+    if (!"memcache".equals(packageName)) {
+      return new byte[0];
+    }
+
+    memcacheCallers.add(Thread.currentThread());
+
+    if ("Set".equals(methodName)) {
+      MemcacheSetResponse.Builder response = MemcacheSetResponse.newBuilder();
+      try {
+        for (int i = 0; i < MemcacheSetRequest.parseFrom(request).getItemCount(); i++) {
+          response.addSetStatus(MemcacheSetResponse.SetStatusCode.STORED);
+        }
+      } catch (Exception e) {
+        throw new ApiProxy.ApplicationException(0, e.toString());
+      }
+
+      return response.build().toByteArray();
+    }
+
+    return MemcacheGetResponse.getDefaultInstance().toByteArray();
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+      String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+    return CompletableFuture.completedFuture(
+        makeSyncCall(environment, packageName, methodName, request));
+  }
+
+  @Override
+  public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+  }
+
+  @Override
+  public void flushLogs(ApiProxy.Environment environment) {
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+    return Collections.emptyList();
+  }
+
+  private static final class RequestEnvironment implements ApiProxy.Environment {
+    private final Map<String, Object> attributes;
+
+    RequestEnvironment(Map<String, Object> attributes) {
+      this.attributes = attributes;
+    }
+
+    @Override
+    public String getAppId() {
+      return "s~kitchen-sink";
+    }
+
+    @Override
+    public String getModuleId() {
+      return "default";
+    }
+
+    @Override
+    public String getVersionId() {
+      return "1.1";
+    }
+
+    @Override
+    public String getEmail() {
+      return null;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+      return false;
+    }
+
+    @Override
+    public boolean isAdmin() {
+      return false;
+    }
+
+    @Override
+    public String getAuthDomain() {
+      return null;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public String getRequestNamespace() {
+      return "";
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public long getRemainingMillis() {
+      return Long.MAX_VALUE;
+    }
+  }
+}
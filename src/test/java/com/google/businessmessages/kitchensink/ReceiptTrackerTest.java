@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.businessmessages.kitchensink.callback.CallbackEvent;
+import com.google.businessmessages.kitchensink.callback.CallbackEventReader;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.UUID;
+import org.junit.Test;
+
+public class ReceiptTrackerTest {
+
+  private static final String LATENCY = "bm_receipt_latency_ms{receipt_type=\"READ\"}";
+
+  private static final String UNMATCHED = "bm_receipts_unmatched_total{receipt_type=\"READ\"}";
+
+  @Test
+  public void recordReceipts_matchesAReceiptForTheMessageResourceName() throws IOException {
+    String messageId = UUID.randomUUID().toString();
+    ReceiptTracker.getInstance().recordSent(messageId, System.currentTimeMillis());
+
+    long latencies = Metrics.histogram(LATENCY).getCount();
+    long unmatched = Metrics.count(UNMATCHED);
+
+    ReceiptTracker.getInstance().recordReceipts(
+        readReceipts("conversations/conversation-1/messages/" + messageId).getReceipts());
+
+    assertEquals(latencies + 1, Metrics.histogram(LATENCY).getCount());
+    assertEquals(unmatched, Metrics.count(UNMATCHED));
+  }
+
+  @Test
+  public void recordReceipts_countsAReceiptForAnUnknownMessageAsUnmatched() throws IOException {
+    long latencies = Metrics.histogram(LATENCY).getCount();
+    long unmatched = Metrics.count(UNMATCHED);
+
+    ReceiptTracker.getInstance().recordReceipts(
+        readReceipts("conversations/conversation-1/messages/" + UUID.randomUUID()).getReceipts());
+
+    assertEquals(latencies, Metrics.histogram(LATENCY).getCount());
+    assertEquals(unmatched + 1, Metrics.count(UNMATCHED));
+  }
+
+  @Test
+  public void read_takesTheMessageIdFromTheResourceName() throws IOException {
+    CallbackEvent event = readReceipts("conversations/conversation-1/messages/message-1");
+
+    assertEquals("message-1", event.getReceipts().get(0).getMessageId());
+  }
+
+  /**
+   * Decodes a read receipt webhook as the platform sends it.
+   */
+  private static CallbackEvent readReceipts(String messageName) throws IOException {
+    return CallbackEventReader.read(new StringReader("{"
+        + "\"conversationId\": \"conversation-1\","
+        + "\"requestId\": \"" + UUID.randomUUID() + "\","
+        + "\"receipts\": {"
+        + "  \"receipts\": [{\"message\": \"" + messageName + "\", \"receiptType\": \"READ\"}],"
+        + "  \"createTime\": \"2020-01-01T00:00:00.000Z\""
+        + "},"
+        + "\"sendTime\": \"2020-01-01T00:00:00.000Z\""
+        + "}"));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class RepresentativesTest {
+
+  private static final int THREADS = 16;
+  private static final int CONVERSATIONS = 5000;
+
+  private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+
+  @Test
+  public void forType_returnsACopyEachTime() {
+    BusinessMessagesRepresentative first = Representatives.forType(RepresentativeType.BOT);
+    BusinessMessagesRepresentative second = Representatives.forType(RepresentativeType.BOT);
+
+    assertNotSame(first, second);
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void forType_isNotChangedByCallers() {
+    Representatives.forType(RepresentativeType.HUMAN).setDisplayName("Changed");
+    Representatives.forType(RepresentativeType.HUMAN).put("avatarImage", "https://example.com");
+
+    BusinessMessagesRepresentative human = Representatives.forType(RepresentativeType.HUMAN);
+    assertEquals(BotConstants.LIVE_AGENT_NAME, human.getDisplayName());
+    assertEquals(BotConstants.LIVE_AGENT_AVATAR, human.getAvatarImage());
+  }
+
+  @Test
+  public void forType_keepsInterleavedConversationsApart() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Void>> results = new ArrayList<>(CONVERSATIONS);
+      for (int i = 0; i < CONVERSATIONS; i++) {
+        results.add(pool.submit(renameAndSerialize("conversation-" + i, i % 2 == 0
+            ? RepresentativeType.BOT : RepresentativeType.HUMAN)));
+      }
+
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(BotConstants.BOT_AGENT_NAME,
+        Representatives.forType(RepresentativeType.BOT).getDisplayName());
+    assertEquals(BotConstants.LIVE_AGENT_NAME,
+        Representatives.forType(RepresentativeType.HUMAN).getDisplayName());
+  }
+
+  /**
+   * Builds a message for a conversation that renames its representative, then checks that the
+   * serialized message still carries that conversation's name while the others change theirs.
+   */
+  private static Callable<Void> renameAndSerialize(String conversationId,
+      RepresentativeType representativeType) {
+    return () -> {
+      for (int round = 0; round < 4; round++) {
+        String displayName = conversationId + "-" + round;
+        BusinessMessagesRepresentative representative =
+            Representatives.forType(representativeType);
+        BusinessMessagesMessage message = new BusinessMessagesMessage()
+            .setMessageId(conversationId)
+            .setText("Hello")
+            .setRepresentative(representative);
+        representative.setDisplayName(displayName);
+        Thread.yield();
+
+        BusinessMessagesMessage sent =
+            JSON.fromString(JSON.toString(message), BusinessMessagesMessage.class);
+        assertEquals(displayName, sent.getRepresentative().getDisplayName());
+        assertEquals(representativeType.toString(),
+            sent.getRepresentative().getRepresentativeType());
+      }
+
+      return null;
+    };
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TextSegmenterTest {
+
+  @Test
+  public void split_keepsShortTextWhole() {
+    assertEquals(Arrays.asList("Hello there."), TextSegmenter.split("  Hello there.  ", 100));
+  }
+
+  @Test
+  public void split_packsParagraphsUpToTheBudget() {
+    String text = "First paragraph.\n\nSecond paragraph.\n\nThird paragraph.";
+
+    assertEquals(Arrays.asList("First paragraph.\n\nSecond paragraph.", "Third paragraph."),
+        TextSegmenter.split(text, 40));
+  }
+
+  @Test
+  public void stream_flushesAtEachParagraphBreak() {
+    List<String> chunks = new ArrayList<>();
+    TextSegmenter segmenter = new TextSegmenter(40, (chunk, last) -> chunks.add(chunk));
+
+    segmenter.append("First paragraph.\n\nSecond ");
+    assertEquals(Arrays.asList("First paragraph."), chunks);
+
+    segmenter.append("paragraph.");
+    segmenter.finish();
+    assertEquals(Arrays.asList("First paragraph.", "Second paragraph."), chunks);
+  }
+
+  @Test
+  public void split_cutsAtTheLastSentenceEndThatFits() {
+    String text = "The first sentence is here. The second one is here. And a third.";
+
+    assertEquals(Arrays.asList("The first sentence is here. The second one is here.",
+        "And a third."), TextSegmenter.split(text, 55));
+  }
+
+  @Test
+  public void split_doesNotCutAfterAbbreviations() {
+    String text = "She earned a Ph.D. at a school near Acme Inc. in the city center today";
+
+    List<String> chunks = TextSegmenter.split(text, 50);
+
+    assertEquals(Arrays.asList("She earned a Ph.D. at a school near Acme Inc. in",
+        "the city center today"), chunks);
+
+    assertEquals(Arrays.asList("Years later, after a long time, she earned her Ph.D. in",
+        "chemistry at last"),
+        TextSegmenter.split("Years later, after a long time, she earned her Ph.D. in chemistry"
+            + " at last", 60));
+  }
+
+  @Test
+  public void split_cutsAtASpaceWithoutASentenceEnd() {
+    assertEquals(Arrays.asList("one two three", "four five"),
+        TextSegmenter.split("one two three four five", 14));
+  }
+
+  @Test
+  public void split_neverCutsASurrogatePair() {
+    // Each emoji is two chars, so a cut after an odd number of chars falls inside one
+    String emoji = "\uD83D\uDE00";
+    String text = emoji + emoji + emoji + emoji + emoji;
+
+    List<String> chunks = TextSegmenter.split(text, 3);
+
+    assertEquals(String.join("", chunks), text);
+    for (String chunk : chunks) {
+      assertTrue(chunk.length() <= 3);
+      assertTrue(!Character.isLowSurrogate(chunk.charAt(0)));
+      assertTrue(!Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+    }
+  }
+
+  @Test
+  public void split_keepsEveryChunkWithinTheBudget() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      text.append("Sentence number ").append(i).append(i % 7 == 0 ? ".\n\n" : ". ");
+    }
+
+    for (String chunk : TextSegmenter.split(text.toString(), 120)) {
+      assertTrue(chunk.length() <= 120);
+    }
+  }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPInputStream;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the Business Messages API. It answers the conversation messages, events
+ * and surveys endpoints on localhost, with configurable latency, a share of failed calls and a
+ * rate above which calls are throttled with 429, and counts every call it receives.
+ *
+ * <pre>
+ * BmApiEmulator emulator = BmApiEmulator.builder()
+ *     .latencyMillis(50, 20)
+ *     .errorRate(0.01)
+ *     .start();
+ * System.setProperty("kitchensink.bm.apiUrl", emulator.getUrl());
+ * </pre>
+ */
+public final class BmApiEmulator implements AutoCloseable {
+
+  // POST v1/conversations/{conversationId}/{messages|events|surveys}
+  private static final Pattern CONVERSATION_PATH =
+      Pattern.compile("/v1/conversations/([^/]+)/(messages|events|surveys)");
+
+  // Enough recent message IDs for the load generator to send receipts for
+  private static final int MAX_RECENT_MESSAGE_IDS = 4096;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final double errorRate;
+  private final int throttlePerSecond;
+
+  private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder throttled = new LongAdder();
+  private final LongAdder notFound = new LongAdder();
+
+  // Ring of the resource names of recently accepted messages, guarded by itself
+  private final String[] recentMessageNames = new String[MAX_RECENT_MESSAGE_IDS];
+  private long recentMessageCount;
+
+  // Calls accepted in the current one second window, guarded by this
+  private long windowSecond;
+  private int windowCalls;
+
+  private BmApiEmulator(Builder builder) throws IOException {
+    this.latencyMillis = builder.latencyMillis;
+    this.jitterMillis = builder.jitterMillis;
+    this.errorRate = builder.errorRate;
+    this.throttlePerSecond = builder.throttlePerSecond;
+
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+    this.executor = Executors.newFixedThreadPool(builder.threads, runnable -> {
+      Thread thread = new Thread(runnable, "bm-api-emulator");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * @return A builder for an emulator.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @return The root URL to use as {@code kitchensink.bm.apiUrl}.
+   */
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * @return The number of calls received per endpoint, including failed and throttled ones.
+   */
+  public Map<String, Long> getCalls() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    calls.forEach((endpoint, count) -> snapshot.put(endpoint, count.sum()));
+
+    return snapshot;
+  }
+
+  /**
+   * @return The number of calls received on all endpoints.
+   */
+  public long getTotalCalls() {
+    long total = 0;
+    for (LongAdder count : calls.values()) {
+      total += count.sum();
+    }
+
+    return total;
+  }
+
+  /**
+   * @return The number of calls answered with an injected server error.
+   */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /**
+   * @return The number of calls answered with 429.
+   */
+  public long getThrottled() {
+    return throttled.sum();
+  }
+
+  /**
+   * @return The number of calls to paths the emulator does not serve.
+   */
+  public long getNotFound() {
+    return notFound.sum();
+  }
+
+  /**
+   * @return The resource names of recently accepted messages, "conversations/{conversationId}/
+   *     messages/{messageId}", oldest first.
+   */
+  public List<String> getRecentMessageNames() {
+    synchronized (recentMessageNames) {
+      int count = (int) Math.min(recentMessageCount, MAX_RECENT_MESSAGE_IDS);
+      List<String> names = new ArrayList<>(count);
+      for (long i = recentMessageCount - count; i < recentMessageCount; i++) {
+        names.add(recentMessageNames[(int) (i % MAX_RECENT_MESSAGE_IDS)]);
+      }
+
+      return Collections.unmodifiableList(names);
+    }
+  }
+
+  /**
+   * Stops the server, giving in-flight calls up to a second to finish.
+   */
+  @Override
+  public void close() {
+    server.stop(1);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      // The API client compresses request bodies by default
+      InputStream in = exchange.getRequestBody();
+      if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        in = new GZIPInputStream(in);
+      }
+      String body = readBody(in);
+
+      Matcher matcher = CONVERSATION_PATH.matcher(exchange.getRequestURI().getPath());
+      if (!"POST".equals(exchange.getRequestMethod()) || !matcher.matches()) {
+        notFound.increment();
+        respond(exchange, 404, error(404, "NOT_FOUND", "Unknown endpoint"));
+        return;
+      }
+
+      String endpoint = matcher.group(2);
+      calls.computeIfAbsent(endpoint, key -> new LongAdder()).increment();
+
+      if (!admit()) {
+        throttled.increment();
+        respond(exchange, 429, error(429, "RESOURCE_EXHAUSTED", "Quota exceeded"));
+        return;
+      }
+
+      sleepLatency();
+
+      if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+        failed.increment();
+        respond(exchange, 500, error(500, "INTERNAL", "Injected failure"));
+        return;
+      }
+
+      JsonObject resource = parse(body);
+      if ("messages".equals(endpoint)) {
+        String messageId = stringField(resource, "messageId");
+        if (messageId != null) {
+          String name = "conversations/" + matcher.group(1) + "/messages/" + messageId;
+          rememberMessageName(name);
+          resource.addProperty("name", name);
+        }
+      }
+
+      respond(exchange, 200, resource.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Counts the call against the current one second window.
+   *
+   * @return False if the call is over the throttling rate.
+   */
+  private synchronized boolean admit() {
+    if (throttlePerSecond <= 0) {
+      return true;
+    }
+
+    long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    if (second != windowSecond) {
+      windowSecond = second;
+      windowCalls = 0;
+    }
+
+    return ++windowCalls <= throttlePerSecond;
+  }
+
+  private void sleepLatency() {
+    long delay = latencyMillis;
+    if (jitterMillis > 0) {
+      delay += ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1);
+    }
+
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void rememberMessageName(String name) {
+    synchronized (recentMessageNames) {
+      recentMessageNames[(int) (recentMessageCount++ % MAX_RECENT_MESSAGE_IDS)] = name;
+    }
+  }
+
+  private static JsonObject parse(String body) {
+    try {
+      JsonElement element = new JsonParser().parse(body);
+      if (element.isJsonObject()) {
+        return element.getAsJsonObject();
+      }
+    } catch (RuntimeException e) {
+      // Answered with an empty resource, as the real API would reject it anyway
+    }
+
+    return new JsonObject();
+  }
+
+  private static String stringField(JsonObject object, String name) {
+    JsonElement value = object.get(name);
+
+    return value == null || value.isJsonNull() ? null : value.getAsString();
+  }
+
+  private static String error(int code, String status, String message) {
+    JsonObject error = new JsonObject();
+    error.addProperty("code", code);
+    error.addProperty("message", message);
+    error.addProperty("status", status);
+
+    JsonObject response = new JsonObject();
+    response.add("error", error);
+
+    return response.toString();
+  }
+
+  private static String readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      body.write(buffer, 0, read);
+    }
+
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Builder for {@link BmApiEmulator}.
+   */
+  public static final class Builder {
+    private int port;
+    private int threads = 32;
+    private long latencyMillis;
+    private long jitterMillis;
+    private double errorRate;
+    private int throttlePerSecond;
+
+    private Builder() {
+    }
+
+    /**
+     * @param port The port to listen on, 0 for any free port.
+     * @return This builder.
+     */
+    public Builder port(int port) {
+      this.port = port;
+
+      return this;
+    }
+
+    /**
+     * @param threads The number of calls served at the same time.
+     * @return This builder.
+     */
+    public Builder threads(int threads) {
+      this.threads = threads;
+
+      return this;
+    }
+
+    /**
+     * @param latencyMillis The time each call takes.
+     * @param jitterMillis The most the time of a call varies either way.
+     * @return This builder.
+     */
+    public Builder latencyMillis(long latencyMillis, long jitterMillis) {
+      this.latencyMillis = latencyMillis;
+      this.jitterMillis = jitterMillis;
+
+      return this;
+    }
+
+    /**
+     * @param errorRate The share of calls, between 0 and 1, answered with 500.
+     * @return This builder.
+     */
+    public Builder errorRate(double errorRate) {
+      this.errorRate = errorRate;
+
+      return this;
+    }
+
+    /**
+     * @param throttlePerSecond The calls per second above which calls get 429, 0 for no limit.
+     * @return This builder.
+     */
+    public Builder throttlePerSecond(int throttlePerSecond) {
+      this.throttlePerSecond = throttlePerSecond;
+
+      return this;
+    }
+
+    /**
+     * Starts an emulator.
+     *
+     * @return The running emulator.
+     * @throws IOException If the port can't be bound.
+     */
+    public BmApiEmulator start() throws IOException {
+      return new BmApiEmulator(this);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.loadtest;
+
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stress test for {@link ConversationExecutor}. Thousands of conversations submit numbered tasks
+ * at once, while a few slow conversations block their worker on every task. It checks that each
+ * conversation's tasks run one at a time and in order, that the other conversations finish long
+ * before the slow ones do, and that idle mailboxes are evicted afterwards. Exits with 1 if any
+ * check fails.
+ *
+ * <p>The run is tuned with {@code stress.conversations}, {@code stress.tasksPerConversation},
+ * {@code stress.slowConversations}, {@code stress.slowTaskMillis}, {@code stress.workers},
+ * {@code stress.submitters} and {@code stress.virtualThreads}.
+ */
+public final class ConversationOrderingStress {
+
+  private static final long IDLE_MILLIS = 1000;
+
+  private ConversationOrderingStress() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int conversations = Integer.getInteger("stress.conversations", 5000);
+    int tasksPerConversation = Integer.getInteger("stress.tasksPerConversation", 20);
+    int slowConversations = Integer.getInteger("stress.slowConversations", 4);
+    long slowTaskMillis = Long.getLong("stress.slowTaskMillis", 100);
+    int workers = Integer.getInteger("stress.workers", 16);
+    int submitters = Integer.getInteger("stress.submitters", 8);
+
+    ConversationExecutor executor = new ConversationExecutor(workers, tasksPerConversation,
+        IDLE_MILLIS, Boolean.getBoolean("stress.virtualThreads"));
+
+    int[] lastSequence = new int[conversations];
+    Arrays.fill(lastSequence, -1);
+    AtomicInteger[] running = new AtomicInteger[conversations];
+    for (int i = 0; i < conversations; i++) {
+      running[i] = new AtomicInteger();
+    }
+
+    AtomicLong outOfOrder = new AtomicLong();
+    AtomicLong overlapping = new AtomicLong();
+    AtomicLong rejected = new AtomicLong();
+    AtomicLongArray finishedAt = new AtomicLongArray(conversations);
+    long[] waits = new long[conversations * tasksPerConversation];
+    CountDownLatch done = new CountDownLatch(conversations * tasksPerConversation);
+
+    long start = System.nanoTime();
+
+    // Each submitter sends task n of its share of the conversations before task n + 1
+    Thread[] threads = new Thread[submitters];
+    for (int s = 0; s < submitters; s++) {
+      int first = s;
+      threads[s] = new Thread(() -> {
+        for (int sequence = 0; sequence < tasksPerConversation; sequence++) {
+          for (int c = first; c < conversations; c += submitters) {
+            int conversation = c;
+            int number = sequence;
+            long submitted = System.nanoTime();
+
+            boolean queued = executor.submit("stress-" + conversation, () -> {
+              long started = System.nanoTime();
+              waits[conversation * tasksPerConversation + number] = started - submitted;
+
+              if (running[conversation].incrementAndGet() > 1) {
+                overlapping.incrementAndGet();
+              }
+              if (lastSequence[conversation] != number - 1) {
+                outOfOrder.incrementAndGet();
+              }
+              lastSequence[conversation] = number;
+
+              if (conversation < slowConversations) {
+                sleep(slowTaskMillis);
+              }
+
+              running[conversation].decrementAndGet();
+              finishedAt.set(conversation, System.nanoTime());
+              done.countDown();
+            });
+
+            if (!queued) {
+              rejected.incrementAndGet();
+              done.countDown();
+            }
+          }
+        }
+      }, "stress-submitter-" + s);
+      threads[s].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    done.await();
+    long elapsed = System.nanoTime() - start;
+
+    long fastDone = 0;
+    long slowDone = 0;
+    for (int c = 0; c < conversations; c++) {
+      long finished = finishedAt.get(c) - start;
+      if (c < slowConversations) {
+        slowDone = Math.max(slowDone, finished);
+      } else {
+        fastDone = Math.max(fastDone, finished);
+      }
+    }
+
+    long[] fastWaits = Arrays.copyOfRange(waits, slowConversations * tasksPerConversation,
+        waits.length);
+    Arrays.sort(fastWaits);
+
+    int mailboxesAfterRun = executor.getMailboxCount();
+    Thread.sleep(IDLE_MILLIS * 3);
+    int mailboxesAfterIdle = executor.getMailboxCount();
+    executor.shutdown();
+
+    StringBuilder out = new StringBuilder();
+    out.append(String.format(Locale.ROOT, "%nConversation mailboxes%n"));
+    out.append(String.format(Locale.ROOT, "  tasks          %d over %d conversations in %d ms%n",
+        (long) conversations * tasksPerConversation, conversations, millis(elapsed)));
+    out.append(String.format(Locale.ROOT, "  rejected       %d%n", rejected.get()));
+    out.append(String.format(Locale.ROOT, "  out of order   %d%n", outOfOrder.get()));
+    out.append(String.format(Locale.ROOT, "  overlapping    %d%n", overlapping.get()));
+    out.append(String.format(Locale.ROOT,
+        "  fast wait ms   p50 %.2f  p99 %.2f  max %.2f%n",
+        percentileMillis(fastWaits, 50), percentileMillis(fastWaits, 99),
+        percentileMillis(fastWaits, 100)));
+    out.append(String.format(Locale.ROOT, "  fast done in   %d ms%n", millis(fastDone)));
+    out.append(String.format(Locale.ROOT, "  slow done in   %d ms (%d conversations)%n",
+        millis(slowDone), slowConversations));
+    out.append(String.format(Locale.ROOT, "  mailboxes      %d after the run, %d once idle%n",
+        mailboxesAfterRun, mailboxesAfterIdle));
+    System.out.print(out);
+
+    boolean blocked = slowConversations > 0 && slowConversations < workers && fastDone >= slowDone;
+    if (rejected.get() > 0 || outOfOrder.get() > 0 || overlapping.get() > 0 || blocked
+        || mailboxesAfterIdle > 0) {
+      System.out.println("FAILED");
+      System.exit(1);
+    }
+
+    System.out.println("OK");
+    System.exit(0);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static double percentileMillis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.loadtest;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for a Pub/Sub subscription read by a streaming-pull subscriber. Published
+ * messages wait in an unbounded backlog and are handed to the receiver by a few delivery threads,
+ * with at most a fixed number of messages outstanding, as the subscriber's flow control does.
+ * Nacked messages go back to the front of the backlog to be redelivered.
+ */
+public final class InMemorySubscription implements AutoCloseable {
+
+  private final MessageReceiver receiver;
+
+  private final BlockingDeque<PubsubMessage> backlog = new LinkedBlockingDeque<>();
+
+  private final Semaphore outstanding;
+
+  private final List<Thread> deliverers = new ArrayList<>();
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong acked = new AtomicLong();
+  private final AtomicLong nacked = new AtomicLong();
+  private final AtomicLong maxBacklog = new AtomicLong();
+
+  // Published but not yet acked
+  private final AtomicLong pending = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates the subscription and starts delivering.
+   *
+   * @param receiver Receives the messages.
+   * @param maxOutstanding The most messages delivered but not yet acked or nacked.
+   * @param deliveryThreads The number of threads calling the receiver.
+   */
+  public InMemorySubscription(MessageReceiver receiver, int maxOutstanding, int deliveryThreads) {
+    this.receiver = receiver;
+    this.outstanding = new Semaphore(maxOutstanding);
+
+    for (int i = 0; i < deliveryThreads; i++) {
+      Thread thread = new Thread(this::deliver, "subscription-delivery-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      deliverers.add(thread);
+    }
+  }
+
+  /**
+   * Adds a message to the backlog.
+   *
+   * @param data The message data.
+   * @return Always true, publishing doesn't wait for delivery.
+   */
+  public boolean publish(byte[] data) {
+    long id = published.incrementAndGet();
+    pending.incrementAndGet();
+    backlog.addLast(PubsubMessage.newBuilder()
+        .setMessageId(Long.toString(id))
+        .setData(ByteString.copyFrom(data))
+        .build());
+
+    maxBacklog.accumulateAndGet(backlog.size(), Math::max);
+
+    return true;
+  }
+
+  /**
+   * @return True if no message is waiting or outstanding.
+   */
+  public boolean isIdle() {
+    return pending.get() == 0;
+  }
+
+  /**
+   * @return The number of messages published.
+   */
+  public long getPublished() {
+    return published.get();
+  }
+
+  /**
+   * @return The number of acks.
+   */
+  public long getAcked() {
+    return acked.get();
+  }
+
+  /**
+   * @return The number of nacks, each followed by a redelivery.
+   */
+  public long getNacked() {
+    return nacked.get();
+  }
+
+  /**
+   * @return The largest number of messages seen waiting in the backlog.
+   */
+  public long getMaxBacklog() {
+    return maxBacklog.get();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    for (Thread thread : deliverers) {
+      thread.interrupt();
+    }
+  }
+
+  private void deliver() {
+    while (!closed) {
+      PubsubMessage message;
+      try {
+        message = backlog.takeFirst();
+        outstanding.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      receiver.receiveMessage(message, new Reply(message));
+    }
+  }
+
+  /**
+   * Settles one delivery, only the first ack or nack counts.
+   */
+  private final class Reply implements AckReplyConsumer {
+    private final PubsubMessage message;
+    private boolean settled;
+
+    Reply(PubsubMessage message) {
+      this.message = message;
+    }
+
+    @Override
+    public synchronized void ack() {
+      if (!settled) {
+        settled = true;
+        acked.incrementAndGet();
+        pending.decrementAndGet();
+        outstanding.release();
+      }
+    }
+
+    @Override
+    public synchronized void nack() {
+      if (!settled) {
+        settled = true;
+        nacked.incrementAndGet();
+        backlog.addFirst(message);
+        outstanding.release();
+      }
+    }
+  }
+}
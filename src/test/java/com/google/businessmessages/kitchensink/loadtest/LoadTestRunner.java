@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.loadtest;
+
+import com.google.businessmessages.kitchensink.BotConfig;
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import com.google.businessmessages.kitchensink.WarmUp;
+import com.google.businessmessages.kitchensink.callback.CallbackProcessor;
+import com.google.businessmessages.kitchensink.metrics.Metrics;
+import com.google.businessmessages.kitchensink.pubsub.PullIngestion;
+import com.google.businessmessages.kitchensink.servlets.AgentCallback;
+import java.io.File;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+/**
+ * Runs the bot's callback servlet in an embedded Jetty against a {@link BmApiEmulator}, drives it
+ * with a {@link WebhookLoadGenerator} and prints throughput, webhook latency percentiles and the
+ * number of Business Messages API calls made per webhook. Everything runs on localhost, so no
+ * credentials or network access are needed. Run it with {@code mvn verify -Ploadtest}.
+ *
+ * <p>The run is tuned with system properties:
+ *
+ * <ul>
+ *   <li>{@code loadtest.durationSeconds}, {@code loadtest.concurrency},
+ *       {@code loadtest.conversations} and {@code loadtest.maxWebhooks} shape the traffic.
+ *   <li>{@code loadtest.latencyMillis}, {@code loadtest.jitterMillis},
+ *       {@code loadtest.errorRate} and {@code loadtest.throttlePerSecond} shape the emulator.
+ *   <li>{@code loadtest.logLevel} is the level the bot logs at, OFF by default.
+ *   <li>{@code loadtest.warmUp} warms the bot up before the run, true by default.
+ *   <li>{@code loadtest.ingestion} is "push" to post webhooks to the callback servlet (the
+ *       default) or "pull" to publish them to an in-memory stand-in for a Pub/Sub subscription
+ *       read by {@link PullIngestion}, with {@code kitchensink.pubsub.maxOutstandingMessages} and
+ *       {@code kitchensink.pubsub.executorThreads} as its flow control. Publishing never waits,
+ *       so a pull run sends a burst of 2000 webhooks unless {@code loadtest.maxWebhooks} is set,
+ *       and the report shows how long the bot takes to work through it.
+ *   <li>{@code loadtest.maxFailureRate} is the share of failed webhooks above which the run
+ *       fails.
+ * </ul>
+ *
+ * <p>Any {@code kitchensink.*} property given on the command line overrides the defaults below.
+ */
+public final class LoadTestRunner {
+
+  private static final Logger logger = Logger.getLogger(LoadTestRunner.class.getName());
+
+  // How long outbound calls must stay flat before the run counts as finished
+  private static final long QUIET_MILLIS = 2000;
+
+  private static final long MAX_DRAIN_MILLIS = 120000;
+
+  private LoadTestRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Failures show up in the report counters, logging each one would bury the report
+    Logger.getLogger("").setLevel(Level.parse(System.getProperty("loadtest.logLevel", "OFF")));
+
+    try (BmApiEmulator emulator = BmApiEmulator.builder()
+        .latencyMillis(Long.getLong("loadtest.latencyMillis", 50),
+            Long.getLong("loadtest.jitterMillis", 20))
+        .errorRate(Double.parseDouble(System.getProperty("loadtest.errorRate", "0.01")))
+        .throttlePerSecond(Integer.getInteger("loadtest.throttlePerSecond", 0))
+        .start()) {
+
+      configureBot(emulator.getUrl());
+
+      Server server = startCallbackServer();
+      try {
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        // Measure the warm bot rather than class loading and client setup
+        Map<String, Long> warmUp = Boolean.parseBoolean(
+            System.getProperty("loadtest.warmUp", "true")) ? WarmUp.run() : null;
+
+        boolean pull = "pull".equals(System.getProperty("loadtest.ingestion", "push"));
+        InMemorySubscription subscription = pull ? startSubscription() : null;
+
+        WebhookLoadGenerator generator = WebhookLoadGenerator.builder()
+            .callbackUrl(new URL("http://localhost:" + port + "/callback"))
+            .transport(subscription == null ? null : subscription::publish)
+            .concurrency(Integer.getInteger("loadtest.concurrency", 16))
+            .conversations(Integer.getInteger("loadtest.conversations", 200))
+            .durationSeconds(Long.getLong("loadtest.durationSeconds", 30))
+            .maxWebhooks(Long.getLong("loadtest.maxWebhooks", pull ? 2000 : 0))
+            .sentMessageNames(emulator::getRecentMessageNames)
+            .build();
+
+        WebhookLoadGenerator.Report report = generator.run();
+        long drainMillis = awaitQuiet(emulator, subscription);
+
+        printReport(report, emulator, subscription, warmUp, drainMillis);
+
+        double maxFailureRate =
+            Double.parseDouble(System.getProperty("loadtest.maxFailureRate", "0.01"));
+        if (report.getFailed() > report.getWebhooks() * maxFailureRate) {
+          logger.severe("Too many failed webhooks: " + report.getFailed());
+          System.exit(1);
+        }
+      } finally {
+        server.stop();
+      }
+    }
+
+    System.exit(0);
+  }
+
+  /**
+   * Points the bot at the emulator and swaps App Engine services for in-process ones.
+   */
+  private static void configureBot(String apiUrl) {
+    System.setProperty("kitchensink.bm.apiUrl", apiUrl);
+    defaultProperty("kitchensink.bm.useCredentials", "false");
+    defaultProperty("kitchensink.state.backend", "memory");
+    defaultProperty("kitchensink.warmup.onStartup", "false");
+    defaultProperty("kitchensink.logging.async", "false");
+
+    // A journal left behind by an earlier run would be replayed into this one
+    File journal = new File(System.getProperty("java.io.tmpdir"), "kitchensink-loadtest.journal");
+    journal.delete();
+    defaultProperty("kitchensink.journal.path", journal.getPath());
+  }
+
+  private static void defaultProperty(String name, String value) {
+    if (System.getProperty(name) == null) {
+      System.setProperty(name, value);
+    }
+  }
+
+  private static Server startCallbackServer() throws Exception {
+    Server server = new Server(0);
+
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(AgentCallback.class, "/callback").setInitOrder(1);
+    server.setHandler(context);
+    server.start();
+
+    return server;
+  }
+
+  /**
+   * Starts pulling from an in-memory subscription, with the same mailboxes and flow control the bot
+   * would use against Pub/Sub.
+   */
+  private static InMemorySubscription startSubscription() {
+    return new InMemorySubscription(
+        new PullIngestion(CallbackProcessor.getInstance(), ConversationExecutor.getShared()),
+        BotConfig.getInt("kitchensink.pubsub.maxOutstandingMessages", 1000),
+        BotConfig.getInt("kitchensink.pubsub.executorThreads", 4));
+  }
+
+  /**
+   * Waits for the webhooks still queued in the bot to be answered.
+   *
+   * @return How long the wait took in milliseconds.
+   */
+  private static long awaitQuiet(BmApiEmulator emulator, InMemorySubscription subscription)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    long lastCalls = -1;
+    long quietSince = start;
+
+    while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MAX_DRAIN_MILLIS) {
+      long calls = emulator.getTotalCalls();
+      Long queueDepth = Metrics.gauges().get("callback_queue_depth");
+
+      if (calls != lastCalls || (queueDepth != null && queueDepth > 0)
+          || (subscription != null && !subscription.isIdle())) {
+        lastCalls = calls;
+        quietSince = System.nanoTime();
+      } else if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - quietSince) >= QUIET_MILLIS) {
+        break;
+      }
+
+      Thread.sleep(100);
+    }
+
+    return TimeUnit.NANOSECONDS.toMillis(quietSince - start);
+  }
+
+  private static void printReport(WebhookLoadGenerator.Report report, BmApiEmulator emulator,
+      InMemorySubscription subscription, Map<String, Long> warmUp, long drainMillis) {
+    StringBuilder out = new StringBuilder();
+
+    if (warmUp != null) {
+      out.append(String.format(Locale.ROOT, "%nWarm-up ms%n"));
+      warmUp.forEach((step, millis) ->
+          out.append(String.format(Locale.ROOT, "  %-18s %d%n", step, millis)));
+    }
+
+    out.append(String.format(Locale.ROOT, "%nWebhooks%n"));
+    out.append(String.format(Locale.ROOT, "  sent           %d in %d ms (%.1f/s), %d failed%n",
+        report.getWebhooks(), report.getElapsedMillis(), report.getThroughput(),
+        report.getFailed()));
+    report.getWebhooksByType().forEach((type, count) ->
+        out.append(String.format(Locale.ROOT, "  %-14s %d%n",
+            type.name().toLowerCase(Locale.ROOT), count)));
+    out.append(String.format(Locale.ROOT,
+        "  latency ms     p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+        report.getLatencyMillis(50), report.getLatencyMillis(90), report.getLatencyMillis(99),
+        report.getLatencyMillis(99.9), report.getLatencyMillis(100)));
+
+    if (subscription != null) {
+      out.append(String.format(Locale.ROOT, "%nPub/Sub stand-in%n"));
+      out.append(String.format(Locale.ROOT, "  published      %d%n", subscription.getPublished()));
+      out.append(String.format(Locale.ROOT, "  acked          %d%n", subscription.getAcked()));
+      out.append(String.format(Locale.ROOT, "  nacked         %d%n", subscription.getNacked()));
+      out.append(String.format(Locale.ROOT, "  max backlog    %d%n",
+          subscription.getMaxBacklog()));
+    }
+
+    long calls = emulator.getTotalCalls();
+    out.append(String.format(Locale.ROOT, "%nBusiness Messages API%n"));
+    out.append(String.format(Locale.ROOT, "  calls          %d (%.2f per webhook)%n", calls,
+        report.getWebhooks() == 0 ? 0.0 : (double) calls / report.getWebhooks()));
+    for (Map.Entry<String, Long> endpoint : emulator.getCalls().entrySet()) {
+      out.append(String.format(Locale.ROOT, "  %-14s %d%n", endpoint.getKey(),
+          endpoint.getValue()));
+    }
+    out.append(String.format(Locale.ROOT, "  failed         %d%n", emulator.getFailed()));
+    out.append(String.format(Locale.ROOT, "  throttled      %d%n", emulator.getThrottled()));
+    out.append(String.format(Locale.ROOT, "  drained in     %d ms after the last webhook%n",
+        drainMillis));
+
+    out.append(String.format(Locale.ROOT, "%nBot counters%n"));
+    for (Map.Entry<String, Long> counter : Metrics.counters().entrySet()) {
+      out.append(String.format(Locale.ROOT, "  %s %d%n", counter.getKey(), counter.getValue()));
+    }
+
+    System.out.print(out);
+  }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Replays webhook traffic into the bot's callback endpoint from a number of concurrent senders,
+ * each posting its next webhook as soon as the previous one is answered. The traffic is a weighted
+ * mix of the callbacks the platform sends: user messages with bot commands, suggestion postbacks,
+ * delivery and read receipts, typing indicators and survey responses. Webhooks can also be handed
+ * to another transport, such as an in-memory Pub/Sub subscription, instead of being posted.
+ */
+public final class WebhookLoadGenerator {
+
+  /**
+   * The kinds of webhook in the traffic mix.
+   */
+  public enum WebhookType {
+    MESSAGE,
+    POSTBACK,
+    RECEIPT,
+    TYPING,
+    SURVEY
+  }
+
+  // Commands a user might send, "speak" is left out as it calls the Translate API
+  private static final List<String> MESSAGE_TEXTS = Collections.unmodifiableList(Arrays.asList(
+      "help", "card", "carousel", "chips", "link", "dial", "who are you", "lorem ipsum",
+      "medium text", "long text", "bold", "italics", "hyperlink", "hello there", "csat"));
+
+  private static final List<String> POSTBACK_DATA = Collections.unmodifiableList(Arrays.asList(
+      "help", "card", "chips", "carousel", "back_to_bot"));
+
+  private static final List<String> SURVEY_RATINGS = Collections.unmodifiableList(Arrays.asList(
+      "VERY_SATISFIED", "SOMEWHAT_SATISFIED", "NEITHER_SATISFIED_NOR_DISSATISFIED",
+      "SOMEWHAT_DISSATISFIED", "VERY_DISSATISFIED"));
+
+  private final URL callbackUrl;
+  private final Predicate<byte[]> transport;
+  private final int concurrency;
+  private final int conversations;
+  private final long durationNanos;
+  private final long maxWebhooks;
+  private final Map<WebhookType, Integer> weights;
+  private final int totalWeight;
+  private final Supplier<List<String>> sentMessageNames;
+
+  private WebhookLoadGenerator(Builder builder) {
+    this.callbackUrl = builder.callbackUrl;
+    this.transport = builder.transport;
+    this.concurrency = builder.concurrency;
+    this.conversations = builder.conversations;
+    this.durationNanos = TimeUnit.SECONDS.toNanos(builder.durationSeconds);
+    this.maxWebhooks = builder.maxWebhooks;
+    this.weights = new EnumMap<>(builder.weights);
+    this.sentMessageNames = builder.sentMessageNames;
+
+    int total = 0;
+    for (int weight : weights.values()) {
+      total += weight;
+    }
+    if (total <= 0) {
+      throw new IllegalStateException("The traffic mix is empty");
+    }
+    this.totalWeight = total;
+  }
+
+  /**
+   * @return A builder for a generator.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Sends webhooks until the duration is over or the webhook limit is reached.
+   *
+   * @return The results of the run.
+   * @throws InterruptedException If interrupted while waiting for the senders.
+   */
+  public Report run() throws InterruptedException {
+    ExecutorService senders = Executors.newFixedThreadPool(concurrency);
+    List<Future<Sender>> results = new ArrayList<>(concurrency);
+
+    long startNanos = System.nanoTime();
+    long deadline = startNanos + durationNanos;
+    long perSender = maxWebhooks > 0 ? Math.max(1, maxWebhooks / concurrency) : Long.MAX_VALUE;
+
+    for (int i = 0; i < concurrency; i++) {
+      Sender sender = new Sender(deadline, perSender);
+      results.add(senders.submit(() -> {
+        sender.run();
+        return sender;
+      }));
+    }
+
+    Report report = new Report();
+    for (Future<Sender> result : results) {
+      try {
+        report.add(result.get());
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Load generator thread failed", e.getCause());
+      }
+    }
+    report.elapsedNanos = System.nanoTime() - startNanos;
+
+    senders.shutdown();
+
+    return report;
+  }
+
+  private WebhookType nextType(ThreadLocalRandom random) {
+    int pick = random.nextInt(totalWeight);
+    for (Map.Entry<WebhookType, Integer> weight : weights.entrySet()) {
+      pick -= weight.getValue();
+      if (pick < 0) {
+        return weight.getKey();
+      }
+    }
+
+    return WebhookType.MESSAGE;
+  }
+
+  /**
+   * Builds the body of a webhook.
+   */
+  private String webhook(WebhookType type, ThreadLocalRandom random) {
+    String conversationId = "load-test-" + random.nextInt(conversations);
+    JsonObject body = new JsonObject();
+    body.addProperty("conversationId", conversationId);
+
+    switch (type) {
+      case MESSAGE:
+        JsonObject message = new JsonObject();
+        message.addProperty("messageId", UUID.randomUUID().toString());
+        message.addProperty("text", pick(MESSAGE_TEXTS, random));
+        body.add("message", message);
+        break;
+      case POSTBACK:
+        JsonObject suggestionResponse = new JsonObject();
+        suggestionResponse.addProperty("postbackData", pick(POSTBACK_DATA, random));
+        body.addProperty("requestId", UUID.randomUUID().toString());
+        body.add("suggestionResponse", suggestionResponse);
+        break;
+      case RECEIPT:
+        JsonObject receipt = new JsonObject();
+        receipt.addProperty("receiptType", random.nextBoolean() ? "DELIVERED" : "READ");
+        receipt.addProperty("message", sentMessageName(conversationId, random));
+        JsonArray receiptList = new JsonArray();
+        receiptList.add(receipt);
+        JsonObject receipts = new JsonObject();
+        receipts.add("receipts", receiptList);
+        body.addProperty("requestId", UUID.randomUUID().toString());
+        body.add("receipts", receipts);
+        break;
+      case TYPING:
+        JsonObject userStatus = new JsonObject();
+        userStatus.addProperty("isTyping", true);
+        body.addProperty("requestId", UUID.randomUUID().toString());
+        body.add("userStatus", userStatus);
+        break;
+      default:
+        JsonObject surveyResponse = new JsonObject();
+        surveyResponse.addProperty("rating", pick(SURVEY_RATINGS, random));
+        body.add("surveyResponse", surveyResponse);
+    }
+
+    return body.toString();
+  }
+
+  /**
+   * Picks a message the bot actually sent, so receipts can be matched to their message.
+   */
+  /**
+   * Picks the resource name of a message the bot sent, which is what receipts refer to.
+   */
+  private String sentMessageName(String conversationId, ThreadLocalRandom random) {
+    List<String> names = sentMessageNames.get();
+
+    return names.isEmpty()
+        ? "conversations/" + conversationId + "/messages/" + UUID.randomUUID()
+        : pick(names, random);
+  }
+
+  private static String pick(List<String> values, ThreadLocalRandom random) {
+    return values.get(random.nextInt(values.size()));
+  }
+
+  /**
+   * Posts webhooks one after another and keeps its own results, merged when the run is over.
+   */
+  private final class Sender implements Runnable {
+    private final long deadline;
+    private final long limit;
+
+    private final EnumMap<WebhookType, Long> sent = new EnumMap<>(WebhookType.class);
+    private long[] latencies = new long[1024];
+    private int count;
+    private long failed;
+
+    Sender(long deadline, long limit) {
+      this.deadline = deadline;
+      this.limit = limit;
+    }
+
+    @Override
+    public void run() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+
+      while (count < limit && System.nanoTime() < deadline) {
+        WebhookType type = nextType(random);
+        byte[] body = webhook(type, random).getBytes(StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        boolean ok = post(body);
+        long latency = System.nanoTime() - start;
+
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+        sent.merge(type, 1L, Long::sum);
+        if (!ok) {
+          failed++;
+        }
+      }
+    }
+
+    /**
+     * @return False if the webhook failed or was not answered with 2xx.
+     */
+    private boolean post(byte[] body) {
+      if (transport != null) {
+        return transport.test(body);
+      }
+
+      try {
+        HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        connection.setFixedLengthStreamingMode(body.length);
+
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body);
+        }
+
+        int status = connection.getResponseCode();
+
+        // Read the response to the end so the connection goes back to the keep-alive cache
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+          try (InputStream response = in) {
+            byte[] buffer = new byte[1024];
+            while (response.read(buffer) != -1) {
+              // Discarded
+            }
+          }
+        }
+
+        return status >= 200 && status < 300;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * The results of a run.
+   */
+  public static final class Report {
+    private final EnumMap<WebhookType, Long> sent = new EnumMap<>(WebhookType.class);
+    private long[] latencies = new long[0];
+    private long failed;
+    private long elapsedNanos;
+
+    private void add(Sender sender) {
+      sender.sent.forEach((type, count) -> sent.merge(type, count, Long::sum));
+      failed += sender.failed;
+
+      int offset = latencies.length;
+      latencies = Arrays.copyOf(latencies, offset + sender.count);
+      System.arraycopy(sender.latencies, 0, latencies, offset, sender.count);
+      Arrays.sort(latencies);
+    }
+
+    /**
+     * @return The number of webhooks sent.
+     */
+    public long getWebhooks() {
+      return latencies.length;
+    }
+
+    /**
+     * @return The number of webhooks sent of each type.
+     */
+    public Map<WebhookType, Long> getWebhooksByType() {
+      return Collections.unmodifiableMap(sent);
+    }
+
+    /**
+     * @return The number of webhooks that failed or were not answered with 2xx.
+     */
+    public long getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return The length of the run in milliseconds.
+     */
+    public long getElapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return The webhooks answered per second.
+     */
+    public double getThroughput() {
+      return elapsedNanos == 0 ? 0 : latencies.length * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The webhook response time at the percentile in milliseconds.
+     */
+    public double getLatencyMillis(double percentile) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+
+      int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+
+      return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+    }
+  }
+
+  /**
+   * Builder for {@link WebhookLoadGenerator}.
+   */
+  public static final class Builder {
+    private URL callbackUrl;
+    private Predicate<byte[]> transport;
+    private int concurrency = 16;
+    private int conversations = 200;
+    private long durationSeconds = 30;
+    private long maxWebhooks;
+    private final EnumMap<WebhookType, Integer> weights = new EnumMap<>(WebhookType.class);
+    private Supplier<List<String>> sentMessageNames = Collections::emptyList;
+
+    private Builder() {
+      weights.put(WebhookType.MESSAGE, 50);
+      weights.put(WebhookType.POSTBACK, 15);
+      weights.put(WebhookType.RECEIPT, 20);
+      weights.put(WebhookType.TYPING, 10);
+      weights.put(WebhookType.SURVEY, 5);
+    }
+
+    /**
+     * @param callbackUrl The URL of the bot's callback servlet.
+     * @return This builder.
+     */
+    public Builder callbackUrl(URL callbackUrl) {
+      this.callbackUrl = callbackUrl;
+
+      return this;
+    }
+
+    /**
+     * @param transport Sends a webhook payload in place of posting it to the callback URL, and
+     *     returns false if that failed.
+     * @return This builder.
+     */
+    public Builder transport(Predicate<byte[]> transport) {
+      this.transport = transport;
+
+      return this;
+    }
+
+    /**
+     * @param concurrency The number of webhooks in flight at the same time.
+     * @return This builder.
+     */
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+
+      return this;
+    }
+
+    /**
+     * @param conversations The number of distinct conversations the webhooks are spread over.
+     * @return This builder.
+     */
+    public Builder conversations(int conversations) {
+      this.conversations = conversations;
+
+      return this;
+    }
+
+    /**
+     * @param durationSeconds How long to send webhooks for.
+     * @return This builder.
+     */
+    public Builder durationSeconds(long durationSeconds) {
+      this.durationSeconds = durationSeconds;
+
+      return this;
+    }
+
+    /**
+     * @param maxWebhooks The number of webhooks after which to stop early, 0 for no limit.
+     * @return This builder.
+     */
+    public Builder maxWebhooks(long maxWebhooks) {
+      this.maxWebhooks = maxWebhooks;
+
+      return this;
+    }
+
+    /**
+     * @param type The kind of webhook.
+     * @param weight Its relative share of the traffic, 0 to leave it out.
+     * @return This builder.
+     */
+    public Builder weight(WebhookType type, int weight) {
+      weights.put(type, weight);
+
+      return this;
+    }
+
+    /**
+     * @param sentMessageNames Supplies the resource names of messages the bot sent, for receipts
+     *     to refer to.
+     * @return This builder.
+     */
+    public Builder sentMessageNames(Supplier<List<String>> sentMessageNames) {
+      this.sentMessageNames = sentMessageNames;
+
+      return this;
+    }
+
+    /**
+     * @return The generator.
+     */
+    public WebhookLoadGenerator build() {
+      if (callbackUrl == null && transport == null) {
+        throw new IllegalStateException("A callback URL or a transport is required");
+      }
+
+      return new WebhookLoadGenerator(this);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncLogHandlerTest {
+
+  private final CountDownLatch writerBlocked = new CountDownLatch(1);
+  private final CountDownLatch releaseWriter = new CountDownLatch(1);
+  private final RecordingHandler delegate = new RecordingHandler();
+
+  private AsyncLogHandler handler;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    handler = new AsyncLogHandler(2, false, delegate);
+
+    // Hold the writer thread on the first record so the buffer fills up behind it
+    handler.publish(record(Level.INFO, "blocking"));
+    assertTrue(writerBlocked.await(5, TimeUnit.SECONDS));
+    handler.publish(record(Level.INFO, "queued-1"));
+    handler.publish(record(Level.INFO, "queued-2"));
+  }
+
+  @After
+  public void tearDown() {
+    releaseWriter.countDown();
+    handler.close();
+  }
+
+  @Test
+  public void publish_writesWarningsInlineWhenFull() {
+    handler.publish(record(Level.WARNING, "warning"));
+    handler.publish(record(Level.SEVERE, "severe"));
+
+    assertEquals("[blocking, warning, severe]", delegate.messages().toString());
+  }
+
+  @Test
+  public void publish_dropsNewInfoRecordsWhenFull() {
+    handler.publish(record(Level.INFO, "dropped"));
+
+    releaseWriter.countDown();
+    handler.flush();
+
+    assertEquals("[blocking, queued-1, queued-2]", delegate.messages().toString());
+  }
+
+  @Test
+  public void publish_usesTheLoggerNameAsSourceUnlessInferringTheCaller() {
+    releaseWriter.countDown();
+    handler.flush();
+
+    assertEquals(AsyncLogHandlerTest.class.getName(),
+        delegate.records.get(0).getSourceClassName());
+  }
+
+  private static LogRecord record(Level level, String message) {
+    LogRecord record = new LogRecord(level, message);
+    record.setLoggerName(AsyncLogHandlerTest.class.getName());
+    return record;
+  }
+
+  private final class RecordingHandler extends Handler {
+    private final List<LogRecord> records = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(LogRecord record) {
+      records.add(record);
+      if (record.getMessage().equals("blocking")) {
+        writerBlocked.countDown();
+        try {
+          releaseWriter.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    List<String> messages() {
+      List<String> messages = new CopyOnWriteArrayList<>();
+      for (LogRecord record : records) {
+        messages.add(record.getMessage());
+      }
+      return messages;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void onSuccess_ignoresACallThatStartedBeforeTheCircuitOpened() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+
+    long slow = breaker.tryAcquire();
+    breaker.onFailure(breaker.tryAcquire());
+    breaker.onFailure(breaker.tryAcquire());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    // The slow call comes back after the circuit opened
+    breaker.onSuccess(slow);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+  }
+
+  @Test
+  public void onSuccess_closesTheCircuitFromTheProbe() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0);
+
+    long slow = breaker.tryAcquire();
+    breaker.onFailure(breaker.tryAcquire());
+
+    long probe = breaker.tryAcquire();
+    assertNotEquals(CircuitBreaker.REFUSED, probe);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    // Neither outcome of the stale call settles the probe
+    breaker.onFailure(slow);
+    breaker.onSuccess(slow);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+
+    breaker.onSuccess(probe);
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void onFailure_reopensTheCircuitFromTheProbe() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0);
+    breaker.onFailure(breaker.tryAcquire());
+
+    breaker.onFailure(breaker.tryAcquire());
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageJournalTest {
+
+  private static final int CAPACITY = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void open_recoversUnacknowledgedMessages() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      journal.append("conversation-1", "message-1", "{\"text\":\"one\"}");
+      journal.append("conversation-1", "message-2", "{\"text\":\"two\"}");
+      journal.append("conversation-2", "message-3", "{\"text\":\"three\"}");
+      journal.acknowledge("message-2");
+    }
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      List<MessageJournal.Entry> entries = journal.pendingBefore(Long.MAX_VALUE);
+
+      assertEquals(2, entries.size());
+      assertEquals("message-1", entries.get(0).getMessageId());
+      assertEquals("{\"text\":\"one\"}", entries.get(0).getMessageJson());
+      assertEquals("conversation-2", entries.get(1).getConversationId());
+    }
+  }
+
+  @Test
+  public void open_stopsAtATornWrite() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      journal.append("conversation-1", "message-1", "{\"text\":\"one\"}");
+      journal.append("conversation-1", "message-2", "{\"text\":\"two\"}");
+    }
+
+    // The length of the last record made it to disk but part of its payload didn't
+    corruptLastByteOf(file, "two");
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      assertEquals(1, journal.size());
+      assertEquals("message-1", journal.pendingBefore(Long.MAX_VALUE).get(0).getMessageId());
+
+      // The journal keeps working past the torn record
+      journal.append("conversation-1", "message-3", "{\"text\":\"three\"}");
+    }
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      assertEquals(2, journal.size());
+    }
+  }
+
+  @Test
+  public void compact_keepsOnlyPendingMessages() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      for (int i = 0; i < 20; i++) {
+        journal.append("conversation-1", "message-" + i, "{\"text\":\"" + i + "\"}");
+        if (i % 5 != 0) {
+          journal.acknowledge("message-" + i);
+        }
+      }
+      double before = journal.usage();
+
+      journal.compact();
+
+      assertTrue(journal.usage() < before);
+      assertEquals(4, journal.size());
+    }
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      List<String> ids = new ArrayList<>();
+      for (MessageJournal.Entry entry : journal.pendingBefore(Long.MAX_VALUE)) {
+        ids.add(entry.getMessageId());
+      }
+
+      assertEquals("[message-0, message-5, message-10, message-15]", ids.toString());
+    }
+  }
+
+  @Test
+  public void compact_keepsRecordingWhileTheNewFileIsWritten() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      journal.append("conversation-1", "message-1", "{\"text\":\"one\"}");
+      journal.append("conversation-1", "message-2", "{\"text\":\"two\"}");
+
+      journal.compact(() -> {
+        // Another thread records and acknowledges without waiting for the compaction
+        try {
+          writer.submit(() -> {
+            journal.append("conversation-1", "message-3", "{\"text\":\"three\"}");
+            journal.acknowledge("message-1");
+            return null;
+          }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      });
+
+      assertEquals(2, journal.size());
+      journal.append("conversation-1", "message-4", "{\"text\":\"four\"}");
+    } finally {
+      writer.shutdownNow();
+    }
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      List<String> ids = new ArrayList<>();
+      for (MessageJournal.Entry entry : journal.pendingBefore(Long.MAX_VALUE)) {
+        ids.add(entry.getMessageId());
+      }
+
+      assertEquals("[message-2, message-3, message-4]", ids.toString());
+    }
+  }
+
+  @Test
+  public void append_compactsWhenTheJournalFillsUp() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      // Far more than fits at once, but never more than one pending
+      for (int i = 0; i < 500; i++) {
+        journal.append("conversation-1", "message-" + i, "{\"text\":\"" + i + "\"}");
+        journal.acknowledge("message-" + i);
+      }
+
+      journal.append("conversation-1", "last", "{}");
+    }
+
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      assertEquals(1, journal.size());
+      assertEquals("last", journal.pendingBefore(Long.MAX_VALUE).get(0).getMessageId());
+    }
+  }
+
+  @Test
+  public void append_failsWhenPendingMessagesFillTheJournal() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      try {
+        for (int i = 0; i < 500; i++) {
+          journal.append("conversation-1", "message-" + i, "{\"text\":\"" + i + "\"}");
+        }
+        fail("Expected the journal to fill up");
+      } catch (IOException e) {
+        assertTrue(journal.size() > 0);
+      }
+    }
+  }
+
+  @Test
+  public void open_refusesAJournalThatIsAlreadyOpen() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("outbound.journal");
+    try (MessageJournal journal = MessageJournal.open(file, CAPACITY, false)) {
+      try {
+        MessageJournal.open(file, CAPACITY, false);
+        fail("Expected the lock to be held");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("already open"));
+      }
+    }
+
+    // Closing releases the lock
+    MessageJournal.open(file, CAPACITY, false).close();
+  }
+
+  /**
+   * Flips the last byte of the record whose payload ends with a marker.
+   */
+  private static void corruptLastByteOf(Path file, String marker) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    byte[] needle = marker.getBytes(StandardCharsets.UTF_8);
+
+    int at = -1;
+    for (int i = 0; i + needle.length <= bytes.length && at < 0; i++) {
+      boolean match = true;
+      for (int j = 0; j < needle.length && match; j++) {
+        match = bytes[i + j] == needle[j];
+      }
+      if (match) {
+        at = i + needle.length - 1;
+      }
+    }
+    assertTrue(at >= 0);
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {(byte) ~bytes[at]}), at);
+    }
+  }
+}
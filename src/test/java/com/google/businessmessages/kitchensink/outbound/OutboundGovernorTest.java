@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+import com.google.businessmessages.kitchensink.outbound.OutboundGovernor.CallType;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Drives the governor with injected failures and slow calls in place of the API.
+ */
+public class OutboundGovernorTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @After
+  public void tearDown() {
+    release.countDown();
+  }
+
+  @Test
+  public void call_waitsForABulkheadPermit() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .bulkheads(1, 1)
+        .maxWaitMillis(5000)
+        .build();
+    CompletableFuture<String> holder = holdPermit(governor, "conversation-1");
+
+    CompletableFuture<String> waiter = CompletableFuture.supplyAsync(
+        () -> callQuietly(governor, "conversation-2", () -> "sent"));
+    Thread.sleep(100);
+    release.countDown();
+
+    assertEquals("held", holder.get(5, TimeUnit.SECONDS));
+    assertEquals("sent", waiter.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void call_rejectsWhenTheBulkheadStaysFull() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .bulkheads(1, 1)
+        .maxWaitMillis(50)
+        .build();
+    holdPermit(governor, "conversation-1");
+
+    assertRejected("bulkhead_full", () -> governor.call(CallType.MESSAGE, "conversation-2",
+        () -> "sent"));
+  }
+
+  @Test
+  public void call_doesNotHoldAPermitWhileThrottled() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .bulkheads(1, 1)
+        .conversationRate(2, 1)
+        .maxWaitMillis(5000)
+        .build();
+    governor.call(CallType.MESSAGE, "conversation-1", () -> "sent");
+
+    // Waits about half a second for the conversation's next token
+    CompletableFuture<String> throttled = CompletableFuture.supplyAsync(
+        () -> callQuietly(governor, "conversation-1", () -> "sent"));
+    Thread.sleep(50);
+
+    long start = System.nanoTime();
+    governor.call(CallType.MESSAGE, "conversation-2", () -> "sent");
+
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+    assertEquals("sent", throttled.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void call_opensTheCircuitAfterServerErrors() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .circuitBreaker(3, 60000)
+        .build();
+    AtomicInteger attempts = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        governor.call(CallType.MESSAGE, "conversation-1", failWith(503, attempts));
+        fail("Expected the injected failure");
+      } catch (HttpResponseException e) {
+        assertEquals(503, e.getStatusCode());
+      }
+    }
+
+    assertRejected("circuit_open",
+        () -> governor.call(CallType.MESSAGE, "conversation-1", failWith(503, attempts)));
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void callWithRetries_admitsEachAttempt() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .conversationRate(0.001, 3)
+        .maxWaitMillis(0)
+        .circuitBreaker(100, 60000)
+        .build();
+    AtomicInteger attempts = new AtomicInteger();
+
+    // Three tokens pay for three attempts, the fourth is refused rather than sent
+    assertRejected("rate_limited", () -> governor.callWithRetries(CallType.MESSAGE,
+        "conversation-1", BackOff.ZERO_BACKOFF, millis -> { }, failWith(503, attempts)));
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void callWithRetries_releasesThePermitWhileBackingOff() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .bulkheads(1, 1)
+        .maxWaitMillis(50)
+        .build();
+    AtomicInteger attempts = new AtomicInteger();
+    AtomicInteger callsDuringBackOff = new AtomicInteger();
+
+    String result = governor.callWithRetries(CallType.MESSAGE, "conversation-1",
+        BackOff.ZERO_BACKOFF,
+        millis -> {
+          callQuietly(governor, "conversation-2", () -> "sent");
+          callsDuringBackOff.incrementAndGet();
+        },
+        () -> {
+          if (attempts.incrementAndGet() == 1) {
+            throw serverError(503);
+          }
+          return "sent";
+        });
+
+    assertEquals("sent", result);
+    assertEquals(1, callsDuringBackOff.get());
+  }
+
+  @Test
+  public void callWithRetries_doesNotRetryClientErrors() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder().build();
+    AtomicInteger attempts = new AtomicInteger();
+
+    try {
+      governor.callWithRetries(CallType.MESSAGE, "conversation-1", BackOff.ZERO_BACKOFF,
+          millis -> { }, failWith(400, attempts));
+      fail("Expected the injected failure");
+    } catch (HttpResponseException e) {
+      assertEquals(400, e.getStatusCode());
+    }
+
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  public void callWithRetries_stopsWhenTheBackOffGivesUp() throws Exception {
+    OutboundGovernor governor = OutboundGovernor.builder()
+        .circuitBreaker(100, 60000)
+        .build();
+    AtomicInteger attempts = new AtomicInteger();
+
+    try {
+      governor.callWithRetries(CallType.MESSAGE, "conversation-1", BackOff.STOP_BACKOFF,
+          millis -> { }, failWith(500, attempts));
+      fail("Expected the injected failure");
+    } catch (HttpResponseException e) {
+      assertEquals(500, e.getStatusCode());
+    }
+
+    assertEquals(1, attempts.get());
+  }
+
+  /**
+   * Starts a call that holds its bulkhead permit until the test releases it.
+   */
+  private CompletableFuture<String> holdPermit(OutboundGovernor governor, String conversationId)
+      throws InterruptedException {
+    CountDownLatch entered = new CountDownLatch(1);
+    CompletableFuture<String> holder = CompletableFuture.supplyAsync(
+        () -> callQuietly(governor, conversationId, () -> {
+          entered.countDown();
+          release.await(5, TimeUnit.SECONDS);
+          return "held";
+        }));
+
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+    return holder;
+  }
+
+  private static String callQuietly(OutboundGovernor governor, String conversationId,
+      InterruptibleCall call) {
+    try {
+      return governor.call(CallType.MESSAGE, conversationId, () -> {
+        try {
+          return call.execute();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static OutboundGovernor.Call<String> failWith(int status, AtomicInteger attempts) {
+    return () -> {
+      attempts.incrementAndGet();
+      throw serverError(status);
+    };
+  }
+
+  private static HttpResponseException serverError(int status) {
+    return new HttpResponseException.Builder(status, "Injected", new HttpHeaders()).build();
+  }
+
+  private static void assertRejected(String reason, OutboundGovernor.Call<?> call)
+      throws IOException {
+    try {
+      call.execute();
+      fail("Expected the call to be rejected");
+    } catch (OutboundRejectedException e) {
+      assertEquals(reason, e.getReason());
+    }
+  }
+
+  @FunctionalInterface
+  private interface InterruptibleCall {
+    String execute() throws InterruptedException;
+  }
+}
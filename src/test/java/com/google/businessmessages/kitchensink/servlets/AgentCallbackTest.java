@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.businessmessages.kitchensink.ConversationExecutor;
+import com.google.businessmessages.kitchensink.FakeAppEngine;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AgentCallbackTest {
+
+  private FakeAppEngine appEngine;
+
+  private AgentCallback callback;
+
+  @BeforeClass
+  public static void setUpClass() {
+    System.setProperty("kitchensink.ingestion.async", "true");
+    System.setProperty("kitchensink.logging.async", "false");
+  }
+
+  @After
+  public void tearDown() {
+    if (callback != null) {
+      callback.destroy();
+    }
+    ConversationExecutor.shutdownShared();
+    appEngine.uninstall();
+  }
+
+  @Test
+  public void doPost_withoutBackgroundThreads_callsMemcacheOnTheRequestThread()
+      throws IOException, ServletException {
+    appEngine = FakeAppEngine.install(false);
+    callback = new AgentCallback();
+    callback.init();
+
+    assertEquals(HttpServletResponse.SC_OK, post(typingWebhook()));
+
+    List<Thread> callers = appEngine.getMemcacheCallers();
+    assertFalse(callers.isEmpty());
+    for (Thread caller : callers) {
+      assertEquals(Thread.currentThread(), caller);
+    }
+  }
+
+  @Test
+  public void doPost_withBackgroundThreads_callsMemcacheFromABackgroundWorker()
+      throws IOException, ServletException, InterruptedException {
+    appEngine = FakeAppEngine.install(true);
+    callback = new AgentCallback();
+    callback.init();
+
+    assertEquals(HttpServletResponse.SC_OK, post(typingWebhook()));
+
+    // A worker without an API environment fails before it reaches memcache
+    List<Thread> callers = appEngine.getMemcacheCallers();
+    for (int i = 0; i < 500 && callers.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    assertFalse(callers.isEmpty());
+    for (Thread caller : callers) {
+      assertNotEquals(Thread.currentThread(), caller);
+      assertTrue(caller.getName().startsWith("conversation-worker-"));
+    }
+  }
+
+  private static String typingWebhook() {
+    return "{\"conversationId\": \"conversation-1\", \"requestId\": \"" + UUID.randomUUID()
+        + "\", \"userStatus\": {\"isTyping\": true}}";
+  }
+
+  /**
+   * Posts a webhook to the callback servlet.
+   *
+   * @return The response status.
+   */
+  private int post(String body) throws IOException {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    ServletInputStream input = new ServletInputStream() {
+      @Override
+      public boolean isFinished() {
+        return bytes.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+      }
+
+      @Override
+      public int read() {
+        return bytes.read();
+      }
+    };
+
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        (proxy, method, args) -> "getInputStream".equals(method.getName()) ? input : null);
+
+    AtomicInteger status = new AtomicInteger(HttpServletResponse.SC_OK);
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        (proxy, method, args) -> {
+          if ("sendError".equals(method.getName())) {
+            status.set((Integer) args[0]);
+          }
+          return null;
+        });
+
+    callback.doPost(request, response);
+
+    return status.get();
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.kitchensink.state;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InMemoryIdempotencyStoreTest {
+
+  @Test
+  public void markSeen_isTrueOnlyTheFirstTime() {
+    InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(60000, 100);
+
+    assertTrue(store.markSeen("message-1"));
+    assertFalse(store.markSeen("message-1"));
+    assertTrue(store.markSeen("message-2"));
+  }
+
+  @Test
+  public void markSeen_forgetsExpiredIds() throws InterruptedException {
+    InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(20, 100);
+
+    assertTrue(store.markSeen("message-1"));
+    Thread.sleep(50);
+
+    assertTrue(store.markSeen("message-1"));
+  }
+
+  @Test
+  public void markSeen_keepsTheStoreWithinItsBound() {
+    InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(60000, 100);
+
+    for (int i = 0; i < 10000; i++) {
+      store.markSeen("message-" + i);
+      assertTrue(store.size() <= 100);
+    }
+  }
+
+  @Test
+  public void markSeen_purgesInBatches() {
+    InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(60000, 100);
+
+    for (int i = 0; i <= 100; i++) {
+      store.markSeen("message-" + i);
+    }
+
+    // Going over the bound frees a tenth of it, so the next inserts don't purge again
+    assertTrue(store.size() <= 90);
+  }
+
+  @Test
+  public void markSeen_purgesExpiredIdsBeforeLiveOnes() throws InterruptedException {
+    InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(20, 100);
+    for (int i = 0; i < 100; i++) {
+      store.markSeen("old-" + i);
+    }
+    Thread.sleep(50);
+
+    store.markSeen("new-0");
+
+    assertFalse(store.markSeen("new-0"));
+  }
+}